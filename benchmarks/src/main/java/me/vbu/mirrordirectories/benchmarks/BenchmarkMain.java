@@ -0,0 +1,55 @@
+package me.vbu.mirrordirectories.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Runs the benchmarks with the regular JMH command line options. Unless a result file
+ * is given, results are written as JSON to a timestamped file in target/jmh-results,
+ * so runs of different versions can be kept side by side and compared.
+ */
+public class BenchmarkMain {
+
+    private static final Path RESULTS_DIRECTORY = Path.of("target", "jmh-results");
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        CommandLineOptions commandLine;
+        try {
+            commandLine = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("Error parsing command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()
+                || commandLine.shouldListResultFormats() || commandLine.shouldListWithParams()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        if (!commandLine.getResult().hasValue() && !commandLine.getResultFormat().hasValue()) {
+            Files.createDirectories(RESULTS_DIRECTORY);
+            String version = BenchmarkMain.class.getPackage().getImplementationVersion();
+            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+            Path result = RESULTS_DIRECTORY.resolve((version == null ? "dev" : version) + "-" + timestamp + ".json");
+            options.resultFormat(ResultFormatType.JSON).result(result.toString());
+        }
+
+        Options built = options.build();
+        new Runner(built).run();
+    }
+}
@@ -0,0 +1,89 @@
+package me.vbu.mirrordirectories.benchmarks;
+
+import me.vbu.mirrordirectories.model.DiffEntry;
+import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
+import me.vbu.mirrordirectories.model.filesystem.DirectoryNode;
+import me.vbu.mirrordirectories.service.DestinationScanMode;
+import me.vbu.mirrordirectories.service.DirectoryComparator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compare throughput on synthetic trees of different shapes, with a destination holding
+ * every other entry of the source. Each invocation compares the whole tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompareBenchmark {
+
+    @Param({"DEEP", "WIDE", "TINY_FILES", "HUGE_FILES"})
+    private TreeShape shape;
+
+    @Param({"WALK", "MANIFEST"})
+    private DestinationScanMode scanMode;
+
+    private Path workDirectory;
+    private DirectoryComparator comparator;
+
+    @Setup(Level.Trial)
+    public void createTrees() throws IOException {
+        workDirectory = Files.createTempDirectory("compare-benchmark");
+        SyntheticTrees.isolateUserHome(workDirectory);
+        Path source = workDirectory.resolve("source");
+        Path destination = workDirectory.resolve("destination");
+        SyntheticTrees.create(source, shape, 1);
+        SyntheticTrees.create(destination, shape, 2);
+
+        comparator = new DirectoryComparator();
+        comparator.setDirectoryPair(new SourceDestinationDirectoryPair(source.toFile(), destination.toFile()));
+        comparator.setDestinationScanMode(scanMode);
+        comparator.setCompactResults(false);
+
+        // Builds the manifest used by the manifest scan mode, which the measured comparisons
+        // then only read; walking comparisons keep no manifest
+        comparator.compareDirectories();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTrees() throws IOException {
+        SyntheticTrees.delete(workDirectory);
+    }
+
+    @Benchmark
+    public DirectoryNode compareTree() {
+        return comparator.compareDirectories();
+    }
+
+    @Benchmark
+    public void compareStreaming(Blackhole blackhole) {
+        try (Stream<DiffEntry> differences = comparator.streamDifferences()) {
+            Iterator<DiffEntry> iterator = differences.iterator();
+            while (iterator.hasNext()) {
+                blackhole.consume(iterator.next());
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package me.vbu.mirrordirectories.benchmarks;
+
+import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
+import me.vbu.mirrordirectories.model.filesystem.DirectoryNode;
+import me.vbu.mirrordirectories.service.ChannelCopyFileOperation;
+import me.vbu.mirrordirectories.service.CopyFileOperation;
+import me.vbu.mirrordirectories.service.DestinationScanMode;
+import me.vbu.mirrordirectories.service.DirectoryComparator;
+import me.vbu.mirrordirectories.service.FileOperation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy throughput per {@link FileOperation} strategy. Every invocation copies the complete
+ * source tree into an empty destination, so it runs as a single shot per iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"TINY_FILES", "HUGE_FILES"})
+    private TreeShape shape;
+
+    @Param({"copy", "channel"})
+    private String operation;
+
+    @Param({"4"})
+    private int workers;
+
+    private Path workDirectory;
+    private Path destination;
+    private DirectoryComparator comparator;
+    private DirectoryNode differences;
+
+    @Setup(Level.Trial)
+    public void createSource() throws IOException {
+        workDirectory = Files.createTempDirectory("copy-benchmark");
+        SyntheticTrees.isolateUserHome(workDirectory);
+        Path source = workDirectory.resolve("source");
+        destination = workDirectory.resolve("destination");
+        SyntheticTrees.create(source, shape, 1);
+        Files.createDirectories(destination);
+
+        comparator = new DirectoryComparator();
+        comparator.setDirectoryPair(new SourceDestinationDirectoryPair(source.toFile(), destination.toFile()));
+        comparator.setDestinationScanMode(DestinationScanMode.WALK);
+        comparator.setCompactResults(false);
+        comparator.setFileOperation(createOperation());
+        comparator.getCopyEngine().setWorkerCount(workers);
+        differences = comparator.compareDirectories();
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyDestination() throws IOException {
+        SyntheticTrees.delete(destination);
+        Files.createDirectories(destination);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTrees() throws IOException {
+        SyntheticTrees.delete(workDirectory);
+    }
+
+    @Benchmark
+    public long copyTree() throws IOException {
+        comparator.processMissingItems(differences);
+        return comparator.getProcessedFileCount();
+    }
+
+    private FileOperation createOperation() {
+        return switch (operation) {
+            case "copy" -> new CopyFileOperation();
+            case "channel" -> new ChannelCopyFileOperation();
+            default -> throw new IllegalArgumentException("Unknown operation: " + operation);
+        };
+    }
+}
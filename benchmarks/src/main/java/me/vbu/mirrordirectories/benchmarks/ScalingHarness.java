@@ -0,0 +1,212 @@
+package me.vbu.mirrordirectories.benchmarks;
+
+import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
+import me.vbu.mirrordirectories.model.filesystem.DirectoryNode;
+import me.vbu.mirrordirectories.service.DestinationScanMode;
+import me.vbu.mirrordirectories.service.DirectoryComparator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how comparisons scale with the number of entries and the fanout of the trees.
+ * For every size class and fanout a workload is generated, compared a few times with the
+ * {@link DirectoryComparator}, and the best time and the peak heap are reported. Results
+ * are printed as a table and written as JSON lines.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar me.vbu.mirrordirectories.benchmarks.ScalingHarness \
+ *     --dir /dev/shm/scaling --sizes 10000,100000,1000000 --fanouts 10,100
+ * </pre>
+ */
+public class ScalingHarness {
+
+    private static final String USAGE = """
+            Usage: ScalingHarness [options]
+
+              --dir <dir>          Working directory, tmpfs recommended (default: system temp directory)
+              --sizes <n,...>      Files per workload (default: 10000,100000,1000000)
+              --fanouts <n,...>    Subdirectories per directory (default: 10,100)
+              --runs <n>           Measured comparisons per workload (default: 3)
+              --compact            Keep results in compact difference trees
+              --sparse             Create sparse files instead of writing data
+              --output <file>      JSON lines result file (default: target/scaling-results.jsonl)
+            """;
+
+    private Path workDirectory = Path.of(System.getProperty("java.io.tmpdir"), "mirror-scaling");
+    private List<Long> sizes = List.of(10_000L, 100_000L, 1_000_000L);
+    private List<Long> fanouts = List.of(10L, 100L);
+    private int runs = 3;
+    private boolean compact;
+    private boolean sparse;
+    private Path output = Path.of("target", "scaling-results.jsonl");
+
+    public static void main(String[] args) throws IOException {
+        ScalingHarness harness = new ScalingHarness();
+        try {
+            harness.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(64);
+        }
+        harness.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dir" -> workDirectory = Path.of(value(args, ++i));
+                case "--sizes" -> sizes = numbers(value(args, ++i));
+                case "--fanouts" -> fanouts = numbers(value(args, ++i));
+                case "--runs" -> runs = Math.toIntExact(numbers(value(args, ++i)).getFirst());
+                case "--compact" -> compact = true;
+                case "--sparse" -> sparse = true;
+                case "--output" -> output = Path.of(value(args, ++i));
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws IOException {
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        System.out.printf("%10s %7s %6s %12s %12s %12s %12s%n",
+                "files", "fanout", "depth", "entries", "generate ms", "compare ms", "peak heap MB");
+
+        Path home = SyntheticTrees.isolateUserHome(workDirectory);
+        try (PrintWriter results = new PrintWriter(Files.newBufferedWriter(output))) {
+            for (long size : sizes) {
+                for (long fanout : fanouts) {
+                    WorkloadSpec spec = WorkloadSpec.builder()
+                            .files(size)
+                            .fanout(Math.toIntExact(fanout))
+                            .depth(depthFor(size, fanout))
+                            .sparseFiles(sparse)
+                            .build();
+                    String line = measure(spec);
+                    results.println(line);
+                    results.flush();
+                }
+            }
+        } finally {
+            SyntheticTrees.delete(home);
+        }
+        System.out.println("Results written to " + output);
+    }
+
+    /**
+     * Generates a workload, compares it and deletes it again.
+     *
+     * @return The result as a JSON line
+     */
+    private String measure(WorkloadSpec spec) throws IOException {
+        Path directory = workDirectory.resolve("workload");
+        SyntheticTrees.delete(directory);
+
+        long generateStart = System.nanoTime();
+        Workload workload = WorkloadGenerator.generate(spec, directory);
+        long generateMillis = (System.nanoTime() - generateStart) / 1_000_000;
+
+        DirectoryComparator comparator = new DirectoryComparator();
+        comparator.setDirectoryPair(new SourceDestinationDirectoryPair(workload.source().toFile(),
+                workload.destination().toFile()));
+        comparator.setDestinationScanMode(DestinationScanMode.WALK);
+        comparator.setCompactResults(compact);
+
+        long bestNanos = Long.MAX_VALUE;
+        long peakHeap = 0;
+        long differences = 0;
+        for (int run = 0; run < runs; run++) {
+            System.gc();
+            resetPeakHeap();
+            long start = System.nanoTime();
+            DirectoryNode result = comparator.compareDirectories();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            peakHeap = Math.max(peakHeap, peakHeap());
+            differences = comparator.getTotalFileCount();
+            if (result == null) {
+                throw new IllegalStateException("Comparison returned no result");
+            }
+        }
+
+        if (differences != workload.expectedDifferences()) {
+            System.err.println("Expected " + workload.expectedDifferences() + " differences, found " + differences);
+        }
+
+        SyntheticTrees.delete(directory);
+
+        long entries = workload.directories() + workload.files();
+        System.out.printf("%10d %7d %6d %12d %12d %12d %12d%n", spec.getFiles(), spec.getFanout(), spec.getDepth(),
+                entries, generateMillis, bestNanos / 1_000_000, peakHeap / (1024 * 1024));
+
+        return String.format(Locale.ROOT, "{\"files\":%d,\"fanout\":%d,\"depth\":%d,\"directories\":%d,"
+                        + "\"bytes\":%d,\"differences\":%d,\"expectedDifferences\":%d,\"compact\":%b,"
+                        + "\"generateMs\":%d,\"compareMs\":%d,\"peakHeapBytes\":%d}",
+                workload.files(), spec.getFanout(), spec.getDepth(), workload.directories(), workload.bytes(),
+                differences, workload.expectedDifferences(), compact, generateMillis, bestNanos / 1_000_000, peakHeap);
+    }
+
+    /**
+     * Chooses the depth at which the tree has at least one directory per hundred files.
+     */
+    private static int depthFor(long files, long fanout) {
+        int depth = 0;
+        long directories = 1;
+        long level = 1;
+        while (directories * 100 < files && fanout > 1) {
+            level *= fanout;
+            directories += level;
+            depth++;
+        }
+        return depth;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static String value(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static List<Long> numbers(String value) {
+        List<Long> numbers = new ArrayList<>();
+        try {
+            for (String part : value.split(",")) {
+                long number = Long.parseLong(part.trim());
+                if (number < 1) {
+                    throw new NumberFormatException();
+                }
+                numbers.add(number);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected positive numbers: " + value);
+        }
+        return numbers;
+    }
+}
@@ -0,0 +1,110 @@
+package me.vbu.mirrordirectories.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Creates the directory trees the benchmarks run on.
+ */
+final class SyntheticTrees {
+
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    private SyntheticTrees() {
+    }
+
+    /**
+     * Creates a tree of the given shape with pseudo random file contents.
+     *
+     * @param root Directory to create the tree in
+     * @param shape The shape of the tree
+     * @param keepEvery Keep only every n-th entry, 1 for a complete tree; used to create
+     *                  destinations that are partially in sync with the source
+     * @return Number of files created
+     * @throws IOException If the tree cannot be created
+     */
+    static long create(Path root, TreeShape shape, int keepEvery) throws IOException {
+        Files.createDirectories(root);
+        return createLevel(root, shape, 0, keepEvery, new long[1], new Random(42));
+    }
+
+    private static long createLevel(Path dir, TreeShape shape, int level, int keepEvery, long[] index,
+                                    Random random) throws IOException {
+        long files = 0;
+        for (int i = 0; i < shape.getFilesPerDirectory(); i++) {
+            if (index[0]++ % keepEvery == 0) {
+                writeFile(dir.resolve("file-" + i + ".dat"), shape.getFileSize(), random);
+                files++;
+            }
+        }
+
+        if (level < shape.getDepth()) {
+            for (int i = 0; i < shape.getFanout(); i++) {
+                if (index[0]++ % keepEvery == 0) {
+                    Path child = Files.createDirectory(dir.resolve("dir-" + i));
+                    files += createLevel(child, shape, level + 1, keepEvery, index, random);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void writeFile(Path file, long size, Random random) throws IOException {
+        byte[] bytes = new byte[(int) Math.min(size, WRITE_BUFFER_SIZE)];
+        random.nextBytes(bytes);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; ) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, (int) Math.min(bytes.length, size - written));
+                written += channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Points {@code user.home} to a directory below the given work directory, so manifests,
+     * journals and caches written by the code under test stay out of the real home directory
+     * and are deleted together with the work directory.
+     *
+     * @param workDirectory The work directory of the benchmark
+     * @return The directory now used as home
+     * @throws IOException If the directory cannot be created
+     */
+    static Path isolateUserHome(Path workDirectory) throws IOException {
+        Path home = Files.createDirectories(workDirectory.resolve("home"));
+        System.setProperty("user.home", home.toString());
+        return home;
+    }
+
+    /**
+     * Deletes a directory and everything below it, if it exists.
+     *
+     * @param root The directory
+     * @throws IOException If something cannot be deleted
+     */
+    static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
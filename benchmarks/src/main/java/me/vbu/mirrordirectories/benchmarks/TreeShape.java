@@ -0,0 +1,63 @@
+package me.vbu.mirrordirectories.benchmarks;
+
+/**
+ * Shapes of the synthetic trees used by the benchmarks.
+ */
+public enum TreeShape {
+    /**
+     * Long chains of directories with few files each.
+     */
+    DEEP(12, 2, 4, 4 * 1024),
+
+    /**
+     * A single directory with a very large number of entries.
+     */
+    WIDE(0, 0, 50_000, 4 * 1024),
+
+    /**
+     * Moderately nested directories full of tiny files.
+     */
+    TINY_FILES(3, 10, 50, 1024),
+
+    /**
+     * A handful of very large files.
+     */
+    HUGE_FILES(0, 0, 8, 64L * 1024 * 1024);
+
+    /**
+     * Number of directory levels below the root.
+     */
+    private final int depth;
+
+    /**
+     * Number of subdirectories per directory.
+     */
+    private final int fanout;
+
+    private final int filesPerDirectory;
+
+    private final long fileSize;
+
+    TreeShape(int depth, int fanout, int filesPerDirectory, long fileSize) {
+        this.depth = depth;
+        this.fanout = fanout;
+        this.filesPerDirectory = filesPerDirectory;
+        this.fileSize = fileSize;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getFanout() {
+        return fanout;
+    }
+
+    public int getFilesPerDirectory() {
+        return filesPerDirectory;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+}
@@ -0,0 +1,135 @@
+package me.vbu.mirrordirectories.benchmarks;
+
+import javafx.application.Platform;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.control.TreeItem;
+import javafx.scene.control.TreeView;
+import me.vbu.mirrordirectories.model.filesystem.DirectoryNode;
+import me.vbu.mirrordirectories.model.filesystem.FileNode;
+import me.vbu.mirrordirectories.model.filesystem.ModifiedFileNode;
+import me.vbu.mirrordirectories.ui.views.components.DirectoryTreeView;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Cost of showing a comparison result in the {@link DirectoryTreeView}: populating the
+ * initially visible items, expanding the complete tree, and computing the directory
+ * statistics in the background. The view is updated on the JavaFX thread, and every
+ * invocation waits for the statistics of its result, so none are still being computed
+ * or displayed during the next invocation. Needs a display, or a headless JavaFX
+ * platform such as Monocle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TreeViewBenchmark {
+
+    @Param({"10", "100"})
+    private int fanout;
+
+    @Param({"3"})
+    private int depth;
+
+    private DirectoryNode differences;
+    private DirectoryTreeView view;
+
+    @Setup(Level.Trial)
+    public void createDifferences() {
+        try {
+            Platform.startup(() -> { });
+        } catch (IllegalStateException e) {
+            // Already started by another trial in this fork
+        }
+        differences = createDirectory("root", 0);
+        view = new DirectoryTreeView();
+    }
+
+    @TearDown(Level.Invocation)
+    public void awaitStatistics() {
+        view.getStatisticsShown().join();
+    }
+
+    @Benchmark
+    public int populate() {
+        return onFxThread(() -> {
+            view.updateTreeView(differences);
+            return treeView().getRoot().getChildren().size();
+        });
+    }
+
+    @Benchmark
+    public int populateAndExpandAll() {
+        return onFxThread(() -> {
+            view.updateTreeView(differences);
+            return expand(treeView().getRoot());
+        });
+    }
+
+    @Benchmark
+    public int populateWithStatistics() {
+        CompletableFuture<Void> shown = onFxThread(() -> {
+            view.updateTreeView(differences);
+            return view.getStatisticsShown();
+        });
+        shown.join();
+        return treeView().getRoot().getChildren().size();
+    }
+
+    private static <T> T onFxThread(Supplier<T> action) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Platform.runLater(() -> {
+            try {
+                result.complete(action.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result.join();
+    }
+
+    private DirectoryNode createDirectory(String name, int level) {
+        DirectoryNode directory = new DirectoryNode(name);
+        for (int i = 0; i < fanout; i++) {
+            directory.addChild(i % 10 == 0
+                    ? new ModifiedFileNode("file-" + i, i * 1024L)
+                    : new FileNode("file-" + i, i * 1024L));
+        }
+        if (level < depth) {
+            for (int i = 0; i < fanout / 10 + 1; i++) {
+                directory.addChild(createDirectory("dir-" + i, level + 1));
+            }
+        }
+        return directory;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TreeView<String> treeView() {
+        return (TreeView<String>) ((ScrollPane) view.getChildren().getFirst()).getContent();
+    }
+
+    private static int expand(TreeItem<String> item) {
+        int count = 1;
+        for (TreeItem<String> child : item.getChildren()) {
+            count += expand(child);
+        }
+        return count;
+    }
+}
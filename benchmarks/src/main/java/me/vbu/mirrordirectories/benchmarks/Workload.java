@@ -0,0 +1,30 @@
+package me.vbu.mirrordirectories.benchmarks;
+
+import java.nio.file.Path;
+
+/**
+ * A generated source/destination pair with the numbers describing it.
+ *
+ * @param spec The specification the pair was generated from
+ * @param source Root of the source tree
+ * @param destination Root of the destination tree
+ * @param directories Directories in the source tree, including the root
+ * @param files Files in the source tree
+ * @param bytes Bytes in the source tree
+ * @param missingSubtrees Source directories missing from the destination, not counting those below them
+ * @param missingFiles Source files missing from the destination
+ * @param changedFiles Files differing between source and destination
+ * @param extraFiles Files only present in the destination
+ */
+public record Workload(WorkloadSpec spec, Path source, Path destination, long directories, long files, long bytes,
+                       long missingSubtrees, long missingFiles, long changedFiles, long extraFiles) {
+
+    /**
+     * Gets the number of files a comparison of the pair is expected to report.
+     *
+     * @return Missing plus changed files
+     */
+    public long expectedDifferences() {
+        return missingFiles + changedFiles;
+    }
+}
@@ -0,0 +1,161 @@
+package me.vbu.mirrordirectories.benchmarks;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+/**
+ * Generates reproducible source/destination tree pairs on the local file system.
+ * The source is a complete tree of the specified fanout and depth with the files spread
+ * evenly over its directories. The destination mirrors it, except for subtrees left out,
+ * files with different contents and additional files. Trees are generated depth first
+ * without keeping any per-entry state, so even pairs with millions of entries only need
+ * constant memory.
+ */
+public class WorkloadGenerator {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Modification time of all generated files, so unchanged files compare equal by metadata.
+     */
+    private static final FileTime MODIFIED_TIME = FileTime.fromMillis(1_600_000_000_000L);
+
+    private final WorkloadSpec spec;
+    private final Random random;
+    private final byte[] data = new byte[BUFFER_SIZE];
+    private final long filesPerDirectory;
+    private long remainingFiles;
+
+    private long directories;
+    private long files;
+    private long bytes;
+    private long missingSubtrees;
+    private long missingFiles;
+    private long changedFiles;
+    private long extraFiles;
+
+    private WorkloadGenerator(WorkloadSpec spec) {
+        this.spec = spec;
+        this.random = new Random(spec.getSeed());
+        this.random.nextBytes(data);
+        this.filesPerDirectory = (spec.getFiles() + spec.getDirectories() - 1) / spec.getDirectories();
+        this.remainingFiles = spec.getFiles();
+    }
+
+    /**
+     * Generates a pair below a working directory, which must not contain a previous pair.
+     *
+     * @param spec The specification of the pair
+     * @param workDirectory Directory in which the source and destination directories are created
+     * @return The generated pair
+     * @throws IOException If the trees cannot be created
+     */
+    public static Workload generate(WorkloadSpec spec, Path workDirectory) throws IOException {
+        Path source = Files.createDirectories(workDirectory.resolve("source"));
+        Path destination = Files.createDirectories(workDirectory.resolve("destination"));
+
+        WorkloadGenerator generator = new WorkloadGenerator(spec);
+        generator.generateDirectory(source, destination, 0);
+
+        return new Workload(spec, source, destination, generator.directories, generator.files, generator.bytes,
+                generator.missingSubtrees, generator.missingFiles, generator.changedFiles, generator.extraFiles);
+    }
+
+    /**
+     * Generates a directory and everything below it.
+     *
+     * @param destination The matching destination directory, or null if it is missing
+     */
+    private void generateDirectory(Path source, Path destination, int level) throws IOException {
+        directories++;
+
+        long count = Math.min(filesPerDirectory, remainingFiles);
+        remainingFiles -= count;
+        for (long i = 0; i < count; i++) {
+            generateFile(source, destination, "file-" + i + ".dat");
+        }
+
+        if (destination != null) {
+            double expected = count * spec.getExtraFileRatio();
+            long extra = (long) expected;
+            if (random.nextDouble() < expected - extra) {
+                extra++;
+            }
+            for (long i = 0; i < extra; i++) {
+                writeFile(destination.resolve("extra-" + i + ".dat"), sizeOf(), random.nextInt(BUFFER_SIZE));
+                extraFiles++;
+            }
+        }
+
+        if (level < spec.getDepth()) {
+            for (int i = 0; i < spec.getFanout(); i++) {
+                String name = "dir-" + i;
+                Path sourceChild = Files.createDirectory(source.resolve(name));
+                Path destinationChild = null;
+                if (destination != null) {
+                    if (random.nextDouble() < spec.getMissingSubtreeRatio()) {
+                        missingSubtrees++;
+                    } else {
+                        destinationChild = Files.createDirectory(destination.resolve(name));
+                    }
+                }
+                generateDirectory(sourceChild, destinationChild, level + 1);
+            }
+        }
+    }
+
+    private void generateFile(Path sourceDirectory, Path destinationDirectory, String name) throws IOException {
+        long size = sizeOf();
+        int offset = random.nextInt(BUFFER_SIZE);
+        writeFile(sourceDirectory.resolve(name), size, offset);
+        files++;
+        bytes += size;
+
+        if (destinationDirectory == null) {
+            missingFiles++;
+        } else if (random.nextDouble() < spec.getChangedFileRatio()) {
+            // A different size is detected by every comparison level
+            writeFile(destinationDirectory.resolve(name), size + 1 + random.nextInt(1024), (offset + 1) % BUFFER_SIZE);
+            changedFiles++;
+        } else {
+            writeFile(destinationDirectory.resolve(name), size, offset);
+        }
+    }
+
+    /**
+     * Draws a file size from the log-normal distribution of the specification.
+     */
+    private long sizeOf() {
+        double size = spec.getMedianFileSize() * Math.exp(spec.getFileSizeSigma() * random.nextGaussian());
+        return Math.min(spec.getMaxFileSize(), Math.round(size));
+    }
+
+    /**
+     * Writes a file filled from the shared random data, starting at an offset so that files differ.
+     */
+    private void writeFile(Path file, long size, int offset) throws IOException {
+        if (spec.isSparseFiles()) {
+            try (RandomAccessFile sparse = new RandomAccessFile(file.toFile(), "rw")) {
+                sparse.setLength(size);
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long written = 0;
+                int position = offset;
+                while (written < size) {
+                    int length = (int) Math.min(BUFFER_SIZE - position, size - written);
+                    written += channel.write(ByteBuffer.wrap(data, position, length));
+                    position = 0;
+                }
+            }
+        }
+        Files.setLastModifiedTime(file, MODIFIED_TIME);
+    }
+}
@@ -0,0 +1,231 @@
+package me.vbu.mirrordirectories.benchmarks;
+
+/**
+ * Describes a synthetic source/destination pair: the shape of the source tree, the
+ * distribution of file sizes and how far the destination diverges from the source.
+ * The same specification and seed always produce the same trees.
+ */
+public final class WorkloadSpec {
+
+    private final long files;
+    private final int fanout;
+    private final int depth;
+    private final long medianFileSize;
+    private final double fileSizeSigma;
+    private final long maxFileSize;
+    private final double missingSubtreeRatio;
+    private final double changedFileRatio;
+    private final double extraFileRatio;
+    private final boolean sparseFiles;
+    private final long seed;
+
+    private WorkloadSpec(Builder builder) {
+        this.files = builder.files;
+        this.fanout = builder.fanout;
+        this.depth = builder.depth;
+        this.medianFileSize = builder.medianFileSize;
+        this.fileSizeSigma = builder.fileSizeSigma;
+        this.maxFileSize = builder.maxFileSize;
+        this.missingSubtreeRatio = builder.missingSubtreeRatio;
+        this.changedFileRatio = builder.changedFileRatio;
+        this.extraFileRatio = builder.extraFileRatio;
+        this.sparseFiles = builder.sparseFiles;
+        this.seed = builder.seed;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Number of files in the source tree.
+     */
+    public long getFiles() {
+        return files;
+    }
+
+    /**
+     * Number of subdirectories per directory.
+     */
+    public int getFanout() {
+        return fanout;
+    }
+
+    /**
+     * Number of directory levels below the root.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Median of the log-normal file size distribution, in bytes.
+     */
+    public long getMedianFileSize() {
+        return medianFileSize;
+    }
+
+    /**
+     * Spread of the log-normal file size distribution, 0 for equally sized files.
+     */
+    public double getFileSizeSigma() {
+        return fileSizeSigma;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * Share of source directories missing from the destination together with everything below them.
+     */
+    public double getMissingSubtreeRatio() {
+        return missingSubtreeRatio;
+    }
+
+    /**
+     * Share of destination files whose size and content differ from the source.
+     */
+    public double getChangedFileRatio() {
+        return changedFileRatio;
+    }
+
+    /**
+     * Number of files only present in the destination, relative to the files in each directory.
+     */
+    public double getExtraFileRatio() {
+        return extraFileRatio;
+    }
+
+    /**
+     * Whether files are created sparse instead of being filled with data, which makes
+     * generating huge trees much faster when only metadata is compared.
+     */
+    public boolean isSparseFiles() {
+        return sparseFiles;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Number of directories in the source tree, including the root.
+     *
+     * @return The directory count
+     */
+    public long getDirectories() {
+        long directories = 1;
+        long level = 1;
+        for (int i = 0; i < depth; i++) {
+            level *= fanout;
+            directories += level;
+        }
+        return directories;
+    }
+
+    @Override
+    public String toString() {
+        return files + " files, fanout " + fanout + ", depth " + depth;
+    }
+
+    /**
+     * Builder for workload specifications.
+     */
+    public static final class Builder {
+        private long files = 10_000;
+        private int fanout = 10;
+        private int depth = 3;
+        private long medianFileSize = 4 * 1024;
+        private double fileSizeSigma = 1.5;
+        private long maxFileSize = 64L * 1024 * 1024;
+        private double missingSubtreeRatio = 0.02;
+        private double changedFileRatio = 0.05;
+        private double extraFileRatio = 0.01;
+        private boolean sparseFiles = false;
+        private long seed = 42;
+
+        private Builder() {
+        }
+
+        public Builder files(long files) {
+            this.files = files;
+            return this;
+        }
+
+        public Builder fanout(int fanout) {
+            this.fanout = fanout;
+            return this;
+        }
+
+        public Builder depth(int depth) {
+            this.depth = depth;
+            return this;
+        }
+
+        public Builder medianFileSize(long medianFileSize) {
+            this.medianFileSize = medianFileSize;
+            return this;
+        }
+
+        public Builder fileSizeSigma(double fileSizeSigma) {
+            this.fileSizeSigma = fileSizeSigma;
+            return this;
+        }
+
+        public Builder maxFileSize(long maxFileSize) {
+            this.maxFileSize = maxFileSize;
+            return this;
+        }
+
+        public Builder missingSubtreeRatio(double missingSubtreeRatio) {
+            this.missingSubtreeRatio = missingSubtreeRatio;
+            return this;
+        }
+
+        public Builder changedFileRatio(double changedFileRatio) {
+            this.changedFileRatio = changedFileRatio;
+            return this;
+        }
+
+        public Builder extraFileRatio(double extraFileRatio) {
+            this.extraFileRatio = extraFileRatio;
+            return this;
+        }
+
+        public Builder sparseFiles(boolean sparseFiles) {
+            this.sparseFiles = sparseFiles;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Builds the specification.
+         *
+         * @return The specification
+         * @throws IllegalArgumentException If a value is out of range
+         */
+        public WorkloadSpec build() {
+            if (files < 0 || fanout < 0 || depth < 0 || (depth > 0 && fanout == 0)) {
+                throw new IllegalArgumentException("Invalid tree shape: " + files + " files, fanout " + fanout
+                        + ", depth " + depth);
+            }
+            checkRatio("missing subtree", missingSubtreeRatio);
+            checkRatio("changed file", changedFileRatio);
+            if (extraFileRatio < 0) {
+                throw new IllegalArgumentException("Extra file ratio must not be negative");
+            }
+            return new WorkloadSpec(this);
+        }
+
+        private static void checkRatio(String name, double ratio) {
+            if (ratio < 0 || ratio > 1) {
+                throw new IllegalArgumentException("The " + name + " ratio must be between 0 and 1");
+            }
+        }
+    }
+}
@@ -1,14 +1,32 @@
 package me.vbu.mirrordirectories;
 
-import javafx.application.Application;
-import me.vbu.mirrordirectories.ui.DirectoryMirrorApp;
+import me.vbu.mirrordirectories.cli.MirrorCli;
 
 /**
  * Main entry point for the application.
+ * Runs the command line interface when arguments are given and the JavaFX user
+ * interface otherwise. The user interface is loaded reflectively, so headless
+ * builds without JavaFX on the class path still start.
  */
 public class Main {
-    public static void main(String[] args) {
+
+    private static final String GUI_CLASS = "me.vbu.mirrordirectories.ui.DirectoryMirrorApp";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            System.exit(MirrorCli.run(args));
+        }
+
+        Class<?> guiClass;
+        try {
+            guiClass = Class.forName(GUI_CLASS);
+        } catch (ClassNotFoundException | NoClassDefFoundError e) {
+            System.err.println("The user interface is not available in this build, use --help for command line usage.");
+            System.exit(MirrorCli.EXIT_USAGE);
+            return;
+        }
+
         // Launch the JavaFX application
-        Application.launch(DirectoryMirrorApp.class, args);
+        guiClass.getMethod("main", String[].class).invoke(null, (Object) args);
     }
-}
\ No newline at end of file
+}
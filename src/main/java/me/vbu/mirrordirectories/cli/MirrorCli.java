@@ -0,0 +1,777 @@
+package me.vbu.mirrordirectories.cli;
+
+import me.vbu.mirrordirectories.metrics.MetricsListener;
+import me.vbu.mirrordirectories.metrics.MetricsSnapshot;
+import me.vbu.mirrordirectories.metrics.MirrorMetrics;
+import me.vbu.mirrordirectories.metrics.Phase;
+import me.vbu.mirrordirectories.model.DiffEntry;
+import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
+import me.vbu.mirrordirectories.model.SyncEntry;
+import me.vbu.mirrordirectories.model.filesystem.DirectoryNode;
+import me.vbu.mirrordirectories.service.BidirectionalSynchronizer;
+import me.vbu.mirrordirectories.service.ComparisonLevel;
+import me.vbu.mirrordirectories.service.CopyEngine;
+import me.vbu.mirrordirectories.service.CopyJournal;
+import me.vbu.mirrordirectories.service.DeduplicatingFileOperation;
+import me.vbu.mirrordirectories.service.DeduplicationIndex;
+import me.vbu.mirrordirectories.service.DeduplicationMode;
+import me.vbu.mirrordirectories.service.DeltaFileOperation;
+import me.vbu.mirrordirectories.service.DestinationScanMode;
+import me.vbu.mirrordirectories.service.DirectoryComparator;
+import me.vbu.mirrordirectories.service.DirectoryWatcher;
+import me.vbu.mirrordirectories.service.FileOperationFailure;
+import me.vbu.mirrordirectories.service.JobListener;
+import me.vbu.mirrordirectories.service.JobScheduler;
+import me.vbu.mirrordirectories.service.MirrorJob;
+import me.vbu.mirrordirectories.service.PathFilter;
+import me.vbu.mirrordirectories.service.PruneMode;
+import me.vbu.mirrordirectories.service.VerificationMode;
+import me.vbu.mirrordirectories.service.VerifyingCopyFileOperation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Headless command line interface that compares and mirrors a directory pair without JavaFX.
+ * Progress and results are written to standard output as JSON lines, one object per line
+ * with an "event" field; all other output goes to standard error.
+ */
+public class MirrorCli {
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_DIFFERENCES = 1;
+    public static final int EXIT_FAILURES = 2;
+    public static final int EXIT_USAGE = 64;
+
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(1);
+
+    private static final String USAGE = """
+            Usage: mirror-directories --source <dir> --destination <dir> [options]
+                   mirror-directories --jobs <file> [options]
+
+              --source <dir>          Directory to mirror from
+              --destination <dir>     Directory to mirror to
+              --compare-only          Only report differences, do not copy
+              --stream                Copy while comparing, without building the difference tree
+              --compact               Keep the difference tree in a compact form for huge results
+              --delta                 Update modified files by transferring only changed blocks
+              --dedup <mode>          Link files whose content is already in the destination:
+                                      hardlink or reflink; hardlink compares at the checksum
+                                      level unless --level content or existence is given
+              --prune <mode>          Remove entries missing from the source: delete, or trash
+                                      to move them into .mirror-trash in the destination
+              --archive               Store files in delta zip archives in the destination instead
+                                      of individual files, indexed in mirror-archive.index
+              --journal               Record copies in a journal and write files via temporary files,
+                                      so an interrupted run can be resumed
+              --resume                Finish an interrupted journaled run without comparing again,
+                                      or run normally if there is none
+              --sync                  Two-way sync: copy and delete in both directions,
+                                      reporting entries changed on both sides as conflicts
+              --dry-run               With --prune or --sync, only list what would be changed
+              --jobs <file>           Mirror many pairs, one per line as source and destination
+                                      separated by a tab, running pairs on separate disks in parallel
+              --jobs-per-device <n>   Jobs using the same disk at the same time (default 1)
+              --exclude <pattern>     Skip entries matching a glob, or a regex:<pattern> on the path;
+                                      globs without a slash match names at any depth
+              --include <pattern>     Keep entries matching a pattern, the first matching rule wins
+              --filter-file <file>    Read rules from a file, one per line starting with - or +
+              --verify <mode>         Checksum files while copying and verify them: read-back, or
+                                      size to only check the size of the written file
+              --level <level>         existence, metadata (default), checksum or content
+              --scan <mode>           manifest (default), or walk to list the destination every time
+                                      without keeping a manifest
+              --parallelism <n>       Threads used to compare directories
+              --workers <n>           Files copied concurrently
+              --virtual-threads       Copy on virtual threads
+              --watch                 Keep mirroring changes until interrupted
+              --help                  Show this help
+
+            Exit codes: 0 success, 1 differences found with --compare-only or conflicts
+                        left by --sync, 2 some items or the whole run failed, 64 invalid arguments
+            """;
+
+    private final PrintStream out;
+
+    private DeltaFileOperation deltaOperation;
+    private DeduplicatingFileOperation deduplicatingOperation;
+    private VerifyingCopyFileOperation verifyingOperation;
+
+    private MirrorCli(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs the command line interface. Standard output is reserved for the JSON events,
+     * anything else printed while running is redirected to standard error. An unexpected
+     * exception is printed there as well and ends the run with {@link #EXIT_FAILURES}, so
+     * that it is not taken for differences found.
+     *
+     * @param args Command line arguments
+     * @return The exit code
+     */
+    public static int run(String[] args) {
+        PrintStream stdout = System.out;
+        System.setOut(System.err);
+        try {
+            return new MirrorCli(stdout).execute(args);
+        } catch (RuntimeException e) {
+            System.err.println("Mirroring failed: " + e);
+            e.printStackTrace();
+            return EXIT_FAILURES;
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    private int execute(String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            return EXIT_USAGE;
+        }
+
+        if (options.help) {
+            out.print(USAGE);
+            return EXIT_OK;
+        }
+
+        if (options.jobs != null) {
+            return runJobs(options);
+        }
+
+        SourceDestinationDirectoryPair directoryPair = new SourceDestinationDirectoryPair(options.source, options.destination);
+        if (!directoryPair.validateDirectories()) {
+            System.err.println("Invalid source or destination directory");
+            return EXIT_USAGE;
+        }
+
+        if (options.sync) {
+            return sync(directoryPair, options);
+        }
+
+        DirectoryComparator comparator = new DirectoryComparator(directoryPair);
+        configure(comparator, options);
+        if (options.delta) {
+            deltaOperation = new DeltaFileOperation();
+            comparator.setFileOperation(deltaOperation);
+        }
+        if (options.verify != null) {
+            verifyingOperation = new VerifyingCopyFileOperation(options.verify);
+            comparator.setFileOperation(verifyingOperation);
+        }
+        if (options.dedup != null) {
+            deduplicatingOperation = new DeduplicatingFileOperation(comparator.getFileOperation(), options.dedup,
+                    DeduplicationIndex.forDestination(options.destination.toPath()));
+            comparator.setFileOperation(deduplicatingOperation);
+        }
+
+        if (options.watch) {
+            return watch(comparator);
+        }
+        if (options.resume && comparator.hasInterruptedRun()) {
+            return copy(comparator, () -> {
+                CopyJournal.Recovery recovery = comparator.resume();
+                emit(event("resume")
+                        .with("pending", recovery.getPendingFileCount())
+                        .with("completed", recovery.getCompletedFileCount()));
+            });
+        }
+        if (options.stream && !options.compareOnly) {
+            return copy(comparator, comparator::processDifferences);
+        }
+
+        long compareStart = System.nanoTime();
+        DirectoryNode differences = comparator.compareDirectories();
+        JsonLine compare = event("compare")
+                .with("files", comparator.getTotalFileCount())
+                .with("modified", comparator.getModifiedFileCount());
+        if (comparator.isMirrorMode()) {
+            compare.with("extraneous", comparator.getExtraneousCount());
+        }
+        emit(compare.with("durationMs", elapsedMillis(compareStart)));
+
+        if (options.dryRun) {
+            for (DiffEntry entry : comparator.getExtraneousEntries()) {
+                emit(event("extraneous")
+                        .with("path", entry.getRelativePath())
+                        .with("directory", entry.getKind().isDirectory())
+                        .with("size", entry.getSize()));
+            }
+        }
+
+        if (options.compareOnly || !differences.hasChildren()) {
+            emitFilterHits(options.filter);
+            emit(event("summary")
+                    .with("processed", 0)
+                    .with("failed", 0)
+                    .with("differences", comparator.getTotalFileCount()));
+            return options.compareOnly && differences.hasChildren() ? EXIT_DIFFERENCES : EXIT_OK;
+        }
+
+        return copy(comparator, comparator::processMissingItems);
+    }
+
+    /**
+     * Applies the comparison and copy options shared by single pairs and jobs.
+     */
+    private static void configure(DirectoryComparator comparator, Options options) {
+        comparator.setComparisonLevel(options.level);
+        comparator.setDestinationScanMode(options.scanMode);
+        comparator.setCompactResults(options.compact);
+        comparator.setArchiveMode(options.archive);
+        comparator.setJournaling(options.journal);
+        comparator.setFilter(options.filter);
+        if (options.parallelism > 0) {
+            comparator.setParallelism(options.parallelism);
+        }
+        if (options.workers > 0) {
+            comparator.getCopyEngine().setWorkerCount(options.workers);
+        }
+        comparator.getCopyEngine().setVirtualThreads(options.virtualThreads);
+        if (options.prune != null) {
+            comparator.setMirrorMode(true);
+            comparator.getPruner().setMode(options.prune);
+        }
+    }
+
+    /**
+     * Mirrors all pairs of the jobs file, emitting an event whenever a job starts or finishes.
+     */
+    private int runJobs(Options options) {
+        List<MirrorJob> jobs = new ArrayList<>();
+        try {
+            for (SourceDestinationDirectoryPair directoryPair : readJobs(options.jobs)) {
+                MirrorJob job = new MirrorJob(directoryPair);
+                configure(job.getComparator(), options);
+                if (options.delta) {
+                    job.getComparator().setFileOperation(new DeltaFileOperation());
+                }
+                if (options.verify != null) {
+                    job.getComparator().setFileOperation(new VerifyingCopyFileOperation(options.verify));
+                }
+                job.setStreaming(options.stream);
+                jobs.add(job);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Invalid jobs file: " + options.jobs + " (" + e.getMessage() + ")");
+            return EXIT_USAGE;
+        }
+
+        JobScheduler scheduler = new JobScheduler();
+        if (options.jobsPerDevice > 0) {
+            scheduler.setJobsPerDevice(options.jobsPerDevice);
+        }
+        scheduler.addListener(new JobListener() {
+            @Override
+            public void onJobStarted(MirrorJob job) {
+                emit(event("job")
+                        .with("state", "started")
+                        .with("source", job.getDirectoryPair().getSourceDirectory().getPath())
+                        .with("destination", job.getDirectoryPair().getDestinationDirectory().getPath()));
+            }
+
+            @Override
+            public void onJobFinished(MirrorJob job) {
+                DirectoryComparator comparator = job.getComparator();
+                JsonLine line = event("job")
+                        .with("state", job.getStatus().name().toLowerCase(Locale.ROOT))
+                        .with("source", job.getDirectoryPair().getSourceDirectory().getPath())
+                        .with("destination", job.getDirectoryPair().getDestinationDirectory().getPath())
+                        .with("differences", comparator.getTotalFileCount())
+                        .with("processed", comparator.getProcessedFileCount())
+                        .with("failed", comparator.getCopyEngine().getFailures().size())
+                        .with("bytes", comparator.getMetrics().getBytesProcessed())
+                        .with("durationMs", job.getDuration().toMillis());
+                if (job.getFailure() != null) {
+                    line.with("error", job.getFailure().getMessage());
+                }
+                emit(line);
+            }
+        });
+
+        long start = System.nanoTime();
+        int failedJobs;
+        try {
+            failedJobs = scheduler.runAll(jobs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_FAILURES;
+        }
+        emitFilterHits(options.filter);
+        emit(event("summary")
+                .with("jobs", jobs.size())
+                .with("failedJobs", failedJobs)
+                .with("durationMs", elapsedMillis(start)));
+        return failedJobs > 0 ? EXIT_FAILURES : EXIT_OK;
+    }
+
+    /**
+     * Reads the pairs of a jobs file: one pair per line, source and destination separated by a tab.
+     * Empty lines and lines starting with '#' are skipped.
+     */
+    private static List<SourceDestinationDirectoryPair> readJobs(File file) throws IOException {
+        List<SourceDestinationDirectoryPair> pairs = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath())) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] columns = line.split("\t");
+            if (columns.length != 2) {
+                throw new IllegalArgumentException("Expected source and destination separated by a tab: " + line);
+            }
+            pairs.add(new SourceDestinationDirectoryPair(new File(columns[0].trim()), new File(columns[1].trim())));
+        }
+        return pairs;
+    }
+
+    /**
+     * Processes the differences, reporting progress from the metrics while copying.
+     *
+     * @param run Processes the differences of the last comparison, compares and copies in one
+     *            streaming pass, or resumes an interrupted run
+     */
+    private int copy(DirectoryComparator comparator, CopyRun run) {
+        long copyStart = System.nanoTime();
+        MirrorMetrics metrics = comparator.getMetrics();
+        MetricsListener progressListener = progressListener(comparator::getTotalFileCount, comparator.getCopyEngine());
+        metrics.addListener(progressListener);
+        metrics.startReporting(PROGRESS_INTERVAL);
+
+        int exitCode = EXIT_OK;
+        try {
+            run.run();
+        } catch (IOException e) {
+            exitCode = EXIT_FAILURES;
+        } finally {
+            metrics.removeListener(progressListener);
+            metrics.stopReporting();
+        }
+
+        List<FileOperationFailure> failures = new ArrayList<>(comparator.getCopyEngine().getFailures());
+        failures.addAll(comparator.getPruner().getFailures());
+        if (comparator.getArchive() != null) {
+            failures.addAll(comparator.getArchive().getFailures());
+        }
+        for (FileOperationFailure failure : failures) {
+            emit(event("failure")
+                    .with("path", failure.getRelativePath())
+                    .with("error", failure.getCause().getMessage()));
+        }
+        MetricsSnapshot snapshot = metrics.snapshot();
+        JsonLine summary = event("summary")
+                .with("processed", comparator.getProcessedFileCount())
+                .with("failed", failures.size())
+                .with("differences", comparator.getTotalFileCount())
+                .with("bytes", snapshot.getBytesProcessed())
+                .with("scanMs", snapshot.getPhaseDurations().get(Phase.SCAN).toMillis())
+                .with("mkdirMs", snapshot.getPhaseDurations().get(Phase.MKDIR).toMillis())
+                .with("copyMs", snapshot.getPhaseDurations().get(Phase.COPY).toMillis())
+                .with("latencyP50Us", snapshot.getOperationLatencyP50Nanos() / 1000)
+                .with("latencyP99Us", snapshot.getOperationLatencyP99Nanos() / 1000)
+                .with("durationMs", elapsedMillis(copyStart));
+        if (comparator.isMirrorMode() && comparator.isArchiveMode()) {
+            summary.with("removed", comparator.getExtraneousCount());
+        } else if (comparator.isMirrorMode()) {
+            summary.with("removed", comparator.getPruner().getRemovedEntries())
+                    .with("removedBytes", comparator.getPruner().getRemovedBytes())
+                    .with("pruneMs", snapshot.getPhaseDurations().get(Phase.PRUNE).toMillis());
+        }
+        if (deltaOperation != null) {
+            summary.with("reusedBytes", deltaOperation.getReusedBytes());
+        }
+        if (deduplicatingOperation != null) {
+            summary.with("linkedFiles", deduplicatingOperation.getLinkedFiles())
+                    .with("savedBytes", deduplicatingOperation.getSavedBytes());
+        }
+        if (verifyingOperation != null) {
+            summary.with("verifiedFiles", verifyingOperation.getVerifiedFiles())
+                    .with("mismatches", verifyingOperation.getMismatchedFiles());
+        }
+        emitFilterHits(comparator.getFilter());
+        emit(summary);
+        return exitCode;
+    }
+
+    /**
+     * Runs a two-way sync of the pair, or only lists its plan for a dry run.
+     */
+    private int sync(SourceDestinationDirectoryPair directoryPair, Options options) {
+        BidirectionalSynchronizer synchronizer = new BidirectionalSynchronizer(directoryPair);
+        if (options.parallelism > 0) {
+            synchronizer.setParallelism(options.parallelism);
+        }
+        if (options.workers > 0) {
+            synchronizer.getCopyEngine().setWorkerCount(options.workers);
+        }
+        synchronizer.getCopyEngine().setVirtualThreads(options.virtualThreads);
+        synchronizer.setFilter(options.filter);
+        if (options.prune != null) {
+            synchronizer.getPruner().setMode(options.prune);
+        }
+        if (options.delta) {
+            deltaOperation = new DeltaFileOperation();
+            synchronizer.setFileOperation(deltaOperation);
+        }
+        if (options.verify != null) {
+            synchronizer.setFileOperation(new VerifyingCopyFileOperation(options.verify));
+        }
+
+        long planStart = System.nanoTime();
+        List<SyncEntry> plan = synchronizer.plan();
+        Map<SyncEntry.Action, Long> counts = new EnumMap<>(SyncEntry.Action.class);
+        for (SyncEntry entry : plan) {
+            counts.merge(entry.getAction(), 1L, Long::sum);
+            if (entry.getAction() == SyncEntry.Action.CONFLICT) {
+                emit(event("conflict")
+                        .with("path", entry.getRelativePath())
+                        .with("reason", entry.getReason()));
+            } else if (options.compareOnly) {
+                emit(event("planned")
+                        .with("action", entry.getAction().name().toLowerCase(Locale.ROOT))
+                        .with("path", entry.getRelativePath())
+                        .with("directory", entry.isDirectory()));
+            }
+        }
+        long conflicts = counts.getOrDefault(SyncEntry.Action.CONFLICT, 0L);
+        emit(event("plan")
+                .with("toDestination", counts.getOrDefault(SyncEntry.Action.COPY_TO_DESTINATION, 0L))
+                .with("toSource", counts.getOrDefault(SyncEntry.Action.COPY_TO_SOURCE, 0L))
+                .with("deleteFromDestination", counts.getOrDefault(SyncEntry.Action.DELETE_FROM_DESTINATION, 0L))
+                .with("deleteFromSource", counts.getOrDefault(SyncEntry.Action.DELETE_FROM_SOURCE, 0L))
+                .with("conflicts", conflicts)
+                .with("durationMs", elapsedMillis(planStart)));
+
+        if (options.compareOnly) {
+            return plan.size() > 0 ? EXIT_DIFFERENCES : EXIT_OK;
+        }
+
+        long syncStart = System.nanoTime();
+        long transfers = plan.stream().filter(entry -> entry.getAction().isCopy() && !entry.isDirectory()).count();
+        MirrorMetrics metrics = synchronizer.getMetrics();
+        MetricsListener progressListener = progressListener(() -> transfers, synchronizer.getCopyEngine());
+        metrics.addListener(progressListener);
+        metrics.startReporting(PROGRESS_INTERVAL);
+
+        int exitCode = conflicts > 0 ? EXIT_DIFFERENCES : EXIT_OK;
+        try {
+            synchronizer.synchronize(plan);
+        } catch (IOException e) {
+            exitCode = EXIT_FAILURES;
+        } finally {
+            metrics.removeListener(progressListener);
+            metrics.stopReporting();
+        }
+
+        List<FileOperationFailure> failures = synchronizer.getFailures();
+        for (FileOperationFailure failure : failures) {
+            emit(event("failure")
+                    .with("path", failure.getRelativePath())
+                    .with("error", failure.getCause().getMessage()));
+        }
+        MetricsSnapshot snapshot = metrics.snapshot();
+        emitFilterHits(options.filter);
+        emit(event("summary")
+                .with("processed", synchronizer.getCopyEngine().getProcessedFileCount())
+                .with("removed", synchronizer.getRemovedEntries())
+                .with("conflicts", conflicts)
+                .with("failed", failures.size())
+                .with("bytes", snapshot.getBytesProcessed())
+                .with("scanMs", snapshot.getPhaseDurations().get(Phase.SCAN).toMillis())
+                .with("copyMs", snapshot.getPhaseDurations().get(Phase.COPY).toMillis())
+                .with("pruneMs", snapshot.getPhaseDurations().get(Phase.PRUNE).toMillis())
+                .with("durationMs", elapsedMillis(syncStart)));
+        return exitCode;
+    }
+
+    /**
+     * Creates a listener emitting a progress event for every metrics snapshot.
+     *
+     * @param total Number of files to process
+     * @param copyEngine Engine processing the files
+     */
+    private MetricsListener progressListener(LongSupplier total, CopyEngine copyEngine) {
+        return new MetricsListener() {
+            @Override
+            public void onSnapshot(MetricsSnapshot snapshot) {
+                emit(event("progress")
+                        .with("processed", snapshot.getFilesProcessed())
+                        .with("total", total.getAsLong())
+                        .with("bytes", snapshot.getBytesProcessed())
+                        .with("bytesInProgress", snapshot.getGauges().getOrDefault("copy.activeBytes", 0L))
+                        .with("filesPerSecond", Math.round(snapshot.getFilesPerSecond()))
+                        .with("bytesPerSecond", Math.round(snapshot.getBytesPerSecond()))
+                        .with("queued", snapshot.getGauges().getOrDefault("copy.queued", 0L))
+                        .with("current", copyEngine.getCurrentlyCopyingFileName()));
+            }
+        };
+    }
+
+    /**
+     * Mirrors changes until the process is interrupted.
+     */
+    private int watch(DirectoryComparator comparator) {
+        try (DirectoryWatcher watcher = new DirectoryWatcher(comparator)) {
+            emit(event("watch").with("source", comparator.getDirectoryPair().getSourceDirectory().getPath()));
+            watcher.run();
+            return EXIT_OK;
+        } catch (IOException e) {
+            System.err.println("Failed to watch source directory: " + e.getMessage());
+            return EXIT_FAILURES;
+        }
+    }
+
+    /**
+     * Emits how many entries each filter rule decided, to help tuning the rules.
+     */
+    private void emitFilterHits(PathFilter filter) {
+        if (filter == null) {
+            return;
+        }
+        for (PathFilter.Rule rule : filter.getRules()) {
+            emit(event("filter")
+                    .with("rule", rule.getText())
+                    .with("include", rule.isInclude())
+                    .with("hits", rule.getHits()));
+        }
+    }
+
+    private synchronized void emit(JsonLine line) {
+        out.println(line);
+        out.flush();
+    }
+
+    private static JsonLine event(String name) {
+        return new JsonLine().with("event", name);
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    /**
+     * Processing of differences run by {@link #copy(DirectoryComparator, CopyRun)}.
+     */
+    @FunctionalInterface
+    private interface CopyRun {
+        void run() throws IOException;
+    }
+
+    /**
+     * A flat JSON object written as a single line.
+     */
+    private static final class JsonLine {
+        private final Map<String, Object> fields = new LinkedHashMap<>();
+
+        private JsonLine with(String key, Object value) {
+            fields.put(key, value);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder json = new StringBuilder("{");
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                appendString(json, field.getKey());
+                json.append(':');
+                Object value = field.getValue();
+                if (value instanceof Number || value instanceof Boolean) {
+                    json.append(value);
+                } else {
+                    appendString(json, String.valueOf(value));
+                }
+            }
+            return json.append('}').toString();
+        }
+
+        private static void appendString(StringBuilder json, String value) {
+            json.append('"');
+            for (char c : value.toCharArray()) {
+                switch (c) {
+                    case '"' -> json.append("\\\"");
+                    case '\\' -> json.append("\\\\");
+                    case '\n' -> json.append("\\n");
+                    case '\r' -> json.append("\\r");
+                    case '\t' -> json.append("\\t");
+                    default -> {
+                        if (c < 0x20) {
+                            json.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            json.append(c);
+                        }
+                    }
+                }
+            }
+            json.append('"');
+        }
+    }
+
+    /**
+     * Parsed command line options.
+     */
+    private static final class Options {
+        private File source;
+        private File destination;
+        private boolean compareOnly;
+        private boolean stream;
+        private boolean compact;
+        private boolean delta;
+        private boolean dryRun;
+        private boolean archive;
+        private boolean journal;
+        private boolean resume;
+        private boolean sync;
+        private File jobs;
+        private int jobsPerDevice;
+        private boolean watch;
+        private boolean help;
+        private boolean virtualThreads;
+        private int parallelism;
+        private int workers;
+        private ComparisonLevel level;
+        private DestinationScanMode scanMode = DestinationScanMode.MANIFEST;
+        private DeduplicationMode dedup;
+        private PruneMode prune;
+        private VerificationMode verify;
+        private final List<String> filterRules = new ArrayList<>();
+        private PathFilter filter;
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--source" -> options.source = new File(value(args, ++i));
+                    case "--destination" -> options.destination = new File(value(args, ++i));
+                    case "--compare-only" -> options.compareOnly = true;
+                    case "--stream" -> options.stream = true;
+                    case "--compact" -> options.compact = true;
+                    case "--delta" -> options.delta = true;
+                    case "--exclude" -> options.filterRules.add("- " + value(args, ++i));
+                    case "--include" -> options.filterRules.add("+ " + value(args, ++i));
+                    case "--filter-file" -> options.filterRules.addAll(filterFile(value(args, ++i)));
+                    case "--verify" -> options.verify = enumValue(VerificationMode.class, value(args, ++i));
+                    case "--dedup" -> options.dedup = enumValue(DeduplicationMode.class, value(args, ++i));
+                    case "--prune" -> options.prune = enumValue(PruneMode.class, value(args, ++i));
+                    case "--dry-run" -> options.dryRun = true;
+                    case "--archive" -> options.archive = true;
+                    case "--journal" -> options.journal = true;
+                    case "--resume" -> options.resume = options.journal = true;
+                    case "--sync" -> options.sync = true;
+                    case "--jobs" -> options.jobs = new File(value(args, ++i));
+                    case "--jobs-per-device" -> options.jobsPerDevice = positive(args, ++i);
+                    case "--watch" -> options.watch = true;
+                    case "--help" -> options.help = true;
+                    case "--virtual-threads" -> options.virtualThreads = true;
+                    case "--parallelism" -> options.parallelism = positive(args, ++i);
+                    case "--workers" -> options.workers = positive(args, ++i);
+                    case "--level" -> options.level = enumValue(ComparisonLevel.class, value(args, ++i));
+                    case "--scan" -> options.scanMode = enumValue(DestinationScanMode.class, value(args, ++i));
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+
+            if (options.jobs != null) {
+                if (options.source != null || options.destination != null || options.sync || options.watch
+                        || options.dedup != null || options.compareOnly || options.dryRun) {
+                    throw new IllegalArgumentException("--jobs only supports copy options");
+                }
+            } else if (!options.help && (options.source == null || options.destination == null)) {
+                throw new IllegalArgumentException("Both --source and --destination are required");
+            }
+            if (options.dryRun) {
+                if (options.prune == null && !options.sync) {
+                    throw new IllegalArgumentException("--dry-run requires --prune or --sync");
+                }
+                options.compareOnly = true;
+            }
+            if (options.sync && (options.watch || options.dedup != null)) {
+                throw new IllegalArgumentException("--sync cannot be combined with --watch or --dedup");
+            }
+            if (options.archive && (options.sync || options.delta || options.dedup != null)) {
+                throw new IllegalArgumentException("--archive cannot be combined with --sync, --delta or --dedup");
+            }
+            if (options.dedup == DeduplicationMode.HARDLINK && (options.delta || options.verify != null)) {
+                throw new IllegalArgumentException("--dedup hardlink cannot be combined with --delta or --verify");
+            }
+            if (options.dedup == DeduplicationMode.HARDLINK) {
+                // Links share the modification time of the first copy, so metadata would flag them on every run
+                if (options.level == ComparisonLevel.METADATA) {
+                    throw new IllegalArgumentException("--dedup hardlink cannot be combined with --level metadata,"
+                            + " links share the modification time of the first copy");
+                }
+                if (options.level == null) {
+                    options.level = ComparisonLevel.CHECKSUM;
+                }
+            }
+            if (options.level == null) {
+                options.level = ComparisonLevel.METADATA;
+            }
+            if (options.verify != null && (options.delta || options.archive)) {
+                throw new IllegalArgumentException("--verify cannot be combined with --delta or --archive");
+            }
+            if (options.journal && (options.archive || options.sync)) {
+                throw new IllegalArgumentException("--journal cannot be combined with --archive or --sync");
+            }
+            if (!options.filterRules.isEmpty()) {
+                options.filter = PathFilter.compile(options.filterRules);
+            }
+            return options;
+        }
+
+        private static String value(String[] args, int index) {
+            if (index >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+            }
+            return args[index];
+        }
+
+        private static List<String> filterFile(String file) {
+            try {
+                return PathFilter.readRules(new File(file).toPath());
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read filter file: " + file + " (" + e.getMessage() + ")");
+            }
+        }
+
+        private static int positive(String[] args, int index) {
+            try {
+                int value = Integer.parseInt(value(args, index));
+                if (value < 1) {
+                    throw new NumberFormatException();
+                }
+                return value;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected a positive number for " + args[index - 1]);
+            }
+        }
+
+        private static <E extends Enum<E>> E enumValue(Class<E> type, String value) {
+            try {
+                return Enum.valueOf(type, value.toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown value: " + value);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package me.vbu.mirrordirectories.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event covering a single file operation.
+ */
+@Name("me.vbu.mirrordirectories.FileOperation")
+@Label("File Operation")
+@Category("Mirror Directories")
+@Description("A file processed by the copy engine")
+@StackTrace(false)
+class FileOperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Path")
+    String path;
+
+    @Label("Size")
+    @DataAmount
+    long size;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
@@ -0,0 +1,83 @@
+package me.vbu.mirrordirectories.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power of two buckets. Bucket {@code i} counts values
+ * below {@code 2^i} nanoseconds, so percentiles are accurate to within a factor of two,
+ * which is plenty to tell cached metadata calls from disk seeks or network round trips.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single value.
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return The count
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return The maximum in nanoseconds
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket it falls into.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The latency in nanoseconds, 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        max.set(0);
+    }
+}
@@ -0,0 +1,26 @@
+package me.vbu.mirrordirectories.metrics;
+
+import java.time.Duration;
+
+/**
+ * Receives metrics from a {@link MirrorMetrics} registry.
+ * Methods are called from background threads.
+ */
+public interface MetricsListener {
+    /**
+     * Called periodically while reporting is active, and once more when it stops.
+     *
+     * @param snapshot The current metrics
+     */
+    default void onSnapshot(MetricsSnapshot snapshot) {
+    }
+
+    /**
+     * Called when a phase has finished.
+     *
+     * @param phase The phase
+     * @param duration How long the phase took
+     */
+    default void onPhaseCompleted(Phase phase, Duration duration) {
+    }
+}
@@ -0,0 +1,68 @@
+package me.vbu.mirrordirectories.metrics;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Point in time view of the metrics of a mirror run.
+ */
+@Getter @AllArgsConstructor
+public class MetricsSnapshot {
+    private final long scannedEntries;
+    private final long directoriesCreated;
+    private final long filesProcessed;
+    private final long bytesProcessed;
+    private final long failures;
+
+    /**
+     * Time since the metrics were last reset.
+     */
+    private final Duration elapsed;
+
+    /**
+     * Accumulated time per phase, including phases still running.
+     */
+    private final Map<Phase, Duration> phaseDurations;
+
+    private final long operationLatencyP50Nanos;
+    private final long operationLatencyP99Nanos;
+    private final long operationLatencyMaxNanos;
+
+    /**
+     * Current values of the registered gauges, such as worker queue depths.
+     */
+    private final Map<String, Long> gauges;
+
+    /**
+     * Gets the file throughput of the copy phase.
+     *
+     * @return Files per second
+     */
+    public double getFilesPerSecond() {
+        return perSecond(filesProcessed);
+    }
+
+    /**
+     * Gets the byte throughput of the copy phase.
+     *
+     * @return Bytes per second
+     */
+    public double getBytesPerSecond() {
+        return perSecond(bytesProcessed);
+    }
+
+    private double perSecond(long value) {
+        Duration copy = phaseDurations.getOrDefault(Phase.COPY, Duration.ZERO);
+        return copy.isZero() ? 0 : value * 1_000_000_000.0 / copy.toNanos();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files, %d bytes, %d failures, %.1f files/s, %.1f MB/s, p99 %d us, phases %s, gauges %s",
+                filesProcessed, bytesProcessed, failures, getFilesPerSecond(), getBytesPerSecond() / (1024 * 1024),
+                operationLatencyP99Nanos / 1000, phaseDurations, gauges);
+    }
+}
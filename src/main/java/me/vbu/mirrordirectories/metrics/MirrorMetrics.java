@@ -0,0 +1,322 @@
+package me.vbu.mirrordirectories.metrics;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry for the metrics of a mirror run: counters for scanned entries, directories,
+ * files, bytes and failures, time spent per {@link Phase}, a latency histogram of the
+ * individual file operations and gauges such as worker queue depths. Counters are
+ * {@link LongAdder}s, so recording from many workers is cheap and contention free.
+ * File operations and phases are also emitted as flight recorder events. Listeners
+ * receive periodic snapshots while reporting is active.
+ */
+public class MirrorMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(MirrorMetrics.class.getName());
+
+    private final LongAdder scannedEntries = new LongAdder();
+    private final LongAdder directoriesCreated = new LongAdder();
+    private final LongAdder filesProcessed = new LongAdder();
+    private final LongAdder bytesProcessed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private final Map<Phase, AtomicLong> phaseNanos = new EnumMap<>(Phase.class);
+    private final Set<PhaseTimer> runningPhases = ConcurrentHashMap.newKeySet();
+
+    private final LatencyHistogram operationLatency = new LatencyHistogram();
+
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile long startedAt = System.nanoTime();
+
+    private ScheduledExecutorService reporter;
+
+    public MirrorMetrics() {
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new AtomicLong());
+        }
+    }
+
+    /**
+     * Clears all counters, timers and the histogram. Gauges and listeners are kept.
+     */
+    public void reset() {
+        scannedEntries.reset();
+        directoriesCreated.reset();
+        filesProcessed.reset();
+        bytesProcessed.reset();
+        failures.reset();
+        phaseNanos.values().forEach(nanos -> nanos.set(0));
+        operationLatency.reset();
+        startedAt = System.nanoTime();
+    }
+
+    /**
+     * Counts entries listed while scanning.
+     *
+     * @param count Number of entries
+     */
+    public void recordScannedEntries(long count) {
+        scannedEntries.add(count);
+    }
+
+    /**
+     * Counts a created destination directory.
+     */
+    public void recordDirectoryCreated() {
+        directoriesCreated.increment();
+    }
+
+    /**
+     * Counts an item that could not be processed.
+     */
+    public void recordFailure() {
+        failures.increment();
+    }
+
+    /**
+     * Adds time to a phase without reporting it as a completed phase, for work that
+     * is spread over many small steps such as creating directories while streaming.
+     *
+     * @param phase The phase
+     * @param nanos The time spent in nanoseconds
+     */
+    public void addPhaseTime(Phase phase, long nanos) {
+        phaseNanos.get(phase).addAndGet(nanos);
+    }
+
+    /**
+     * Starts timing a phase. Closing the returned timer adds the elapsed time to the
+     * phase and notifies the listeners.
+     *
+     * @param phase The phase
+     * @return The running timer
+     */
+    public PhaseTimer startPhase(Phase phase) {
+        PhaseTimer timer = new PhaseTimer(phase);
+        runningPhases.add(timer);
+        return timer;
+    }
+
+    /**
+     * Starts timing a single file operation.
+     *
+     * @param operationName Name of the file operation
+     * @param relativePath Relative path of the file
+     * @param size Size of the file in bytes, if known
+     * @return The running operation, to be finished by the caller
+     */
+    public OperationTimer startOperation(String operationName, String relativePath, long size) {
+        return new OperationTimer(operationName, relativePath, size);
+    }
+
+    /**
+     * Registers a gauge that is sampled for every snapshot, replacing a gauge of the same name.
+     *
+     * @param name Name of the gauge
+     * @param supplier Supplier of the current value
+     */
+    public void registerGauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Removes a gauge.
+     *
+     * @param name Name of the gauge
+     */
+    public void unregisterGauge(String name) {
+        gauges.remove(name);
+    }
+
+    public void addListener(MetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(MetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gets the number of files processed successfully since the last reset.
+     *
+     * @return The processed file count
+     */
+    public long getFilesProcessed() {
+        return filesProcessed.sum();
+    }
+
+    /**
+     * Gets the number of bytes processed successfully since the last reset.
+     *
+     * @return The processed byte count
+     */
+    public long getBytesProcessed() {
+        return bytesProcessed.sum();
+    }
+
+    /**
+     * Takes a snapshot of the current metrics.
+     *
+     * @return The snapshot
+     */
+    public MetricsSnapshot snapshot() {
+        long now = System.nanoTime();
+
+        Map<Phase, Duration> durations = new EnumMap<>(Phase.class);
+        for (Map.Entry<Phase, AtomicLong> entry : phaseNanos.entrySet()) {
+            durations.put(entry.getKey(), Duration.ofNanos(entry.getValue().get()));
+        }
+        for (PhaseTimer timer : runningPhases) {
+            durations.merge(timer.phase, Duration.ofNanos(now - timer.start), Duration::plus);
+        }
+
+        Map<String, Long> gaugeValues = new LinkedHashMap<>();
+        gauges.forEach((name, supplier) -> gaugeValues.put(name, supplier.getAsLong()));
+
+        return new MetricsSnapshot(scannedEntries.sum(), directoriesCreated.sum(), filesProcessed.sum(),
+                bytesProcessed.sum(), failures.sum(), Duration.ofNanos(now - startedAt),
+                Collections.unmodifiableMap(durations), operationLatency.percentile(50),
+                operationLatency.percentile(99), operationLatency.max(), Collections.unmodifiableMap(gaugeValues));
+    }
+
+    /**
+     * Starts sending snapshots to the listeners at a fixed interval. Does nothing if reporting is already active.
+     *
+     * @param interval Time between snapshots
+     */
+    public synchronized void startReporting(Duration interval) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::publish, interval.toNanos(), interval.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops periodic reporting and sends a final snapshot to the listeners.
+     */
+    public synchronized void stopReporting() {
+        if (reporter == null) {
+            return;
+        }
+        reporter.shutdownNow();
+        reporter = null;
+        publish();
+    }
+
+    /**
+     * Sends a snapshot to all listeners.
+     */
+    public void publish() {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        MetricsSnapshot snapshot = snapshot();
+        for (MetricsListener listener : listeners) {
+            try {
+                listener.onSnapshot(snapshot);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Metrics listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Timer of a running phase.
+     */
+    public final class PhaseTimer implements AutoCloseable {
+        private final Phase phase;
+        private final long start = System.nanoTime();
+        private final PhaseEvent event = new PhaseEvent();
+
+        private PhaseTimer(Phase phase) {
+            this.phase = phase;
+            event.begin();
+        }
+
+        @Override
+        public void close() {
+            if (!runningPhases.remove(this)) {
+                return;
+            }
+            long nanos = System.nanoTime() - start;
+            phaseNanos.get(phase).addAndGet(nanos);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.name();
+                event.commit();
+            }
+
+            Duration duration = Duration.ofNanos(nanos);
+            LOGGER.fine(() -> phase + " phase took " + duration.toMillis() + " ms");
+            for (MetricsListener listener : listeners) {
+                listener.onPhaseCompleted(phase, duration);
+            }
+        }
+    }
+
+    /**
+     * Timer of a single running file operation.
+     */
+    public final class OperationTimer {
+        private final long start = System.nanoTime();
+        private final FileOperationEvent event = new FileOperationEvent();
+        private final String operationName;
+        private final String relativePath;
+        private final long size;
+
+        private OperationTimer(String operationName, String relativePath, long size) {
+            this.operationName = operationName;
+            this.relativePath = relativePath;
+            this.size = size;
+            event.begin();
+        }
+
+        /**
+         * Records the outcome of the operation. A failed operation is counted where its
+         * failure is recorded, see {@link #recordFailure()}.
+         *
+         * @param succeeded Whether the file was processed
+         */
+        public void finish(boolean succeeded) {
+            operationLatency.record(System.nanoTime() - start);
+            if (succeeded) {
+                filesProcessed.increment();
+                bytesProcessed.add(size);
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operationName;
+                event.path = relativePath;
+                event.size = size;
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
+    }
+}
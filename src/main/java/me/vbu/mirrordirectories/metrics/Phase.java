@@ -0,0 +1,26 @@
+package me.vbu.mirrordirectories.metrics;
+
+/**
+ * Phases of a mirror run that are timed separately.
+ */
+public enum Phase {
+    /**
+     * Walking and comparing the directory trees.
+     */
+    SCAN,
+
+    /**
+     * Creating the destination directories.
+     */
+    MKDIR,
+
+    /**
+     * Running the file operations.
+     */
+    COPY,
+
+    /**
+     * Removing entries only present in the destination.
+     */
+    PRUNE
+}
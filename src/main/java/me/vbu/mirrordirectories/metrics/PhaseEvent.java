@@ -0,0 +1,21 @@
+package me.vbu.mirrordirectories.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event covering a phase of a mirror run.
+ */
+@Name("me.vbu.mirrordirectories.Phase")
+@Label("Mirror Phase")
+@Category("Mirror Directories")
+@Description("Scan, directory creation or copy phase of a mirror run")
+@StackTrace(false)
+class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+}
@@ -0,0 +1,76 @@
+package me.vbu.mirrordirectories.metrics;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wrapper around a {@link Logger} that lets at most a fixed number of messages through per
+ * interval, for messages logged once per file. Messages are only built when their level is
+ * enabled and the limit is not reached; the number of dropped messages is logged once the
+ * next interval starts.
+ */
+public class RateLimitedLogger {
+
+    private final Logger logger;
+    private final long maxPerInterval;
+    private final long intervalNanos;
+
+    private final AtomicLong intervalStart = new AtomicLong(System.nanoTime());
+    private final AtomicLong logged = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * Creates a rate limited logger.
+     *
+     * @param logger The logger to write to
+     * @param maxPerInterval Maximum number of messages per interval
+     * @param interval Length of an interval
+     */
+    public RateLimitedLogger(Logger logger, long maxPerInterval, Duration interval) {
+        this.logger = logger;
+        this.maxPerInterval = maxPerInterval;
+        this.intervalNanos = interval.toNanos();
+    }
+
+    /**
+     * Logs a message unless the limit of the current interval is reached.
+     *
+     * @param level The level of the message
+     * @param message Supplier of the message
+     */
+    public void log(Level level, Supplier<String> message) {
+        log(level, message, null);
+    }
+
+    /**
+     * Logs a message with an exception unless the limit of the current interval is reached.
+     *
+     * @param level The level of the message
+     * @param message Supplier of the message
+     * @param thrown The exception, may be null
+     */
+    public void log(Level level, Supplier<String> message, Throwable thrown) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long start = intervalStart.get();
+        if (now - start >= intervalNanos && intervalStart.compareAndSet(start, now)) {
+            logged.set(0);
+            long dropped = suppressed.getAndSet(0);
+            if (dropped > 0) {
+                logger.log(level, dropped + " similar messages suppressed");
+            }
+        }
+
+        if (logged.incrementAndGet() > maxPerInterval) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        logger.log(level, thrown, message);
+    }
+}
@@ -0,0 +1,52 @@
+package me.vbu.mirrordirectories.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A single difference between source and destination, as emitted by a streaming comparison.
+ * A directory entry is always emitted before the entries below it. Entries only present in
+ * the destination are reported in mirror mode, an extraneous directory covering its whole subtree.
+ */
+@Getter @AllArgsConstructor
+public class DiffEntry {
+
+    /**
+     * The kind of difference.
+     */
+    public enum Kind {
+        MISSING_DIRECTORY,
+        MISSING_FILE,
+        MODIFIED_FILE,
+        EXTRANEOUS_DIRECTORY,
+        EXTRANEOUS_FILE;
+
+        /**
+         * Checks if entries of this kind describe a directory.
+         *
+         * @return True for directories
+         */
+        public boolean isDirectory() {
+            return this == MISSING_DIRECTORY || this == EXTRANEOUS_DIRECTORY;
+        }
+
+        /**
+         * Checks if entries of this kind only exist in the destination and are to be removed.
+         *
+         * @return True for extraneous entries
+         */
+        public boolean isExtraneous() {
+            return this == EXTRANEOUS_DIRECTORY || this == EXTRANEOUS_FILE;
+        }
+    }
+
+    private final Kind kind;
+    private final String relativePath;
+    private final long size;
+    private final long lastModified;
+
+    @Override
+    public String toString() {
+        return kind + " " + relativePath;
+    }
+}
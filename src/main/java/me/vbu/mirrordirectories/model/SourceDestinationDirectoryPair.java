@@ -4,7 +4,6 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
-import me.vbu.mirrordirectories.ui.views.components.DirectorySelectionPanel;
 
 import java.io.File;
 
@@ -15,9 +14,9 @@ public class SourceDestinationDirectoryPair {
     private File sourceDirectory;
     private File destinationDirectory;
 
-    public SourceDestinationDirectoryPair(DirectorySelectionPanel directorySelectionPanel){
-        sourceDirectory = directorySelectionPanel.getDirectoryPair().getSourceDirectory();
-        destinationDirectory = directorySelectionPanel.getDirectoryPair().getDestinationDirectory();
+    public SourceDestinationDirectoryPair(SourceDestinationDirectoryPair directoryPair){
+        sourceDirectory = directoryPair.getSourceDirectory();
+        destinationDirectory = directoryPair.getDestinationDirectory();
     }
 
     public boolean validateDirectories() {
@@ -0,0 +1,51 @@
+package me.vbu.mirrordirectories.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A single action planned by a two-way sync. A directory to be copied always precedes
+ * the entries below it, a directory to be deleted covers its whole subtree.
+ */
+@Getter @AllArgsConstructor
+public class SyncEntry {
+
+    /**
+     * What the sync does with the entry.
+     */
+    public enum Action {
+        COPY_TO_DESTINATION,
+        COPY_TO_SOURCE,
+        DELETE_FROM_DESTINATION,
+        DELETE_FROM_SOURCE,
+        /**
+         * Both sides changed the entry since the last sync, it is left alone on both sides.
+         */
+        CONFLICT;
+
+        /**
+         * Checks if the action copies the entry from one side to the other.
+         *
+         * @return True for copies
+         */
+        public boolean isCopy() {
+            return this == COPY_TO_DESTINATION || this == COPY_TO_SOURCE;
+        }
+    }
+
+    private final Action action;
+    private final String relativePath;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+
+    /**
+     * Why the entry conflicts, null for all other actions.
+     */
+    private final String reason;
+
+    @Override
+    public String toString() {
+        return action + " " + relativePath + (reason == null ? "" : " (" + reason + ")");
+    }
+}
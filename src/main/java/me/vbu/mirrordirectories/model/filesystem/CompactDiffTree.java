@@ -0,0 +1,228 @@
+package me.vbu.mirrordirectories.model.filesystem;
+
+import me.vbu.mirrordirectories.model.DiffEntry;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory efficient differences hierarchy for very large comparison results.
+ * All nodes live in a flat arena of primitive arrays indexed by int ids, with names stored
+ * as UTF-8 bytes in a single shared array, which takes well under 100 bytes per entry.
+ * The hierarchy is exposed through read-only {@link DirectoryNode} views created on demand,
+ * so code working with {@link Node} trees can use it unchanged.
+ */
+public class CompactDiffTree {
+
+    private static final byte KIND_DIRECTORY = 0;
+    private static final byte KIND_FILE = 1;
+    private static final byte KIND_MODIFIED_FILE = 2;
+    private static final byte KIND_EXTRANEOUS_DIRECTORY = 3;
+    private static final byte KIND_EXTRANEOUS_FILE = 4;
+
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int count;
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    private int[] firstChild = new int[INITIAL_CAPACITY];
+    private int[] lastChild = new int[INITIAL_CAPACITY];
+    private int[] nextSibling = new int[INITIAL_CAPACITY];
+    private int[] nameOffsets = new int[INITIAL_CAPACITY + 1];
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    private long[] lastModified = new long[INITIAL_CAPACITY];
+    private byte[] names = new byte[INITIAL_CAPACITY * 16];
+
+    private CompactDiffTree(String rootName) {
+        add(NONE, rootName, KIND_DIRECTORY, 0, 0);
+    }
+
+    /**
+     * Builds a tree from a stream of differences in which every directory precedes its contents.
+     * Directories only containing differences further down are added as they are needed.
+     *
+     * @param rootName Name of the root directory
+     * @param differences The differences
+     * @return The tree
+     */
+    public static CompactDiffTree build(String rootName, Iterator<DiffEntry> differences) {
+        CompactDiffTree tree = new CompactDiffTree(rootName);
+        Map<String, Integer> directories = new HashMap<>();
+        directories.put("", 0);
+
+        while (differences.hasNext()) {
+            DiffEntry entry = differences.next();
+            String path = entry.getRelativePath();
+            int separator = path.lastIndexOf(File.separatorChar);
+            int parent = tree.directory(directories, separator < 0 ? "" : path.substring(0, separator));
+            String name = path.substring(separator + 1);
+
+            switch (entry.getKind()) {
+                case MISSING_DIRECTORY -> directories.put(path,
+                        tree.add(parent, name, KIND_DIRECTORY, 0, entry.getLastModified()));
+                case MISSING_FILE -> tree.add(parent, name, KIND_FILE, entry.getSize(), entry.getLastModified());
+                case MODIFIED_FILE -> tree.add(parent, name, KIND_MODIFIED_FILE, entry.getSize(),
+                        entry.getLastModified());
+                case EXTRANEOUS_DIRECTORY -> tree.add(parent, name, KIND_EXTRANEOUS_DIRECTORY, 0,
+                        entry.getLastModified());
+                case EXTRANEOUS_FILE -> tree.add(parent, name, KIND_EXTRANEOUS_FILE, entry.getSize(),
+                        entry.getLastModified());
+            }
+        }
+
+        tree.trim();
+        return tree;
+    }
+
+    /**
+     * Gets a read-only view of the root directory.
+     *
+     * @return The root node
+     */
+    public DirectoryNode getRoot() {
+        return new DirectoryView(0);
+    }
+
+    /**
+     * Gets the number of nodes in the tree, including the root.
+     *
+     * @return The node count
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Estimates the heap used by the arena arrays.
+     *
+     * @return The approximate size in bytes
+     */
+    public long estimatedBytes() {
+        return kinds.length + 4L * (firstChild.length + lastChild.length + nextSibling.length + nameOffsets.length)
+                + 8L * (sizes.length + lastModified.length) + names.length;
+    }
+
+    /**
+     * Looks up the node of a directory, adding it and its missing ancestors as plain directories.
+     */
+    private int directory(Map<String, Integer> directories, String path) {
+        Integer id = directories.get(path);
+        if (id != null) {
+            return id;
+        }
+
+        int separator = path.lastIndexOf(File.separatorChar);
+        int parent = directory(directories, separator < 0 ? "" : path.substring(0, separator));
+        int created = add(parent, path.substring(separator + 1), KIND_DIRECTORY, 0, 0);
+        directories.put(path, created);
+        return created;
+    }
+
+    private int add(int parent, String name, byte kind, long size, long modified) {
+        ensureCapacity(count + 1);
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        int offset = nameOffsets[count];
+        if (offset + encoded.length > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, offset + encoded.length));
+        }
+        System.arraycopy(encoded, 0, names, offset, encoded.length);
+
+        int id = count++;
+        nameOffsets[count] = offset + encoded.length;
+        kinds[id] = kind;
+        sizes[id] = size;
+        lastModified[id] = modified;
+        firstChild[id] = NONE;
+        lastChild[id] = NONE;
+        nextSibling[id] = NONE;
+
+        if (parent != NONE) {
+            if (lastChild[parent] == NONE) {
+                firstChild[parent] = id;
+            } else {
+                nextSibling[lastChild[parent]] = id;
+            }
+            lastChild[parent] = id;
+        }
+        return id;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= kinds.length) {
+            return;
+        }
+        int grown = Math.max(capacity, kinds.length + (kinds.length >> 1));
+        kinds = Arrays.copyOf(kinds, grown);
+        firstChild = Arrays.copyOf(firstChild, grown);
+        lastChild = Arrays.copyOf(lastChild, grown);
+        nextSibling = Arrays.copyOf(nextSibling, grown);
+        nameOffsets = Arrays.copyOf(nameOffsets, grown + 1);
+        sizes = Arrays.copyOf(sizes, grown);
+        lastModified = Arrays.copyOf(lastModified, grown);
+    }
+
+    /**
+     * Releases unused capacity once the tree is complete; the last child links are only needed while building.
+     */
+    private void trim() {
+        kinds = Arrays.copyOf(kinds, count);
+        firstChild = Arrays.copyOf(firstChild, count);
+        lastChild = new int[0];
+        nextSibling = Arrays.copyOf(nextSibling, count);
+        nameOffsets = Arrays.copyOf(nameOffsets, count + 1);
+        sizes = Arrays.copyOf(sizes, count);
+        lastModified = Arrays.copyOf(lastModified, count);
+        names = Arrays.copyOf(names, nameOffsets[count]);
+    }
+
+    private String name(int id) {
+        return new String(names, nameOffsets[id], nameOffsets[id + 1] - nameOffsets[id], StandardCharsets.UTF_8);
+    }
+
+    private Node view(int id) {
+        return switch (kinds[id]) {
+            case KIND_DIRECTORY -> new DirectoryView(id);
+            case KIND_MODIFIED_FILE -> new ModifiedFileNode(name(id), sizes[id]);
+            case KIND_EXTRANEOUS_DIRECTORY -> new ExtraneousNode(name(id), true, 0);
+            case KIND_EXTRANEOUS_FILE -> new ExtraneousNode(name(id), false, sizes[id]);
+            default -> new FileNode(name(id), sizes[id]);
+        };
+    }
+
+    /**
+     * Read-only directory view of an arena node. Its children are materialized as views on each call.
+     */
+    private final class DirectoryView extends DirectoryNode {
+        private final int id;
+
+        private DirectoryView(int id) {
+            super(name(id), null);
+            this.id = id;
+        }
+
+        @Override
+        public Map<String, Node> getChildren() {
+            Map<String, Node> children = new LinkedHashMap<>();
+            for (int child = firstChild[id]; child != NONE; child = nextSibling[child]) {
+                Node node = view(child);
+                children.put(node.getName(), node);
+            }
+            return children;
+        }
+
+        @Override
+        public boolean hasChildren() {
+            return firstChild[id] != NONE;
+        }
+
+        @Override
+        public void addChild(Node child) {
+            throw new UnsupportedOperationException("Compact difference trees are read-only");
+        }
+    }
+}
@@ -20,8 +20,19 @@ public class DirectoryNode extends Node {
      * @param name The name of the directory
      */
     public DirectoryNode(String name) {
+        this(name, new HashMap<>());
+    }
+
+    /**
+     * Creates a new DirectoryNode backed by the given children map, for subclasses
+     * that provide their children differently.
+     *
+     * @param name The name of the directory
+     * @param children The map holding the children, keyed by name
+     */
+    protected DirectoryNode(String name, Map<String, Node> children) {
         super(name);
-        this.children = new HashMap<>();
+        this.children = children;
     }
 
     /**
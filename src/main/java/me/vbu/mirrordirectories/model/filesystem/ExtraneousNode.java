@@ -0,0 +1,44 @@
+package me.vbu.mirrordirectories.model.filesystem;
+
+import lombok.Getter;
+
+/**
+ * Represents a file or directory that only exists in the destination, found by a
+ * comparison in mirror mode. An extraneous directory stands for its whole subtree,
+ * whose contents are not listed, so it never has children of its own.
+ */
+public class ExtraneousNode extends Node {
+
+    private final boolean directory;
+
+    @Getter
+    private final long size;
+
+    /**
+     * Creates a new ExtraneousNode.
+     *
+     * @param name The name of the destination entry
+     * @param directory Whether the entry is a directory
+     * @param size The size of a file in bytes, 0 for directories
+     */
+    public ExtraneousNode(String name, boolean directory, long size) {
+        super(name);
+        this.directory = directory;
+        this.size = size;
+    }
+
+    /**
+     * Checks if this node represents a directory.
+     *
+     * @return True if the extraneous entry is a directory
+     */
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " [EXTRANEOUS]";
+    }
+}
@@ -1,18 +1,34 @@
 package me.vbu.mirrordirectories.model.filesystem;
 
+import lombok.Getter;
+
 /**
  * Represents a file in the file system.
  * This is a leaf node in the file system hierarchy.
  */
+@Getter
 public class FileNode extends Node {
 
+    private final long size;
+
     /**
      * Creates a new FileNode with the given name.
      *
      * @param name The name of the file
      */
     public FileNode(String name) {
+        this(name, 0);
+    }
+
+    /**
+     * Creates a new FileNode with the given name and size.
+     *
+     * @param name The name of the file
+     * @param size The size of the file in bytes
+     */
+    public FileNode(String name, long size) {
         super(name);
+        this.size = size;
     }
 
     /**
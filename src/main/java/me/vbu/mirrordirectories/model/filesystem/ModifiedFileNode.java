@@ -0,0 +1,23 @@
+package me.vbu.mirrordirectories.model.filesystem;
+
+/**
+ * Represents a file that exists in both source and destination
+ * but whose contents differ, so it has to be mirrored again.
+ */
+public class ModifiedFileNode extends FileNode {
+
+    /**
+     * Creates a new ModifiedFileNode with the given name and size.
+     *
+     * @param name The name of the file
+     * @param size The size of the source file in bytes
+     */
+    public ModifiedFileNode(String name, long size) {
+        super(name, size);
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " [MODIFIED]";
+    }
+}
@@ -0,0 +1,97 @@
+package me.vbu.mirrordirectories.model.filesystem;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Aggregate file count and byte total of a subtree of the differences hierarchy.
+ */
+@Getter @AllArgsConstructor
+public class TreeStatistics {
+
+    private final long fileCount;
+    private final long totalBytes;
+
+    /**
+     * Computes the statistics of every directory of a tree in a single bottom-up walk, each
+     * directory adding its totals to its parent's once all its children are done. The walk is
+     * iterative, so arbitrarily deep trees are fine.
+     *
+     * @param root The root directory
+     * @return The statistics keyed by directory path, names joined by "/" and empty for the root
+     */
+    public static Map<String, TreeStatistics> ofDirectories(DirectoryNode root) {
+        Map<String, TreeStatistics> statistics = new HashMap<>();
+        Deque<Aggregate> pending = new ArrayDeque<>();
+        pending.push(new Aggregate(root, ""));
+
+        while (!pending.isEmpty()) {
+            Aggregate current = pending.peek();
+            if (current.children.hasNext()) {
+                Node child = current.children.next();
+                if (child instanceof DirectoryNode directory) {
+                    pending.push(new Aggregate(directory, childPath(current.path, child.getName())));
+                } else if (child instanceof FileNode file) {
+                    current.files++;
+                    current.bytes += file.getSize();
+                }
+            } else {
+                pending.pop();
+                statistics.put(current.path, new TreeStatistics(current.files, current.bytes));
+                Aggregate parent = pending.peek();
+                if (parent != null) {
+                    parent.files += current.files;
+                    parent.bytes += current.bytes;
+                }
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Builds the key of a directory below another in the map of {@link #ofDirectories(DirectoryNode)}.
+     *
+     * @param parentPath Key of the parent directory
+     * @param name Name of the directory
+     * @return The key of the directory
+     */
+    public static String childPath(String parentPath, String name) {
+        return parentPath.isEmpty() ? name : parentPath + "/" + name;
+    }
+
+    /**
+     * Formats a byte count for display, such as "1.5 GB".
+     *
+     * @param bytes The byte count
+     * @return The formatted size
+     */
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String units = "KMGTPE";
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format("%.1f %sB", bytes / Math.pow(1024, unit), units.charAt(unit - 1));
+    }
+
+    /**
+     * Totals of a directory whose children are still being walked.
+     */
+    private static final class Aggregate {
+        private final String path;
+        private final Iterator<Node> children;
+        private long files;
+        private long bytes;
+
+        private Aggregate(DirectoryNode directory, String path) {
+            this.path = path;
+            this.children = directory.getChildren().values().iterator();
+        }
+    }
+}
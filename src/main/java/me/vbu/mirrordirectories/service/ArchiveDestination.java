@@ -0,0 +1,537 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+import me.vbu.mirrordirectories.metrics.MirrorMetrics;
+import me.vbu.mirrordirectories.model.DiffEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Destination that stores mirrored files in zip archives instead of as individual files, for
+ * mirrors of many small files to storage where creating files is expensive. Every run writes
+ * new delta archives, split into shards of bounded size, and never rewrites earlier ones. An
+ * index in the destination directory records which archive holds the current version of each
+ * file, with its size, modification time and content hash, so comparisons list the destination
+ * from the index. Versions superseded or removed later stay in their archives.
+ */
+public class ArchiveDestination {
+
+    /**
+     * Name of the index file in the destination directory.
+     */
+    public static final String INDEX_FILE = "mirror-archive.index";
+
+    private static final String SHARD_PREFIX = "mirror-archive-";
+    private static final String SHARD_SUFFIX = ".zip";
+
+    private static final int MAGIC = 0x4d444149;
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of failures attached as suppressed exceptions to the reported error.
+     */
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    @Getter
+    private final Path root;
+
+    /**
+     * Uncompressed bytes written to a shard before the next shard is started.
+     */
+    @Getter @Setter
+    private long maxShardBytes = 1L << 30;
+
+    /**
+     * Deflate level of the archived files, fast compression by default since the cost of
+     * mirroring small files lies in their number rather than their size.
+     */
+    @Getter @Setter
+    private int compressionLevel = Deflater.BEST_SPEED;
+
+    /**
+     * Relative directory path, using '/' separators, to the entries of that directory.
+     */
+    private final Map<String, Map<String, ArchivedEntry>> directories = new ConcurrentHashMap<>();
+
+    private final Queue<FileOperationFailure> failures = new ConcurrentLinkedQueue<>();
+
+    private int nextShard = 1;
+
+    private ArchiveDestination(Path root) {
+        this.root = root;
+        directories.put("", new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Opens the archives of a destination directory, reading its index if there is one.
+     *
+     * @param root The destination directory
+     * @return The archive destination
+     * @throws IOException If the index exists but cannot be read
+     */
+    public static ArchiveDestination open(Path root) throws IOException {
+        ArchiveDestination destination = new ArchiveDestination(root.toAbsolutePath().normalize());
+        try {
+            destination.load();
+        } catch (NoSuchFileException e) {
+            // Nothing archived yet
+        }
+        return destination;
+    }
+
+    /**
+     * Checks whether a directory is recorded in the index.
+     *
+     * @param relativePath Relative path of the directory, empty for the root
+     * @return True if the directory exists in the archives
+     */
+    public boolean isDirectory(String relativePath) {
+        return directories.containsKey(normalize(relativePath));
+    }
+
+    /**
+     * Lists a directory of the archived tree, sorted by name.
+     *
+     * @param relativeDir Relative path of the directory
+     * @return The archived entries, empty for unknown directories
+     */
+    public List<DirectoryEntry> list(String relativeDir) {
+        Map<String, ArchivedEntry> entries = directories.get(normalize(relativeDir));
+        if (entries == null) {
+            return new ArrayList<>();
+        }
+
+        Path dir = root.resolve(relativeDir);
+        List<DirectoryEntry> listing = new ArrayList<>(entries.size());
+        entries.forEach((name, entry) -> listing.add(new DirectoryEntry(name, dir.resolve(name),
+                entry.getShard() == 0, entry.getSize(), entry.getLastModified())));
+        listing.sort(Comparator.comparing(DirectoryEntry::getName));
+        return listing;
+    }
+
+    /**
+     * Gets the content hash of an archived file, computed by {@link ContentHasher#newDigest()} while archiving.
+     *
+     * @param relativePath Relative path of the file
+     * @return The hash, or null for unknown files
+     */
+    public byte[] getHash(String relativePath) {
+        ArchivedEntry entry = find(normalize(relativePath));
+        return entry == null ? null : entry.getHash();
+    }
+
+    /**
+     * Opens the current version of an archived file for reading.
+     *
+     * @param relativePath Relative path of the file
+     * @return Stream of the file contents, closing its archive when closed
+     * @throws IOException If the file is not archived or its archive cannot be read
+     */
+    public InputStream openFile(String relativePath) throws IOException {
+        String key = normalize(relativePath);
+        ArchivedEntry entry = find(key);
+        if (entry == null || entry.getShard() == 0) {
+            throw new NoSuchFileException(relativePath);
+        }
+
+        ZipFile zip = new ZipFile(shardPath(entry.getShard()).toFile());
+        ZipEntry zipEntry = zip.getEntry(key);
+        if (zipEntry == null) {
+            zip.close();
+            throw new IOException("Archive " + shardPath(entry.getShard()).getFileName() + " lacks " + relativePath);
+        }
+        return new FilterInputStream(zip.getInputStream(zipEntry)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    zip.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Forgets a file or directory, including everything below a directory. Its data stays in the archives.
+     *
+     * @param relativePath Relative path of the entry
+     */
+    public void remove(String relativePath) {
+        String key = normalize(relativePath);
+        Map<String, ArchivedEntry> entries = directories.get(parent(key));
+        if (entries != null) {
+            entries.remove(name(key));
+        }
+        directories.keySet().removeIf(dir -> dir.equals(key) || dir.startsWith(key + "/"));
+    }
+
+    /**
+     * Gets the failures collected during the last write.
+     *
+     * @return The failures
+     */
+    public List<FileOperationFailure> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * Archives the files of a stream of differences into new shards, one after another, and
+     * saves the index. Directories are only recorded in the index, extraneous entries are skipped.
+     * A file that cannot be read is recorded as a failure and the remaining files are archived.
+     *
+     * @param differences The differences, each directory preceding its contents
+     * @param sourceRoot Source root directory
+     * @param metrics Metrics receiving a file operation per archived file
+     * @throws IOException If an archive or the index cannot be written, or any file could not be archived
+     */
+    public void write(Iterator<DiffEntry> differences, Path sourceRoot, MirrorMetrics metrics) throws IOException {
+        failures.clear();
+        ShardWriter writer = null;
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try {
+            while (differences.hasNext()) {
+                DiffEntry entry = differences.next();
+                if (entry.getKind().isExtraneous()) {
+                    continue;
+                }
+                String key = normalize(entry.getRelativePath());
+                if (entry.getKind().isDirectory()) {
+                    recordDirectory(key);
+                    metrics.recordDirectoryCreated();
+                    continue;
+                }
+
+                if (writer == null || writer.bytes >= maxShardBytes) {
+                    if (writer != null) {
+                        writer.close();
+                    }
+                    writer = newShard();
+                }
+                archiveFile(writer, key, entry, sourceRoot, metrics, buffer);
+            }
+        } finally {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+            } finally {
+                save();
+            }
+        }
+
+        reportFailures();
+    }
+
+    /**
+     * Appends a single file to the current shard and records it in the index.
+     */
+    private void archiveFile(ShardWriter writer, String key, DiffEntry entry, Path sourceRoot, MirrorMetrics metrics,
+                             byte[] buffer) throws IOException {
+        Path sourcePath = sourceRoot.resolve(entry.getRelativePath());
+        MirrorMetrics.OperationTimer timer = metrics.startOperation("Archive", entry.getRelativePath(), entry.getSize());
+        boolean succeeded = false;
+        try (InputStream in = Files.newInputStream(sourcePath)) {
+            BasicFileAttributes attributes = Files.readAttributes(sourcePath, BasicFileAttributes.class);
+            ZipEntry zipEntry = new ZipEntry(key);
+            zipEntry.setLastModifiedTime(attributes.lastModifiedTime());
+            writer.putNextEntry(zipEntry);
+
+            MessageDigest digest = ContentHasher.newDigest();
+            long size = 0;
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    writer.write(buffer, read);
+                    digest.update(buffer, 0, read);
+                    size += read;
+                }
+            } finally {
+                writer.closeEntry();
+            }
+
+            writer.bytes += size;
+            recordFile(key, new ArchivedEntry(writer.shard, size, attributes.lastModifiedTime().toMillis(),
+                    digest.digest()));
+            succeeded = true;
+        } catch (IOException e) {
+            if (writer.isBroken()) {
+                throw e;
+            }
+            failures.add(new FileOperationFailure(entry.getRelativePath(), e));
+            metrics.recordFailure();
+        } finally {
+            timer.finish(succeeded);
+        }
+    }
+
+    /**
+     * Starts the next shard, skipping numbers of shards left behind by an interrupted run.
+     */
+    private ShardWriter newShard() throws IOException {
+        Path path = shardPath(nextShard);
+        while (Files.exists(path)) {
+            path = shardPath(++nextShard);
+        }
+        int shard = nextShard++;
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                BUFFER_SIZE));
+        zip.setLevel(compressionLevel);
+        return new ShardWriter(shard, zip, channel);
+    }
+
+    private Path shardPath(int shard) {
+        return root.resolve(String.format("%s%06d%s", SHARD_PREFIX, shard, SHARD_SUFFIX));
+    }
+
+    private void recordDirectory(String key) {
+        if (key.isEmpty() || directories.containsKey(key)) {
+            return;
+        }
+        recordDirectory(parent(key));
+        directories.put(key, new ConcurrentHashMap<>());
+        directories.get(parent(key)).put(name(key), ArchivedEntry.DIRECTORY);
+    }
+
+    private void recordFile(String key, ArchivedEntry entry) {
+        recordDirectory(parent(key));
+        directories.get(parent(key)).put(name(key), entry);
+    }
+
+    private ArchivedEntry find(String key) {
+        Map<String, ArchivedEntry> entries = directories.get(parent(key));
+        return entries == null ? null : entries.get(name(key));
+    }
+
+    /**
+     * Reads the index, replacing all entries.
+     *
+     * @throws IOException If the index cannot be read or is not an archive index
+     */
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(root.resolve(INDEX_FILE))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported archive index format");
+            }
+            nextShard = in.readInt();
+
+            directories.clear();
+            int directoryCount = in.readInt();
+            for (int i = 0; i < directoryCount; i++) {
+                String dir = in.readUTF();
+                int entryCount = in.readInt();
+                Map<String, ArchivedEntry> entries = new ConcurrentHashMap<>(Math.max(16, entryCount * 2));
+
+                for (int j = 0; j < entryCount; j++) {
+                    String name = in.readUTF();
+                    int shard = in.readInt();
+                    if (shard == 0) {
+                        entries.put(name, ArchivedEntry.DIRECTORY);
+                        continue;
+                    }
+                    long size = in.readLong();
+                    long lastModified = in.readLong();
+                    byte[] hash = new byte[in.readUnsignedShort()];
+                    in.readFully(hash);
+                    entries.put(name, new ArchivedEntry(shard, size, lastModified, hash));
+                }
+                directories.put(dir, entries);
+            }
+        }
+    }
+
+    /**
+     * Writes the index, replacing the previous one atomically. The new index is forced to the
+     * device before it replaces the old one, so a crash leaves either of them intact.
+     *
+     * @throws IOException If the index cannot be written
+     */
+    public void save() throws IOException {
+        Path indexFile = root.resolve(INDEX_FILE);
+        Path tempFile = indexFile.resolveSibling(INDEX_FILE + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nextShard);
+
+            Map<String, Map<String, ArchivedEntry>> snapshot = Map.copyOf(directories);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Map<String, ArchivedEntry>> dir : snapshot.entrySet()) {
+                Map<String, ArchivedEntry> entries = Map.copyOf(dir.getValue());
+                out.writeUTF(dir.getKey());
+                out.writeInt(entries.size());
+
+                for (Map.Entry<String, ArchivedEntry> item : entries.entrySet()) {
+                    ArchivedEntry entry = item.getValue();
+                    out.writeUTF(item.getKey());
+                    out.writeInt(entry.getShard());
+                    if (entry.getShard() != 0) {
+                        out.writeLong(entry.getSize());
+                        out.writeLong(entry.getLastModified());
+                        out.writeShort(entry.getHash().length);
+                        out.write(entry.getHash());
+                    }
+                }
+            }
+            out.flush();
+            channel.force(false);
+        }
+
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Throws a single exception summarizing all collected failures, if any.
+     */
+    private void reportFailures() throws IOException {
+        if (failures.isEmpty()) {
+            return;
+        }
+
+        IOException error = new IOException("Failed to archive " + failures.size() + " item(s), first: "
+                + failures.peek());
+        failures.stream()
+                .limit(MAX_REPORTED_FAILURES)
+                .forEach(failure -> error.addSuppressed(failure.getCause()));
+        throw error;
+    }
+
+    private static String normalize(String relativePath) {
+        String path = relativePath.replace(File.separatorChar, '/');
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        return path;
+    }
+
+    private static String parent(String key) {
+        int index = key.lastIndexOf('/');
+        return index < 0 ? "" : key.substring(0, index);
+    }
+
+    private static String name(String key) {
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Index entry of an archived file, or of a directory when its shard is 0.
+     */
+    @Getter @AllArgsConstructor
+    private static class ArchivedEntry {
+        private static final ArchivedEntry DIRECTORY = new ArchivedEntry(0, 0, 0, null);
+
+        private final int shard;
+        private final long size;
+        private final long lastModified;
+        private final byte[] hash;
+    }
+
+    /**
+     * Shard being written by the current run.
+     */
+    private static final class ShardWriter {
+        private final int shard;
+        private final ZipOutputStream zip;
+        private final FileChannel channel;
+        private long bytes;
+        private boolean broken;
+
+        private ShardWriter(int shard, ZipOutputStream zip, FileChannel channel) {
+            this.shard = shard;
+            this.zip = zip;
+            this.channel = channel;
+        }
+
+        /**
+         * Checks whether the archive itself failed, rather than the file being archived.
+         */
+        private boolean isBroken() {
+            return broken;
+        }
+
+        private void putNextEntry(ZipEntry entry) throws IOException {
+            try {
+                zip.putNextEntry(entry);
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        private void write(byte[] buffer, int length) throws IOException {
+            try {
+                zip.write(buffer, 0, length);
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        private void closeEntry() throws IOException {
+            if (broken) {
+                return;
+            }
+            try {
+                zip.closeEntry();
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Completes the archive and forces it to the device, so an index saved afterwards never
+         * refers to archive data that a crash can still lose.
+         */
+        private void close() throws IOException {
+            try {
+                if (!broken) {
+                    zip.finish();
+                    zip.flush();
+                    channel.force(false);
+                }
+            } finally {
+                zip.close();
+            }
+        }
+    }
+}
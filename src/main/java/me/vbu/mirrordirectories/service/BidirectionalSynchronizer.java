@@ -0,0 +1,442 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+import lombok.Setter;
+import me.vbu.mirrordirectories.metrics.MirrorMetrics;
+import me.vbu.mirrordirectories.metrics.Phase;
+import me.vbu.mirrordirectories.metrics.RateLimitedLogger;
+import me.vbu.mirrordirectories.model.DiffEntry;
+import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
+import me.vbu.mirrordirectories.model.SyncEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Two-way sync of a directory pair. Both trees are walked once, in a single sort-merge pass
+ * per directory, and every difference is classified against the {@link SyncState} of the
+ * last sync: an entry only one side changed, created or deleted is transferred or deleted
+ * accordingly, an entry both sides changed is a conflict and left alone until resolved by
+ * hand. Transfers in both directions share the worker pool of one {@link CopyEngine}.
+ */
+public class BidirectionalSynchronizer {
+
+    private static final Logger LOGGER = Logger.getLogger(BidirectionalSynchronizer.class.getName());
+
+    /**
+     * Per item messages are limited, a directory tree that cannot be read fails on every entry.
+     */
+    private static final RateLimitedLogger ITEM_LOGGER = new RateLimitedLogger(LOGGER, 50, Duration.ofSeconds(1));
+
+    @Getter
+    private final SourceDestinationDirectoryPair directoryPair;
+
+    /**
+     * Operation copying files in either direction.
+     */
+    @Getter @Setter
+    private FileOperation fileOperation = new SizeClassedCopyOperation();
+
+    /**
+     * Number of worker threads used to walk the directory trees.
+     */
+    @Getter
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Rules deciding which entries are synced, null to sync everything. Excluded entries are
+     * left alone on both sides and excluded directories are not listed.
+     */
+    @Getter @Setter
+    private PathFilter filter;
+
+    /**
+     * Metrics of the current or last sync, reset when planning starts.
+     */
+    @Getter
+    private final MirrorMetrics metrics = new MirrorMetrics();
+
+    /**
+     * Engine running the transfers of both directions, configurable for worker count.
+     */
+    @Getter
+    private final CopyEngine copyEngine = new CopyEngine(metrics);
+
+    /**
+     * Removes entries deleted on the other side, configurable for deletion or trash.
+     */
+    @Getter
+    private final DestinationPruner pruner = new DestinationPruner(metrics);
+
+    private final Queue<FileOperationFailure> pruneFailures = new ConcurrentLinkedQueue<>();
+
+    private SyncState state;
+
+    private long removedEntries;
+
+    /**
+     * Creates a synchronizer for a directory pair. The state of its last sync is loaded when
+     * the first sync is planned.
+     *
+     * @param directoryPair The directories to keep in sync
+     */
+    public BidirectionalSynchronizer(SourceDestinationDirectoryPair directoryPair) {
+        this.directoryPair = directoryPair;
+    }
+
+    /**
+     * Sets the number of worker threads used when walking the directory trees.
+     *
+     * @param parallelism The number of worker threads, at least 1
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Gets the number of entries deleted by the last sync, on either side.
+     *
+     * @return The removed entry count
+     */
+    public long getRemovedEntries() {
+        return removedEntries;
+    }
+
+    /**
+     * Gets the items that could not be transferred or deleted by the last sync.
+     *
+     * @return The failures
+     */
+    public List<FileOperationFailure> getFailures() {
+        List<FileOperationFailure> failures = new ArrayList<>(copyEngine.getFailures());
+        failures.addAll(pruneFailures);
+        return failures;
+    }
+
+    /**
+     * Walks both trees and plans the actions that bring them in sync, without changing either.
+     * Entries found equal on both sides are recorded in the sync state on the way. A directory
+     * that cannot be listed on either side is skipped, so it never looks deleted.
+     *
+     * @return The planned actions in tree order, including conflicts
+     */
+    public List<SyncEntry> plan() {
+        if (!directoryPair.validateDirectories()) {
+            throw new IllegalArgumentException("Invalid source or destination directory");
+        }
+
+        Path sourceRoot = directoryPair.getSourceDirectory().toPath();
+        Path destRoot = directoryPair.getDestinationDirectory().toPath();
+        if (state == null) {
+            state = SyncState.forPair(sourceRoot, destRoot);
+        }
+        metrics.reset();
+
+        SyncTask root = new SyncTask("", sourceRoot, destRoot);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        metrics.registerGauge("scan.queued", pool::getQueuedTaskCount);
+        try (MirrorMetrics.PhaseTimer ignored = metrics.startPhase(Phase.SCAN)) {
+            pool.invoke(root);
+        } finally {
+            pool.shutdown();
+            metrics.unregisterGauge("scan.queued");
+        }
+        return root.actions;
+    }
+
+    /**
+     * Plans and runs a sync.
+     *
+     * @return The conflicts left unresolved
+     * @throws IOException If any item could not be transferred or deleted
+     */
+    public List<SyncEntry> synchronize() throws IOException {
+        List<SyncEntry> actions = plan();
+        synchronize(actions);
+        return actions.stream().filter(action -> action.getAction() == SyncEntry.Action.CONFLICT).toList();
+    }
+
+    /**
+     * Runs planned actions: transfers in both directions through the copy engine, then deletions
+     * on both sides. Deletions run even if some transfers failed, since they concern other entries.
+     * The sync state is updated with every completed action and saved afterwards.
+     *
+     * @param actions Actions returned by {@link #plan()}
+     * @throws IOException If any item could not be transferred or deleted
+     */
+    public void synchronize(List<SyncEntry> actions) throws IOException {
+        if (state == null) {
+            throw new IllegalStateException("No sync has been planned yet. Call plan() first.");
+        }
+
+        Path sourceRoot = directoryPair.getSourceDirectory().toPath();
+        Path destRoot = directoryPair.getDestinationDirectory().toPath();
+        List<DiffEntry> transfers = new ArrayList<>();
+        Set<String> toSource = new HashSet<>();
+        List<DiffEntry> deleteFromSource = new ArrayList<>();
+        List<DiffEntry> deleteFromDestination = new ArrayList<>();
+
+        for (SyncEntry action : actions) {
+            DiffEntry.Kind kind = action.isDirectory() ? DiffEntry.Kind.MISSING_DIRECTORY : DiffEntry.Kind.MISSING_FILE;
+            DiffEntry entry = new DiffEntry(kind, action.getRelativePath(), action.getSize(), action.getLastModified());
+            switch (action.getAction()) {
+                case COPY_TO_DESTINATION -> transfers.add(entry);
+                case COPY_TO_SOURCE -> {
+                    transfers.add(entry);
+                    toSource.add(action.getRelativePath());
+                }
+                case DELETE_FROM_SOURCE -> deleteFromSource.add(entry);
+                case DELETE_FROM_DESTINATION -> deleteFromDestination.add(entry);
+                case CONFLICT -> {
+                    // Left alone on both sides
+                }
+            }
+        }
+
+        StateUpdater updater = new StateUpdater();
+        pruneFailures.clear();
+        removedEntries = 0;
+        IOException failure = null;
+        try {
+            copyEngine.run(transfers.iterator(), entry -> toSource.contains(entry.getRelativePath()),
+                           sourceRoot, destRoot, fileOperation, updater);
+        } catch (IOException e) {
+            failure = e;
+        }
+        failure = prune(sourceRoot, deleteFromSource, updater, failure);
+        failure = prune(destRoot, deleteFromDestination, updater, failure);
+
+        try {
+            state.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save sync state (" + e.getMessage() + ")");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Deletes entries on one side, collecting the failures.
+     *
+     * @return The first failure of the sync so far
+     */
+    private IOException prune(Path root, List<DiffEntry> entries, StateUpdater updater, IOException failure) {
+        if (entries.isEmpty()) {
+            return failure;
+        }
+        pruner.setParallelism(parallelism);
+        try {
+            pruner.prune(root, entries, updater);
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
+            }
+        } finally {
+            removedEntries += pruner.getRemovedEntries();
+            pruneFailures.addAll(pruner.getFailures());
+        }
+        return failure;
+    }
+
+    /**
+     * Checks whether a directory and everything below it is unchanged since the last sync,
+     * so that deleting it on this side loses nothing.
+     */
+    private boolean isUnchangedTree(Path dir, String relativePath) {
+        List<DirectoryEntry> listing;
+        try {
+            listing = DirectoryListing.listOrFail(dir);
+        } catch (IOException e) {
+            return false;
+        }
+        metrics.recordScannedEntries(listing.size());
+
+        for (DirectoryEntry entry : PathFilter.apply(filter, relativePath, listing)) {
+            String path = childPath(relativePath, entry.getName());
+            if (!state.matches(path, entry, DirectoryComparator.MODIFIED_TIME_TOLERANCE_MILLIS)
+                    || entry.isDirectory() && !isUnchangedTree(entry.getPath(), path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String childPath(String relativePath, String name) {
+        return relativePath.isEmpty() ? name : relativePath + File.separator + name;
+    }
+
+    /**
+     * Fork-join task planning a single directory. With both sides present their listings are
+     * sort-merged; with one side missing, everything below the present side is new and copied.
+     * A task plans its own entries first and appends the plans of its subdirectories, so a
+     * copied directory always precedes its contents.
+     */
+    private final class SyncTask extends RecursiveAction {
+        private final String relativePath;
+        private final Path sourceDir;
+        private final Path destDir;
+        private final List<SyncEntry> actions = new ArrayList<>();
+        private final List<SyncTask> subtasks = new ArrayList<>();
+
+        private SyncTask(String relativePath, Path sourceDir, Path destDir) {
+            this.relativePath = relativePath;
+            this.sourceDir = sourceDir;
+            this.destDir = destDir;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryEntry> sourceListing;
+            List<DirectoryEntry> destListing;
+            try {
+                sourceListing = sourceDir == null ? List.of() : DirectoryListing.listOrFail(sourceDir);
+                destListing = destDir == null ? List.of() : DirectoryListing.listOrFail(destDir);
+            } catch (IOException e) {
+                ITEM_LOGGER.log(Level.WARNING, () -> "Failed to list directory: " + relativePath
+                        + " (" + e.getMessage() + ")");
+                return;
+            }
+            metrics.recordScannedEntries(sourceListing.size() + destListing.size());
+            sourceListing = PathFilter.apply(filter, relativePath, sourceListing);
+            destListing = PathFilter.apply(filter, relativePath, destListing);
+
+            Set<String> names = new HashSet<>();
+            DirectoryListing.merge(sourceListing, destListing, new DirectoryListing.MergeHandler() {
+                @Override
+                public void onMissing(DirectoryEntry sourceEntry) {
+                    names.add(sourceEntry.getName());
+                    planOneSided(sourceEntry, true);
+                }
+
+                @Override
+                public void onExtra(DirectoryEntry destinationEntry) {
+                    names.add(destinationEntry.getName());
+                    planOneSided(destinationEntry, false);
+                }
+
+                @Override
+                public void onCommon(DirectoryEntry sourceEntry, DirectoryEntry destinationEntry) {
+                    names.add(sourceEntry.getName());
+                    planCommon(sourceEntry, destinationEntry);
+                }
+            });
+
+            if (sourceDir != null && destDir != null) {
+                state.retainEntries(relativePath, names);
+            }
+
+            RecursiveAction.invokeAll(subtasks);
+            for (SyncTask subtask : subtasks) {
+                actions.addAll(subtask.actions);
+            }
+        }
+
+        /**
+         * Plans an entry present on one side only: new on that side, or deleted on the other one.
+         */
+        private void planOneSided(DirectoryEntry entry, boolean inSource) {
+            String path = childPath(relativePath, entry.getName());
+            if (DestinationPruner.isProtected(path)) {
+                return;
+            }
+
+            if (sourceDir == null || destDir == null || !state.contains(path)) {
+                add(inSource ? SyncEntry.Action.COPY_TO_DESTINATION : SyncEntry.Action.COPY_TO_SOURCE,
+                        entry, path, null);
+                if (entry.isDirectory()) {
+                    subtasks.add(inSource ? new SyncTask(path, entry.getPath(), null)
+                            : new SyncTask(path, null, entry.getPath()));
+                }
+            } else if (state.matches(path, entry, DirectoryComparator.MODIFIED_TIME_TOLERANCE_MILLIS)
+                    && (!entry.isDirectory() || isUnchangedTree(entry.getPath(), path))) {
+                add(inSource ? SyncEntry.Action.DELETE_FROM_SOURCE : SyncEntry.Action.DELETE_FROM_DESTINATION,
+                        entry, path, null);
+            } else {
+                add(SyncEntry.Action.CONFLICT, entry, path, inSource
+                        ? "modified in source, deleted in destination"
+                        : "deleted in source, modified in destination");
+            }
+        }
+
+        /**
+         * Plans an entry present on both sides, copying it from the only side that changed it.
+         */
+        private void planCommon(DirectoryEntry sourceEntry, DirectoryEntry destinationEntry) {
+            String path = childPath(relativePath, sourceEntry.getName());
+            long tolerance = DirectoryComparator.MODIFIED_TIME_TOLERANCE_MILLIS;
+
+            if (sourceEntry.isDirectory() && destinationEntry.isDirectory()) {
+                state.recordDirectory(path);
+                subtasks.add(new SyncTask(path, sourceEntry.getPath(), destinationEntry.getPath()));
+            } else if (sourceEntry.isDirectory() || destinationEntry.isDirectory()) {
+                add(SyncEntry.Action.CONFLICT, sourceEntry, path, "file on one side, directory on the other");
+            } else if (sourceEntry.getSize() == destinationEntry.getSize()
+                    && Math.abs(sourceEntry.getLastModified() - destinationEntry.getLastModified()) <= tolerance) {
+                state.recordFile(path, destinationEntry.getSize(), destinationEntry.getLastModified());
+            } else {
+                boolean sourceChanged = !state.matches(path, sourceEntry, tolerance);
+                boolean destinationChanged = !state.matches(path, destinationEntry, tolerance);
+                if (!destinationChanged) {
+                    add(SyncEntry.Action.COPY_TO_DESTINATION, sourceEntry, path, null);
+                } else if (!sourceChanged) {
+                    add(SyncEntry.Action.COPY_TO_SOURCE, destinationEntry, path, null);
+                } else {
+                    add(SyncEntry.Action.CONFLICT, sourceEntry, path, state.contains(path)
+                            ? "modified on both sides"
+                            : "created on both sides with different contents");
+                }
+            }
+        }
+
+        private void add(SyncEntry.Action action, DirectoryEntry entry, String path, String reason) {
+            actions.add(new SyncEntry(action, path, entry.isDirectory(), entry.isDirectory() ? 0 : entry.getSize(),
+                    entry.getLastModified(), reason));
+        }
+    }
+
+    /**
+     * Records completed actions in the sync state, the side written then matching the other.
+     */
+    private final class StateUpdater implements ProcessedItemListener {
+        @Override
+        public void onDirectoryCreated(String relativePath, Path destPath) {
+            state.recordDirectory(relativePath);
+        }
+
+        @Override
+        public void onFileProcessed(String relativePath, Path sourcePath, Path destPath) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(destPath, BasicFileAttributes.class);
+                state.recordFile(relativePath, attributes.size(), attributes.lastModifiedTime().toMillis());
+            } catch (IOException e) {
+                ITEM_LOGGER.log(Level.WARNING, () -> "Failed to record file in sync state: " + relativePath
+                        + " (" + e.getMessage() + ")");
+            }
+        }
+
+        @Override
+        public void onItemRemoved(String relativePath) {
+            state.removeEntry(relativePath);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+import lombok.Setter;
+import me.vbu.mirrordirectories.metrics.RateLimitedLogger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FileOperation for large files that copies in chunks with {@link FileChannel#transferTo},
+ * falling back to direct buffers where the platform cannot transfer between channels.
+ * Data is written to a partial file next to the destination, so an interrupted copy
+ * resumes where it stopped, and the partial file replaces the destination once complete.
+ */
+public class ChannelCopyFileOperation implements FileOperation {
+
+    private static final Logger LOGGER = Logger.getLogger(ChannelCopyFileOperation.class.getName());
+
+    private static final RateLimitedLogger ITEM_LOGGER = new RateLimitedLogger(LOGGER, 50, Duration.ofSeconds(1));
+
+    /**
+     * Suffix of the file a copy is written to until it is complete.
+     */
+    public static final String PARTIAL_SUFFIX = ".partial";
+
+    /**
+     * Number of trailing bytes of a partial file compared with the source before resuming.
+     */
+    private static final int RESUME_VERIFY_BYTES = 1024 * 1024;
+
+    /**
+     * Maximum number of idle direct buffers kept for reuse.
+     */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    /**
+     * Number of bytes transferred per step, after which progress is reported.
+     */
+    @Getter @Setter
+    private long chunkSize = 8L * 1024 * 1024;
+
+    /**
+     * Size of the direct buffer used when channel transfer is not available.
+     */
+    @Getter @Setter
+    private int bufferSize = 1024 * 1024;
+
+    @Setter
+    private CopyProgressListener progressListener;
+
+    /**
+     * Idle direct buffers shared by all copying threads. Unlike buffers kept per thread, they are
+     * not multiplied by the number of virtual threads, and buffers beyond the limit are released.
+     */
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public boolean executeFileOperation(Path sourcePath, Path destPath) throws IOException {
+        Path partialPath = destPath.resolveSibling(destPath.getFileName() + PARTIAL_SUFFIX);
+        FileTime sourceModified = Files.getLastModifiedTime(sourcePath);
+
+        try (FileChannel in = FileChannel.open(sourcePath, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(partialPath, StandardOpenOption.CREATE,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long total = in.size();
+            long position = resumePosition(in, out, total, sourceModified, partialPath);
+            if (position > 0) {
+                ITEM_LOGGER.log(Level.INFO, () -> "Resuming copy of " + sourcePath + " at " + position + " of "
+                        + total + " bytes");
+            }
+
+            out.truncate(position);
+            out.position(position);
+            copy(in, out, position, total, sourcePath);
+            out.force(false);
+        }
+
+        Files.setLastModifiedTime(partialPath, sourceModified);
+        try {
+            Files.move(partialPath, destPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partialPath, destPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    @Override
+    public String getOperationName() {
+        return "Copy";
+    }
+
+    /**
+     * Copies the remaining bytes of the source, one chunk at a time.
+     */
+    private void copy(FileChannel in, FileChannel out, long position, long total, Path sourcePath) throws IOException {
+        boolean useTransfer = true;
+
+        while (position < total) {
+            long count = Math.min(chunkSize, total - position);
+            long transferred = 0;
+
+            if (useTransfer) {
+                try {
+                    transferred = transfer(in, out, position, count);
+                } catch (IOException e) {
+                    // Some file systems cannot transfer between channels, use buffers from now on
+                    useTransfer = false;
+                    out.position(position);
+                }
+            }
+            if (transferred <= 0) {
+                transferred = copyBuffered(in, out, position, count);
+            }
+            if (transferred <= 0) {
+                throw new EOFException("Source file shrank while copying: " + sourcePath);
+            }
+
+            position += transferred;
+            if (progressListener != null) {
+                progressListener.onProgress(sourcePath, position, total);
+            }
+        }
+    }
+
+    /**
+     * Transfers up to count bytes with {@link FileChannel#transferTo}, which may move fewer bytes per call.
+     */
+    private static long transfer(FileChannel in, FileChannel out, long position, long count) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long step = in.transferTo(position + transferred, count - transferred, out);
+            if (step <= 0) {
+                break;
+            }
+            transferred += step;
+        }
+        return transferred;
+    }
+
+    /**
+     * Copies up to count bytes through a pooled direct buffer.
+     */
+    private long copyBuffered(FileChannel in, FileChannel out, long position, long count) throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+        long copied = 0;
+
+        try {
+            while (copied < count) {
+                buffer.clear();
+                if (count - copied < buffer.capacity()) {
+                    buffer.limit((int) (count - copied));
+                }
+                int read = in.read(buffer, position + copied);
+                if (read <= 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                copied += read;
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+        return copied;
+    }
+
+    /**
+     * Determines where an earlier interrupted copy can be continued. A partial file is only
+     * reused if the source has not changed since it was written and its tail matches the source.
+     *
+     * @return The number of bytes that can be kept, 0 to start over
+     */
+    private long resumePosition(FileChannel in, FileChannel out, long total, FileTime sourceModified,
+                                Path partialPath) throws IOException {
+        long existing = out.size();
+        if (existing == 0 || existing > total
+                || sourceModified.compareTo(Files.getLastModifiedTime(partialPath)) > 0) {
+            return 0;
+        }
+
+        int length = (int) Math.min(RESUME_VERIFY_BYTES, existing);
+        long offset = existing - length;
+        ByteBuffer expected = ByteBuffer.allocate(length);
+        ByteBuffer actual = ByteBuffer.allocate(length);
+        readFully(in, expected, offset);
+        readFully(out, actual, offset);
+        return expected.flip().equals(actual.flip()) ? existing : 0;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file while verifying partial copy");
+            }
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        // Buffers of a previous buffer size are dropped, the size check is racy like in SmallFileCopyOperation
+        if (buffer.capacity() == bufferSize && buffers.size() < MAX_POOLED_BUFFERS) {
+            buffers.offer(buffer);
+        }
+    }
+}
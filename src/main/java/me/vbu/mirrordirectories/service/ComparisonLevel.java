@@ -0,0 +1,27 @@
+package me.vbu.mirrordirectories.service;
+
+/**
+ * How thoroughly files that exist on both sides are compared.
+ */
+public enum ComparisonLevel {
+    /**
+     * Only reports files missing from the destination.
+     */
+    EXISTENCE,
+
+    /**
+     * Also reports files whose size or modification time differs, whichever side is newer.
+     */
+    METADATA,
+
+    /**
+     * Also reports files with equal size whose CRC32C checksums differ. Much cheaper to compute than
+     * content hashes, and reuses the checksums recorded by a {@link VerifyingCopyFileOperation}.
+     */
+    CHECKSUM,
+
+    /**
+     * Also reports files with equal size whose content hashes differ.
+     */
+    CONTENT
+}
@@ -0,0 +1,176 @@
+package me.vbu.mirrordirectories.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Computes content hashes of files for content level comparisons, or the much cheaper CRC32C
+ * checksums for checksum level comparisons.
+ * With a {@link FileHashCache} files are only read again after they have changed.
+ */
+public class ContentHasher {
+
+    private static final Logger LOGGER = Logger.getLogger(ContentHasher.class.getName());
+
+    private static final String ALGORITHM = "SHA-256";
+
+    /**
+     * Algorithm name of the CRC32C checksums, as recorded in the hash cache.
+     */
+    public static final String CHECKSUM_ALGORITHM = "CRC32C";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileHashCache cache;
+
+    private final String algorithm;
+
+    /**
+     * Creates a hasher that reads every file it hashes.
+     */
+    public ContentHasher() {
+        this(null);
+    }
+
+    /**
+     * Creates a hasher that reuses hashes of unchanged files.
+     *
+     * @param cache The hash cache, null to always read the files
+     */
+    public ContentHasher(FileHashCache cache) {
+        this(cache, ALGORITHM);
+    }
+
+    /**
+     * Creates a hasher computing content hashes or checksums.
+     *
+     * @param cache The hash cache, null to always read the files
+     * @param algorithm "SHA-256" for content hashes or {@link #CHECKSUM_ALGORITHM}
+     */
+    public ContentHasher(FileHashCache cache, String algorithm) {
+        if (!algorithm.equals(ALGORITHM) && !algorithm.equals(CHECKSUM_ALGORITHM)) {
+            throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+        }
+        this.cache = cache;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Computes the hash of a file's content, or takes it from the cache if the file is unchanged.
+     *
+     * @param path The file to hash
+     * @return The hash bytes
+     * @throws IOException If the file cannot be read
+     */
+    public byte[] hash(Path path) throws IOException {
+        if (cache == null) {
+            return computeHash(path);
+        }
+
+        BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class);
+        byte[] hash = cache.get(path, before, algorithm);
+        if (hash != null) {
+            return hash;
+        }
+
+        hash = computeHash(path);
+
+        // Only cache the hash if the file did not change while it was read
+        BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+        if (after.size() == before.size() && after.lastModifiedTime().equals(before.lastModifiedTime())) {
+            cache.put(path, after, algorithm, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Records the hash of a file computed while it was read anyway, such as when copying it.
+     *
+     * @param path The file
+     * @param attrs Attributes of the file as they were when it was hashed
+     * @param hash The hash, of this hasher's algorithm
+     */
+    public void record(Path path, BasicFileAttributes attrs, byte[] hash) {
+        if (cache != null) {
+            cache.put(path, attrs, algorithm, hash);
+        }
+    }
+
+    /**
+     * Writes hashes recorded in the cache to disk.
+     */
+    public void flushCache() {
+        if (cache == null) {
+            return;
+        }
+        try {
+            cache.flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write hash cache (" + e.getMessage() + ")");
+        }
+    }
+
+    private byte[] computeHash(Path path) throws IOException {
+        MessageDigest digest = algorithm.equals(ALGORITHM) ? newDigest() : null;
+        Checksum checksum = digest == null ? new CRC32C() : null;
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                } else {
+                    checksum.update(buffer, 0, read);
+                }
+            }
+        }
+        return digest != null ? digest.digest() : checksumBytes(checksum);
+    }
+
+    /**
+     * Checks whether two files have the same content hash.
+     *
+     * @param first The first file
+     * @param second The second file
+     * @return True if both hashes are equal
+     * @throws IOException If either file cannot be read
+     */
+    public boolean sameContent(Path first, Path second) throws IOException {
+        return MessageDigest.isEqual(hash(first), hash(second));
+    }
+
+    /**
+     * Creates a digest of the algorithm used for content hashes, for code computing them while
+     * reading a file anyway.
+     *
+     * @return A new digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Converts a CRC32C checksum into the form recorded in the hash cache.
+     *
+     * @param checksum The checksum of the whole file
+     * @return The four checksum bytes, most significant first
+     */
+    static byte[] checksumBytes(Checksum checksum) {
+        int value = (int) checksum.getValue();
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+}
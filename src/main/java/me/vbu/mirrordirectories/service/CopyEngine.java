@@ -0,0 +1,534 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+import lombok.Setter;
+import me.vbu.mirrordirectories.metrics.MirrorMetrics;
+import me.vbu.mirrordirectories.metrics.Phase;
+import me.vbu.mirrordirectories.metrics.RateLimitedLogger;
+import me.vbu.mirrordirectories.model.DiffEntry;
+import me.vbu.mirrordirectories.model.filesystem.DirectoryNode;
+import me.vbu.mirrordirectories.model.filesystem.ExtraneousNode;
+import me.vbu.mirrordirectories.model.filesystem.FileNode;
+import me.vbu.mirrordirectories.model.filesystem.ModifiedFileNode;
+import me.vbu.mirrordirectories.model.filesystem.Node;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Two stage engine that applies a {@link FileOperation} to a differences hierarchy.
+ * The first stage creates all directories in tree order, the second stage fans the
+ * file operations out to a bounded pool of workers, so parent directories never have to
+ * be checked per file. Failures are collected instead of aborting the run. Timings,
+ * throughput and queue depths are recorded in a {@link MirrorMetrics} registry.
+ */
+public class CopyEngine {
+
+    private static final Logger LOGGER = Logger.getLogger(CopyEngine.class.getName());
+
+    /**
+     * Per item messages are limited, logging every file of a large mirror slows it down noticeably.
+     */
+    private static final RateLimitedLogger ITEM_LOGGER = new RateLimitedLogger(LOGGER, 50, Duration.ofSeconds(1));
+
+    /**
+     * Maximum number of failures attached as suppressed exceptions to the reported error.
+     */
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    /**
+     * Maximum number of files processed at the same time.
+     */
+    @Getter
+    private int workerCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Whether file operations run on virtual threads instead of a fixed platform thread pool.
+     */
+    @Getter
+    private boolean virtualThreads = false;
+
+    /**
+     * Whether the files of a hierarchy are started largest first, so large files do not end
+     * up as stragglers on a single worker while the other workers have run out of files.
+     */
+    @Getter @Setter
+    private boolean largestFirst = true;
+
+    private final AtomicLong processedFileCount = new AtomicLong();
+
+    private final Map<Long, String> activeFiles = new ConcurrentHashMap<>();
+
+    /**
+     * Bytes written so far of the files in progress that report their progress, by worker.
+     */
+    private final Map<Long, Long> activeBytes = new ConcurrentHashMap<>();
+
+    @Getter
+    private volatile String currentlyCopyingFileName = "";
+
+    private final Queue<FileOperationFailure> failures = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Files handed to the executor that no worker has started yet.
+     */
+    private final AtomicInteger queuedFiles = new AtomicInteger();
+
+    @Getter
+    private final MirrorMetrics metrics;
+
+    /**
+     * Journal recording the run so it can be resumed after a crash, null for unjournaled runs.
+     * With a journal, files are written to temporary files and renamed into place, except by
+     * operations that {@link FileOperation#needsDestinationPath() need the destination path}.
+     */
+    @Getter @Setter
+    private volatile CopyJournal journal;
+
+    public CopyEngine() {
+        this(new MirrorMetrics());
+    }
+
+    /**
+     * Creates an engine recording into the given metrics.
+     *
+     * @param metrics The metrics registry
+     */
+    public CopyEngine(MirrorMetrics metrics) {
+        this.metrics = metrics;
+        metrics.registerGauge("copy.queued", queuedFiles::get);
+        metrics.registerGauge("copy.active", activeFiles::size);
+        metrics.registerGauge("copy.activeBytes", () -> activeBytes.values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    /**
+     * Sets the maximum number of files processed at the same time.
+     *
+     * @param workerCount The number of workers, at least 1
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Worker count must be at least 1");
+        }
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Sets whether file operations run on virtual threads.
+     *
+     * @param virtualThreads True to use virtual threads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Gets the number of files processed successfully in the current or last run.
+     *
+     * @return The processed file count
+     */
+    public long getProcessedFileCount() {
+        return processedFileCount.get();
+    }
+
+    /**
+     * Gets the files that workers are processing right now.
+     *
+     * @return Relative paths of the files in progress
+     */
+    public List<String> getCurrentlyCopyingFileNames() {
+        return new ArrayList<>(activeFiles.values());
+    }
+
+    /**
+     * Gets the failures collected during the current or last run.
+     *
+     * @return The failures
+     */
+    public List<FileOperationFailure> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * Processes a node and everything below it.
+     *
+     * @param rootNode The node to process
+     * @param sourceRoot Source root directory
+     * @param destRoot Destination root directory
+     * @param relativePath Relative path of the node below the roots
+     * @param fileOperation The operation applied to each file
+     * @param listener Listener notified about every processed item
+     * @throws IOException If any directory or file could not be processed
+     */
+    public void run(Node rootNode, Path sourceRoot, Path destRoot, String relativePath,
+                    FileOperation fileOperation, ProcessedItemListener listener) throws IOException {
+        reset();
+        fileOperation.setProgressListener(this::onProgress);
+
+        // Stage 1: create the directory skeleton, collecting the files on the way
+        List<DiffEntry> files = new ArrayList<>();
+        try (MirrorMetrics.PhaseTimer ignored = metrics.startPhase(Phase.MKDIR)) {
+            File destParent = destRoot.resolve(relativePath).toFile().getParentFile();
+            if (destParent != null && !destParent.exists() && !destParent.mkdirs()) {
+                recordFailure(relativePath, new IOException("Failed to create parent directories for: " + destParent));
+            } else {
+                createDirectories(rootNode, destRoot, relativePath, fileOperation, listener, files);
+            }
+        }
+
+        // Stage 2: run the file operations on the worker pool
+        try (MirrorMetrics.PhaseTimer ignored = metrics.startPhase(Phase.COPY)) {
+            planFiles(files);
+            processFiles(files, sourceRoot, destRoot, fileOperation, listener);
+        }
+
+        finish(fileOperation);
+        reportFailures(fileOperation);
+    }
+
+    /**
+     * Processes a stream of differences while it is still being produced. Directories are
+     * created on the calling thread as they arrive, which is before any entry below them,
+     * and files are handed to the workers. Extraneous entries are skipped. The caller blocks
+     * while all workers are busy, which in turn holds back the producer of the differences.
+     *
+     * @param differences The differences, each directory preceding its contents
+     * @param sourceRoot Source root directory
+     * @param destRoot Destination root directory
+     * @param fileOperation The operation applied to each file
+     * @param listener Listener notified about every processed item
+     * @throws IOException If any directory or file could not be processed
+     */
+    public void run(Iterator<DiffEntry> differences, Path sourceRoot, Path destRoot,
+                    FileOperation fileOperation, ProcessedItemListener listener) throws IOException {
+        run(differences, entry -> false, sourceRoot, destRoot, fileOperation, listener);
+    }
+
+    /**
+     * Processes differences flowing in both directions on one worker pool, as planned by a two-way
+     * sync. Works like {@link #run(Iterator, Path, Path, FileOperation, ProcessedItemListener)},
+     * except that the reversed differences are copied from the destination root to the source root.
+     *
+     * @param differences The differences, each directory preceding its contents
+     * @param reversed Tells the differences to be copied from the destination to the source
+     * @param sourceRoot Source root directory
+     * @param destRoot Destination root directory
+     * @param fileOperation The operation applied to each file
+     * @param listener Listener notified about every processed item, with the paths of the side written
+     * @throws IOException If any directory or file could not be processed
+     */
+    public void run(Iterator<DiffEntry> differences, Predicate<DiffEntry> reversed, Path sourceRoot, Path destRoot,
+                    FileOperation fileOperation, ProcessedItemListener listener) throws IOException {
+        reset();
+        fileOperation.setProgressListener(this::onProgress);
+
+        Semaphore permits = new Semaphore(workerCount);
+        ExecutorService executor = newExecutor();
+        try (MirrorMetrics.PhaseTimer ignored = metrics.startPhase(Phase.COPY)) {
+            try {
+                while (differences.hasNext()) {
+                    DiffEntry entry = differences.next();
+                    if (entry.getKind().isExtraneous()) {
+                        continue;
+                    }
+                    boolean backwards = reversed.test(entry);
+                    Path from = backwards ? destRoot : sourceRoot;
+                    Path to = backwards ? sourceRoot : destRoot;
+                    if (entry.getKind().isDirectory()) {
+                        long start = System.nanoTime();
+                        createDirectory(to, entry.getRelativePath(), fileOperation, listener);
+                        metrics.addPhaseTime(Phase.MKDIR, System.nanoTime() - start);
+                    } else {
+                        long sequence = journal != null ? journal.recordPlanned(entry) : 0;
+                        submit(executor, permits, entry, sequence, from, to, fileOperation, listener);
+                    }
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while processing files");
+            } finally {
+                awaitCompletion(executor);
+            }
+        }
+
+        finish(fileOperation);
+        reportFailures(fileOperation);
+    }
+
+    private void reset() {
+        processedFileCount.set(0);
+        activeFiles.clear();
+        activeBytes.clear();
+        failures.clear();
+        queuedFiles.set(0);
+        currentlyCopyingFileName = "";
+    }
+
+    /**
+     * Records all files of a hierarchy as planned in the journal, with a single sync before any is copied.
+     */
+    private void planFiles(List<DiffEntry> files) throws IOException {
+        if (journal == null || files.isEmpty()) {
+            return;
+        }
+        for (DiffEntry file : files) {
+            journal.recordPlanned(file);
+        }
+        journal.sync();
+    }
+
+    /**
+     * Walks the hierarchy in tree order, creating directories and collecting the files.
+     * Children of a directory that could not be created are skipped, and so are extraneous
+     * entries, which are left to a {@link DestinationPruner}.
+     */
+    private void createDirectories(Node node, Path destRoot, String relativePath, FileOperation fileOperation,
+                                   ProcessedItemListener listener, List<DiffEntry> files) {
+        if (node instanceof ExtraneousNode) {
+            return;
+        }
+        if (!node.isDirectory()) {
+            DiffEntry.Kind kind = node instanceof ModifiedFileNode ? DiffEntry.Kind.MODIFIED_FILE : DiffEntry.Kind.MISSING_FILE;
+            long size = node instanceof FileNode file ? file.getSize() : 0;
+            files.add(new DiffEntry(kind, relativePath, size, 0));
+            return;
+        }
+
+        if (createDirectory(destRoot, relativePath, fileOperation, listener)) {
+            for (Node child : ((DirectoryNode) node).getChildren().values()) {
+                createDirectories(child, destRoot, childPath(relativePath, child), fileOperation, listener, files);
+            }
+        }
+    }
+
+    /**
+     * Creates a single destination directory whose parent exists, recording a failure if that is not possible.
+     * Missing directories are the common case, so creation is attempted first and existence only checked
+     * when it fails, which takes a single system call per directory.
+     *
+     * @return True if the directory exists afterwards
+     */
+    private boolean createDirectory(Path destRoot, String relativePath, FileOperation fileOperation,
+                                    ProcessedItemListener listener) {
+        Path destDir = destRoot.resolve(relativePath);
+        try {
+            Files.createDirectory(destDir);
+            metrics.recordDirectoryCreated();
+        } catch (FileAlreadyExistsException e) {
+            if (!Files.isDirectory(destDir)) {
+                recordFailure(relativePath, new IOException("Failed to create directory, a file is in the way", e));
+                return false;
+            }
+        } catch (IOException e) {
+            recordFailure(relativePath, new IOException("Failed to create directory", e));
+            return false;
+        }
+
+        if (journal != null) {
+            try {
+                journal.recordDirectory(relativePath);
+            } catch (IOException e) {
+                recordFailure(relativePath, new IOException("Failed to record directory in journal", e));
+                return false;
+            }
+        }
+
+        ITEM_LOGGER.log(Level.FINE, () -> fileOperation.getOperationName()
+                + " directory created or already exists: " + relativePath);
+        listener.onDirectoryCreated(relativePath, destDir);
+        return true;
+    }
+
+    /**
+     * Runs the file operation for every collected file, with at most {@link #workerCount} in flight.
+     */
+    private void processFiles(List<DiffEntry> files, Path sourceRoot, Path destRoot,
+                              FileOperation fileOperation, ProcessedItemListener listener) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        if (largestFirst) {
+            files.sort(Comparator.comparingLong(DiffEntry::getSize).reversed());
+        }
+
+        Semaphore permits = new Semaphore(workerCount);
+        ExecutorService executor = newExecutor();
+        try {
+            for (DiffEntry file : files) {
+                submit(executor, permits, file, 0, sourceRoot, destRoot, fileOperation, listener);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing files");
+        } finally {
+            awaitCompletion(executor);
+        }
+    }
+
+    private ExecutorService newExecutor() {
+        return virtualThreads
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(workerCount);
+    }
+
+    /**
+     * Hands a file to the workers, waiting for a free worker first.
+     */
+    private void submit(ExecutorService executor, Semaphore permits, DiffEntry file, long sequence, Path sourceRoot,
+                        Path destRoot, FileOperation fileOperation, ProcessedItemListener listener)
+            throws InterruptedException {
+        permits.acquire();
+        queuedFiles.incrementAndGet();
+        executor.execute(() -> {
+            queuedFiles.decrementAndGet();
+            try {
+                processFile(file, sequence, sourceRoot, destRoot, fileOperation, listener);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Waits until all submitted files have been processed.
+     */
+    private static void awaitCompletion(ExecutorService executor) throws InterruptedIOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for file operations");
+        }
+    }
+
+    /**
+     * Runs the file operation for a single file, recording a failure instead of throwing. Unchecked
+     * exceptions of the operation are recorded as failures as well, rather than getting lost in the executor.
+     * In a journaled run the file is committed once its planned record with the given sequence is durable.
+     */
+    private void processFile(DiffEntry file, long sequence, Path sourceRoot, Path destRoot,
+                             FileOperation fileOperation, ProcessedItemListener listener) {
+        String relativePath = file.getRelativePath();
+        long workerId = Thread.currentThread().threadId();
+        activeFiles.put(workerId, relativePath);
+        currentlyCopyingFileName = relativePath;
+
+        MirrorMetrics.OperationTimer timer = metrics.startOperation(fileOperation.getOperationName(), relativePath,
+                file.getSize());
+        boolean succeeded = false;
+        CopyJournal runJournal = journal;
+        Path sourcePath = sourceRoot.resolve(relativePath);
+        Path destPath = destRoot.resolve(relativePath);
+        Path writtenPath = runJournal != null && !fileOperation.needsDestinationPath()
+                ? CopyJournal.tempPath(destPath) : destPath;
+        try {
+            if (fileOperation.executeFileOperation(sourcePath, writtenPath, file.getSize())) {
+                if (runJournal != null) {
+                    runJournal.commit(sequence, relativePath, writtenPath, destPath);
+                }
+                succeeded = true;
+                ITEM_LOGGER.log(Level.FINE, () -> fileOperation.getOperationName() + " file: " + relativePath);
+                processedFileCount.incrementAndGet();
+                listener.onFileProcessed(relativePath, sourcePath, destPath);
+            } else {
+                recordFailure(relativePath, new IOException("Failed to "
+                        + fileOperation.getOperationName().toLowerCase() + " file"));
+            }
+        } catch (IOException e) {
+            recordFailure(relativePath, e);
+        } catch (RuntimeException e) {
+            recordFailure(relativePath, new IOException(e.toString(), e));
+        } finally {
+            if (!succeeded && !writtenPath.equals(destPath)) {
+                deleteQuietly(writtenPath);
+            }
+            timer.finish(succeeded);
+            activeFiles.remove(workerId);
+            activeBytes.remove(workerId);
+        }
+    }
+
+    /**
+     * Records the progress of the file the calling worker is copying, for the activeBytes gauge.
+     */
+    private void onProgress(Path sourcePath, long bytesCopied, long totalBytes) {
+        activeBytes.put(Thread.currentThread().threadId(), bytesCopied);
+    }
+
+    /**
+     * Removes the temporary file of a failed copy, which is rolled back on resume if this fails as well.
+     */
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            ITEM_LOGGER.log(Level.FINE, () -> "Failed to delete temporary file: " + path + " (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Records an item that could not be processed.
+     */
+    private void recordFailure(String relativePath, IOException cause) {
+        failures.add(new FileOperationFailure(relativePath, cause));
+        metrics.recordFailure();
+        ITEM_LOGGER.log(Level.WARNING, () -> cause.getMessage() + ": " + relativePath);
+    }
+
+    /**
+     * Lets the file operation complete the run, recording a failure if it cannot.
+     */
+    private void finish(FileOperation fileOperation) {
+        try {
+            fileOperation.finish();
+        } catch (IOException e) {
+            recordFailure("", new IOException("Failed to finish " + fileOperation.getOperationName().toLowerCase(), e));
+        }
+    }
+
+    /**
+     * Throws a single exception summarizing all collected failures, if any.
+     */
+    private void reportFailures(FileOperation fileOperation) throws IOException {
+        if (failures.isEmpty()) {
+            return;
+        }
+
+        IOException error = new IOException("Failed to " + fileOperation.getOperationName().toLowerCase() + " "
+                + failures.size() + " item(s), first: " + failures.peek());
+        failures.stream()
+                .limit(MAX_REPORTED_FAILURES)
+                .forEach(failure -> error.addSuppressed(failure.getCause()));
+        throw error;
+    }
+
+    private static String childPath(String relativePath, Node child) {
+        return relativePath.isEmpty() ? child.getName() : relativePath + File.separator + child.getName();
+    }
+}
@@ -7,11 +7,12 @@ import java.nio.file.StandardCopyOption;
 
 /**
  * Implementation of FileOperation for copy operations.
+ * Preserves the modification time so later metadata comparisons see the copy as up to date.
  */
 public class CopyFileOperation implements FileOperation {
     @Override
     public boolean executeFileOperation(Path sourcePath, Path destPath) throws IOException {
-        Files.copy(sourcePath, destPath, StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(sourcePath, destPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
         return true;
     }
 
@@ -0,0 +1,517 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+import me.vbu.mirrordirectories.model.DiffEntry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of the directories created and the files planned and completed by a copy run,
+ * so a run that dies halfway can be finished without comparing the trees again. Records are buffered
+ * and forced to disk in batches by a background thread; a file is only moved into place once its
+ * planned record is durable, so every destination file that may have been touched is in the journal.
+ * Completed records are not waited for, losing one merely copies the file again on resume.
+ * Files are written to a temporary file next to the destination and committed by an atomic rename,
+ * so the destination never holds a half-written file.
+ */
+public class CopyJournal implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(CopyJournal.class.getName());
+
+    /**
+     * Suffix of the temporary files that copies are written to before being renamed into place.
+     */
+    public static final String TEMP_SUFFIX = ".mirror-tmp";
+
+    private static final int MAGIC = 0x4d44434a;
+    private static final int VERSION = 1;
+
+    private static final byte DIRECTORY = 1;
+    private static final byte PLANNED = 2;
+    private static final byte COMPLETED = 3;
+
+    @Getter
+    private final Path journalFile;
+
+    @Getter
+    private final Path destinationRoot;
+
+    /**
+     * Longest time a record stays buffered before it is forced to disk.
+     */
+    @Getter @Setter
+    private Duration syncInterval = Duration.ofMillis(50);
+
+    /**
+     * Number of buffered records that triggers a sync before the interval has elapsed.
+     */
+    @Getter @Setter
+    private int syncBatchSize = 1024;
+
+    /**
+     * Records appended since the last sync, guarded by this journal.
+     */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream bufferOut = new DataOutputStream(buffer);
+    private int bufferedRecords;
+
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean syncRequested;
+    private boolean open;
+    private IOException syncFailure;
+
+    /**
+     * Serializes writes to the journal file, so batches reach it in the order they were appended.
+     */
+    private final Object writeLock = new Object();
+
+    private FileChannel channel;
+    private Thread syncer;
+
+    /**
+     * Creates a journal stored in the given file.
+     *
+     * @param journalFile File the journal is written to
+     * @param destinationRoot Root of the destination tree written by the journaled runs
+     */
+    public CopyJournal(Path journalFile, Path destinationRoot) {
+        this.journalFile = journalFile;
+        this.destinationRoot = destinationRoot;
+    }
+
+    /**
+     * Gets the journal of a destination directory from the user's journal store.
+     *
+     * @param destinationRoot The destination directory
+     * @return The journal, not yet started
+     */
+    public static CopyJournal forDestination(Path destinationRoot) {
+        Path root = destinationRoot.toAbsolutePath().normalize();
+        Path file = Paths.get(System.getProperty("user.home"), ".mirror-directories", "journals",
+                DestinationManifest.digest(root.toString()) + ".journal");
+        return new CopyJournal(file, root);
+    }
+
+    /**
+     * Gets the temporary file a copy to a destination file is written to.
+     *
+     * @param destPath The destination file
+     * @return The temporary file next to it
+     */
+    public static Path tempPath(Path destPath) {
+        return destPath.resolveSibling(destPath.getFileName() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Checks whether a journal was left behind by a run that did not complete.
+     *
+     * @return True if the journal file exists
+     */
+    public boolean exists() {
+        return Files.exists(journalFile);
+    }
+
+    /**
+     * Starts a new journal for a run, replacing any earlier one.
+     *
+     * @param sourceRoot Source root directory of the run
+     * @throws IOException If the journal cannot be created
+     */
+    public void begin(Path sourceRoot) throws IOException {
+        Files.createDirectories(journalFile.getParent());
+        start(FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+
+        synchronized (this) {
+            bufferOut.writeInt(MAGIC);
+            bufferOut.writeInt(VERSION);
+            bufferOut.writeUTF(sourceRoot.toAbsolutePath().normalize().toString());
+            appendedSequence++;
+        }
+        sync();
+    }
+
+    /**
+     * Continues an existing journal, as when resuming the run that wrote it. A record torn when
+     * the run died is cut off first, so the records of the resumed run directly follow the last
+     * complete one and the journal stays readable if the resumed run is interrupted as well.
+     *
+     * @param recovery What was read from the journal
+     * @throws IOException If the journal cannot be opened or truncated
+     */
+    public void reopen(Recovery recovery) throws IOException {
+        FileChannel fileChannel = FileChannel.open(journalFile, StandardOpenOption.WRITE);
+        try {
+            if (fileChannel.size() > recovery.getValidLength()) {
+                fileChannel.truncate(recovery.getValidLength());
+                fileChannel.force(false);
+            }
+            fileChannel.position(recovery.getValidLength());
+        } catch (IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+        start(fileChannel);
+    }
+
+    private synchronized void start(FileChannel fileChannel) {
+        if (open) {
+            throw new IllegalStateException("Journal is already open");
+        }
+        channel = fileChannel;
+        buffer.reset();
+        bufferedRecords = 0;
+        appendedSequence = 0;
+        durableSequence = 0;
+        syncFailure = null;
+        syncRequested = false;
+        open = true;
+
+        syncer = new Thread(this::runSyncer, "copy-journal-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Records a directory that exists in the destination.
+     *
+     * @param relativePath Relative path of the directory
+     * @throws IOException If an earlier sync failed
+     */
+    public void recordDirectory(String relativePath) throws IOException {
+        append(DIRECTORY, relativePath, 0);
+    }
+
+    /**
+     * Records a file about to be copied.
+     *
+     * @param file The file to be copied
+     * @return Sequence number to wait for before the copy is committed
+     * @throws IOException If an earlier sync failed
+     */
+    public long recordPlanned(DiffEntry file) throws IOException {
+        return append(PLANNED, file.getRelativePath(), file.getSize());
+    }
+
+    /**
+     * Commits a copied file: waits until its planned record is durable, renames the temporary file
+     * into place unless the file was written directly, and records the file as completed.
+     *
+     * @param sequence Sequence number returned when the file was planned
+     * @param relativePath Relative path of the file
+     * @param writtenPath The file written by the copy
+     * @param destPath The destination file
+     * @throws IOException If the journal cannot be synced or the file cannot be renamed
+     */
+    public void commit(long sequence, String relativePath, Path writtenPath, Path destPath) throws IOException {
+        awaitDurable(sequence);
+        if (!writtenPath.equals(destPath)) {
+            try {
+                Files.move(writtenPath, destPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(writtenPath, destPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        append(COMPLETED, relativePath, 0);
+    }
+
+    private synchronized long append(byte type, String relativePath, long size) throws IOException {
+        if (!open) {
+            throw new IllegalStateException("Journal is not open");
+        }
+        if (syncFailure != null) {
+            throw new IOException("Journal sync failed", syncFailure);
+        }
+
+        bufferOut.writeByte(type);
+        bufferOut.writeUTF(relativePath);
+        if (type == PLANNED) {
+            bufferOut.writeLong(size);
+        }
+        if (++bufferedRecords >= syncBatchSize) {
+            notifyAll();
+        }
+        return ++appendedSequence;
+    }
+
+    /**
+     * Waits until a record has been forced to disk, asking the sync thread not to wait for the interval.
+     */
+    private synchronized void awaitDurable(long sequence) throws IOException {
+        while (durableSequence < sequence) {
+            if (syncFailure != null) {
+                throw new IOException("Journal sync failed", syncFailure);
+            }
+            if (!open) {
+                throw new IOException("Journal closed before the record was synced");
+            }
+            if (!syncRequested) {
+                syncRequested = true;
+                notifyAll();
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the journal");
+            }
+        }
+    }
+
+    /**
+     * Forces all records appended so far to disk.
+     *
+     * @throws IOException If the journal cannot be written
+     */
+    public void sync() throws IOException {
+        synchronized (writeLock) {
+            byte[] batch;
+            long sequence;
+            synchronized (this) {
+                if (syncFailure != null) {
+                    throw new IOException("Journal sync failed", syncFailure);
+                }
+                batch = buffer.toByteArray();
+                sequence = appendedSequence;
+                buffer.reset();
+                bufferedRecords = 0;
+                syncRequested = false;
+            }
+
+            try {
+                if (batch.length > 0) {
+                    ByteBuffer data = ByteBuffer.wrap(batch);
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    syncFailure = e;
+                    notifyAll();
+                }
+                throw e;
+            }
+
+            synchronized (this) {
+                durableSequence = Math.max(durableSequence, sequence);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Syncs whenever the interval elapses, the batch is full or a commit is waiting.
+     */
+    private void runSyncer() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (open && !syncRequested && bufferedRecords < syncBatchSize) {
+                        wait(Math.max(1, syncInterval.toMillis()));
+                    }
+                    if (!open) {
+                        return;
+                    }
+                }
+                sync();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to sync copy journal: " + journalFile + " (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Syncs the remaining records and closes the journal file, which stays in place for a resume.
+     *
+     * @throws IOException If the remaining records cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            thread = syncer;
+        }
+
+        try {
+            sync();
+        } finally {
+            synchronized (this) {
+                open = false;
+                notifyAll();
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Removes the journal once its run has completed without failures.
+     *
+     * @throws IOException If the journal cannot be deleted
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(journalFile);
+    }
+
+    /**
+     * Reads the journal left behind by an interrupted run. A record torn by the interruption ends the journal,
+     * as does an unknown record type or a path that is not valid modified UTF-8, since data that was not yet
+     * forced to disk may read back as garbage.
+     *
+     * @return What the run still has to do
+     * @throws IOException If the journal cannot be read or is not a copy journal
+     */
+    public Recovery recover() throws IOException {
+        Set<String> directories = new LinkedHashSet<>();
+        Map<String, DiffEntry> pendingFiles = new LinkedHashMap<>();
+        int completed = 0;
+        Path sourceRoot;
+        long validLength;
+
+        try (CountingInputStream counter = new CountingInputStream(Files.newInputStream(journalFile));
+             DataInputStream in = new DataInputStream(counter)) {
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Unsupported copy journal format");
+                }
+                sourceRoot = Paths.get(in.readUTF());
+            } catch (EOFException e) {
+                throw new IOException("Copy journal is incomplete", e);
+            }
+            validLength = counter.count;
+
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    if (type != DIRECTORY && type != PLANNED && type != COMPLETED) {
+                        // Garbage where the next record should start
+                        break;
+                    }
+                    String relativePath = in.readUTF();
+                    switch (type) {
+                        case DIRECTORY -> directories.add(relativePath);
+                        case PLANNED -> pendingFiles.put(relativePath,
+                                new DiffEntry(DiffEntry.Kind.MISSING_FILE, relativePath, in.readLong(), 0));
+                        default -> {
+                            if (pendingFiles.remove(relativePath) != null) {
+                                completed++;
+                            }
+                        }
+                    }
+                    validLength = counter.count;
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                // End of the journal, possibly in the middle of a record written when the run died
+            }
+        }
+
+        List<DiffEntry> pending = new ArrayList<>(directories.size() + pendingFiles.size());
+        for (String directory : directories) {
+            pending.add(new DiffEntry(DiffEntry.Kind.MISSING_DIRECTORY, directory, 0, 0));
+        }
+        pending.addAll(pendingFiles.values());
+        return new Recovery(sourceRoot, pending, pendingFiles.size(), completed, validLength);
+    }
+
+    /**
+     * Buffered stream counting the bytes handed out, to know where the last complete record ends.
+     */
+    private static final class CountingInputStream extends BufferedInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                count++;
+            }
+            return value;
+        }
+
+        @Override
+        public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public synchronized long skip(long length) throws IOException {
+            long skipped = super.skip(length);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * What an interrupted run still has to do according to its journal.
+     */
+    @Getter @AllArgsConstructor
+    public static class Recovery {
+        /**
+         * Source root directory of the interrupted run.
+         */
+        private final Path sourceRoot;
+
+        /**
+         * Every directory the run created, followed by the files it did not complete.
+         */
+        private final List<DiffEntry> entries;
+
+        private final int pendingFileCount;
+
+        private final int completedFileCount;
+
+        /**
+         * Length of the journal up to the end of its last complete record.
+         */
+        private final long validLength;
+    }
+}
@@ -0,0 +1,18 @@
+package me.vbu.mirrordirectories.service;
+
+import java.nio.file.Path;
+
+/**
+ * Receives byte level progress of a single file copy.
+ */
+@FunctionalInterface
+public interface CopyProgressListener {
+    /**
+     * Called after each chunk of a file has been written.
+     *
+     * @param sourcePath The file being copied
+     * @param bytesCopied Bytes of the file present in the destination so far
+     * @param totalBytes Total size of the file
+     */
+    void onProgress(Path sourcePath, long bytesCopied, long totalBytes);
+}
@@ -0,0 +1,252 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FileOperation decorator that avoids copying content already present in the destination.
+ * The content hash of every source file is looked up in a {@link DeduplicationIndex}; when
+ * another destination file with the same content is known, the destination file is created
+ * as a hard link or reflink to it instead of being copied. Otherwise the wrapped operation
+ * copies the file and it is added to the index. Links are created under a temporary name and
+ * moved into place, so an existing destination file is replaced atomically. Whenever linking
+ * is not possible, for example across file systems, the file is copied as usual.
+ * <p>
+ * Copies are written to a temporary file and moved into place as well, so that a destination
+ * file sharing its inode with hard linked duplicates gets a new inode instead of being
+ * overwritten, which would change every duplicate along with it. Operations updating the
+ * existing destination file in place can therefore only be combined with reflinks, whose
+ * clones are copied on write.
+ */
+public class DeduplicatingFileOperation implements FileOperation {
+
+    private static final Logger LOGGER = Logger.getLogger(DeduplicatingFileOperation.class.getName());
+
+    private static final String LINK_SUFFIX = ".dedup";
+
+    private final FileOperation delegate;
+
+    @Getter
+    private final DeduplicationMode mode;
+
+    @Getter
+    private final DeduplicationIndex index;
+
+    private final ContentHasher contentHasher = new ContentHasher(FileHashCache.getDefault());
+
+    /**
+     * Files below this size are always copied, linking them saves too little to pay for hashing.
+     */
+    @Getter @Setter
+    private long minimumFileSize = 4 * 1024;
+
+    private final AtomicLong savedBytes = new AtomicLong();
+    private final AtomicLong linkedFiles = new AtomicLong();
+
+    private volatile boolean linkingSupported = true;
+
+    /**
+     * Creates a deduplicating operation.
+     *
+     * @param delegate Operation copying files whose content is not in the destination yet
+     * @param mode How duplicates are linked
+     * @param index Index of the content already in the destination
+     * @throws IllegalArgumentException If hard links are combined with an operation updating files in place
+     */
+    public DeduplicatingFileOperation(FileOperation delegate, DeduplicationMode mode, DeduplicationIndex index) {
+        if (mode == DeduplicationMode.HARDLINK && delegate.needsDestinationPath()) {
+            throw new IllegalArgumentException("Hard links cannot be combined with " + delegate.getOperationName()
+                    + ", which updates destination files in place");
+        }
+        this.delegate = delegate;
+        this.mode = mode;
+        this.index = index;
+    }
+
+    /**
+     * Gets the number of bytes that did not have to be copied thanks to links.
+     *
+     * @return The saved byte count
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    /**
+     * Gets the number of files created as links.
+     *
+     * @return The linked file count
+     */
+    public long getLinkedFiles() {
+        return linkedFiles.get();
+    }
+
+    @Override
+    public boolean executeFileOperation(Path sourcePath, Path destPath) throws IOException {
+        return executeFileOperation(sourcePath, destPath, -1);
+    }
+
+    @Override
+    public boolean executeFileOperation(Path sourcePath, Path destPath, long sizeHint) throws IOException {
+        long size = sizeHint >= 0 ? sizeHint : Files.size(sourcePath);
+        if (!linkingSupported || size < minimumFileSize) {
+            return copy(sourcePath, destPath, sizeHint);
+        }
+
+        byte[] hash = contentHasher.hash(sourcePath);
+        Path existing = index.find(hash, size);
+        if (existing != null && !existing.equals(destPath.toAbsolutePath().normalize()) && link(existing, sourcePath, destPath)) {
+            savedBytes.addAndGet(size);
+            linkedFiles.incrementAndGet();
+            return true;
+        }
+
+        if (!copy(sourcePath, destPath, sizeHint)) {
+            return false;
+        }
+        index.put(hash, destPath);
+        return true;
+    }
+
+    /**
+     * Copies a file with the wrapped operation. Unless the operation has to update the existing
+     * destination file, the copy is written to a temporary file and moved into place, breaking
+     * up any hard link the destination file is part of.
+     */
+    private boolean copy(Path sourcePath, Path destPath, long sizeHint) throws IOException {
+        if (delegate.needsDestinationPath()) {
+            // Only allowed for reflinks, updating a clone in place does not touch the other clones
+            return delegate.executeFileOperation(sourcePath, destPath, sizeHint);
+        }
+
+        Path tempPath = CopyJournal.tempPath(destPath);
+        boolean copied = false;
+        try {
+            copied = delegate.executeFileOperation(sourcePath, tempPath, sizeHint);
+            if (copied) {
+                moveIntoPlace(tempPath, destPath);
+            }
+            return copied;
+        } finally {
+            if (!copied) {
+                Files.deleteIfExists(tempPath);
+            }
+        }
+    }
+
+    /**
+     * Creates the destination as a link to an existing file with the same content.
+     *
+     * @return True if the link was created, false if the file has to be copied instead
+     */
+    private boolean link(Path existing, Path sourcePath, Path destPath) throws IOException {
+        Path linkPath = destPath.resolveSibling(destPath.getFileName() + LINK_SUFFIX);
+        Files.deleteIfExists(linkPath);
+
+        try {
+            if (mode == DeduplicationMode.HARDLINK) {
+                Files.createLink(linkPath, existing);
+            } else {
+                if (!reflink(existing, linkPath)) {
+                    return false;
+                }
+                Files.setLastModifiedTime(linkPath, Files.getLastModifiedTime(sourcePath));
+            }
+
+            moveIntoPlace(linkPath, destPath);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            LOGGER.warning(() -> "Linking is not supported, deduplication disabled (" + e.getMessage() + ")");
+            linkingSupported = false;
+            return false;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, () -> "Failed to link " + destPath + " to " + existing + " (" + e.getMessage() + ")");
+            Files.deleteIfExists(linkPath);
+            return false;
+        }
+    }
+
+    private static void moveIntoPlace(Path path, Path destPath) throws IOException {
+        try {
+            Files.move(path, destPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(path, destPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Clones a file with {@code cp --reflink=always}, as Java has no API for copy-on-write clones.
+     * The first failure disables further attempts, the file system does not support reflinks then.
+     */
+    private boolean reflink(Path existing, Path linkPath) throws IOException {
+        Process process;
+        try {
+            process = new ProcessBuilder("cp", "--reflink=always", existing.toString(), linkPath.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+        } catch (IOException e) {
+            LOGGER.warning(() -> "Cannot run cp for reflinks, copying instead (" + e.getMessage() + ")");
+            linkingSupported = false;
+            return false;
+        }
+
+        try {
+            if (process.waitFor(1, TimeUnit.MINUTES) && process.exitValue() == 0) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating reflink", e);
+        } finally {
+            process.destroy();
+        }
+
+        Files.deleteIfExists(linkPath);
+        if (linkingSupported) {
+            LOGGER.warning("Reflinks are not supported by the destination file system, copying instead");
+            linkingSupported = false;
+        }
+        return false;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        try {
+            delegate.finish();
+        } finally {
+            contentHasher.flushCache();
+            index.save();
+            LOGGER.info(() -> "Deduplication linked " + linkedFiles.get() + " files, saving " + savedBytes.get()
+                    + " bytes");
+        }
+    }
+
+    /**
+     * Returns true, the index remembers where each content was written to link later copies to it.
+     */
+    @Override
+    public boolean needsDestinationPath() {
+        return true;
+    }
+
+    @Override
+    public void setProgressListener(CopyProgressListener listener) {
+        delegate.setProgressListener(listener);
+    }
+
+    @Override
+    public String getOperationName() {
+        return delegate.getOperationName();
+    }
+}
@@ -0,0 +1,186 @@
+package me.vbu.mirrordirectories.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index from content hash to a destination file holding that content, used to link
+ * instead of copy files whose content has already been mirrored. Entries are checked
+ * against the file's size and modification time before use, so files changed or removed
+ * since they were indexed are never linked to. The index can be persisted per destination
+ * to deduplicate across runs.
+ */
+public class DeduplicationIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(DeduplicationIndex.class.getName());
+
+    private static final int MAGIC = 0x4d444458;
+    private static final int VERSION = 1;
+
+    /**
+     * File the index is persisted in, null for an index only kept for a single run.
+     */
+    private final Path indexFile;
+
+    private final Map<ByteBuffer, IndexedFile> files = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty index.
+     *
+     * @param indexFile File the index is loaded from and saved to, null to keep it in memory only
+     */
+    public DeduplicationIndex(Path indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Loads the index of a destination directory from the user's index store.
+     * A missing or unreadable index results in an empty one.
+     *
+     * @param destinationRoot The destination directory
+     * @return The index
+     */
+    public static DeduplicationIndex forDestination(Path destinationRoot) {
+        Path root = destinationRoot.toAbsolutePath().normalize();
+        Path file = Paths.get(System.getProperty("user.home"), ".mirror-directories", "dedup",
+                DestinationManifest.digest(root.toString()) + ".index");
+
+        DeduplicationIndex index = new DeduplicationIndex(file);
+        try {
+            index.load();
+        } catch (NoSuchFileException e) {
+            // First deduplicating run for this destination
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read deduplication index: " + file + " (" + e.getMessage() + ")");
+            index.files.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Finds a file with the given content, dropping the entry if the file has changed since it was indexed.
+     *
+     * @param hash Content hash
+     * @param size Content size
+     * @return The file, or null if none is known
+     */
+    public Path find(byte[] hash, long size) {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        IndexedFile file = files.get(key);
+        if (file == null) {
+            return null;
+        }
+
+        Path path = Paths.get(file.path());
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isRegularFile() && attrs.size() == size && attrs.size() == file.size()
+                    && attrs.lastModifiedTime().toMillis() == file.lastModified()) {
+                return path;
+            }
+        } catch (IOException e) {
+            // Gone, fall through and forget it
+        }
+        files.remove(key, file);
+        return null;
+    }
+
+    /**
+     * Records the content of a destination file.
+     *
+     * @param hash Content hash
+     * @param path The destination file
+     * @throws IOException If the file's attributes cannot be read
+     */
+    public void put(byte[] hash, Path path) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        files.put(ByteBuffer.wrap(hash.clone()), new IndexedFile(path.toAbsolutePath().normalize().toString(),
+                attrs.size(), attrs.lastModifiedTime().toMillis()));
+    }
+
+    /**
+     * Gets the number of indexed files.
+     *
+     * @return The entry count
+     */
+    public int size() {
+        return files.size();
+    }
+
+    /**
+     * Reads the index file, replacing all entries.
+     *
+     * @throws IOException If the file cannot be read or is not an index
+     */
+    public void load() throws IOException {
+        files.clear();
+        if (indexFile == null) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported deduplication index format");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] hash = new byte[in.readUnsignedShort()];
+                in.readFully(hash);
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                files.put(ByteBuffer.wrap(hash), new IndexedFile(path, size, lastModified));
+            }
+        }
+    }
+
+    /**
+     * Writes the index file, replacing the previous one atomically. Does nothing for in-memory indexes.
+     *
+     * @throws IOException If the file cannot be written
+     */
+    public void save() throws IOException {
+        if (indexFile == null) {
+            return;
+        }
+        Files.createDirectories(indexFile.getParent());
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+
+        Map<ByteBuffer, IndexedFile> snapshot = Map.copyOf(files);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<ByteBuffer, IndexedFile> entry : snapshot.entrySet()) {
+                ByteBuffer hash = entry.getKey().duplicate();
+                out.writeShort(hash.remaining());
+                while (hash.hasRemaining()) {
+                    out.writeByte(hash.get());
+                }
+                out.writeUTF(entry.getValue().path());
+                out.writeLong(entry.getValue().size());
+                out.writeLong(entry.getValue().lastModified());
+            }
+        }
+
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private record IndexedFile(String path, long size, long lastModified) {
+    }
+}
@@ -0,0 +1,19 @@
+package me.vbu.mirrordirectories.service;
+
+/**
+ * How a destination file with content already present elsewhere in the destination is created.
+ */
+public enum DeduplicationMode {
+    /**
+     * Hard link to the existing file. Both paths share one inode, including its modification
+     * time, so later comparisons must use the checksum or content level; at the metadata level
+     * every link would be flagged as modified and linked again on every run.
+     */
+    HARDLINK,
+
+    /**
+     * Copy-on-write clone of the existing file, on file systems supporting it such as Btrfs,
+     * XFS or APFS. Each path keeps its own metadata. Falls back to copying where unsupported.
+     */
+    REFLINK
+}
@@ -0,0 +1,479 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileOperation that updates an existing destination file with an rsync style delta transfer.
+ * The destination is split into blocks, each with a weak rolling checksum and a strong checksum.
+ * A window rolls over the source one byte at a time, and wherever its weak checksum and then its
+ * strong checksum match a destination block, that block is reused instead of being written again.
+ * <p>
+ * When all reused blocks stay at the same offset, as for files that were appended to or changed
+ * in place, only the changed ranges are written into the destination file. Otherwise the new
+ * file is assembled in a temporary file from reused blocks and changed ranges, which then
+ * replaces the destination. The modification time is set last, so an interrupted update is
+ * still seen as outdated by the next comparison. Files without a destination, or too small
+ * to benefit, are handed to the fallback operation.
+ */
+public class DeltaFileOperation implements FileOperation {
+
+    /**
+     * Suffix of the temporary file a relocated file is assembled in.
+     */
+    public static final String TEMP_SUFFIX = ".delta";
+
+    private static final int MIN_BLOCK_SIZE = 4 * 1024;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final String STRONG_CHECKSUM_ALGORITHM = "MD5";
+
+    private final FileOperation fallback;
+
+    /**
+     * Destination files below this size are copied in full.
+     */
+    @Getter @Setter
+    private long minimumFileSize = 1024 * 1024;
+
+    /**
+     * Block size of the checksums, 0 to derive it from the destination size.
+     */
+    @Getter @Setter
+    private int blockSize = 0;
+
+    private final AtomicLong reusedBytes = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    /**
+     * Creates a delta operation that copies missing and small files with a {@link SizeClassedCopyOperation}.
+     */
+    public DeltaFileOperation() {
+        this(new SizeClassedCopyOperation());
+    }
+
+    /**
+     * Creates a delta operation.
+     *
+     * @param fallback Operation used for files that are not updated by a delta
+     */
+    public DeltaFileOperation(FileOperation fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * Gets the number of bytes taken over from existing destination files.
+     *
+     * @return The reused byte count
+     */
+    public long getReusedBytes() {
+        return reusedBytes.get();
+    }
+
+    /**
+     * Gets the number of bytes written by delta updates.
+     *
+     * @return The written byte count
+     */
+    public long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+
+    @Override
+    public boolean executeFileOperation(Path sourcePath, Path destPath) throws IOException {
+        return executeFileOperation(sourcePath, destPath, -1);
+    }
+
+    @Override
+    public boolean executeFileOperation(Path sourcePath, Path destPath, long sizeHint) throws IOException {
+        if (!Files.isRegularFile(destPath) || Files.size(destPath) < minimumFileSize) {
+            return fallback.executeFileOperation(sourcePath, destPath, sizeHint);
+        }
+
+        FileTime sourceModified = Files.getLastModifiedTime(sourcePath);
+        try (FileChannel source = FileChannel.open(sourcePath, StandardOpenOption.READ)) {
+            Signature signature;
+            try (FileChannel basis = FileChannel.open(destPath, StandardOpenOption.READ)) {
+                signature = Signature.of(basis, blockSize > 0 ? blockSize : blockSizeFor(basis.size()));
+            }
+
+            List<Segment> segments = match(source, signature);
+            if (segments.stream().allMatch(Segment::isInPlace)) {
+                updateInPlace(source, destPath, segments);
+            } else {
+                rebuild(source, destPath, segments);
+            }
+        }
+
+        Files.setLastModifiedTime(destPath, sourceModified);
+        return true;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        fallback.finish();
+    }
+
+    @Override
+    public void setProgressListener(CopyProgressListener listener) {
+        fallback.setProgressListener(listener);
+    }
+
+    /**
+     * Returns true, the existing destination file provides the blocks to reuse.
+     */
+    @Override
+    public boolean needsDestinationPath() {
+        return true;
+    }
+
+    @Override
+    public String getOperationName() {
+        return "Update";
+    }
+
+    /**
+     * Chooses a block size of about the square root of the file size, as rsync does,
+     * which balances the number of checksums against the size of unmatched ranges.
+     */
+    private static int blockSizeFor(long fileSize) {
+        long size = (long) Math.sqrt((double) fileSize);
+        size = (size + MIN_BLOCK_SIZE - 1) / MIN_BLOCK_SIZE * MIN_BLOCK_SIZE;
+        return Math.clamp(size, MIN_BLOCK_SIZE, MAX_BLOCK_SIZE);
+    }
+
+    /**
+     * Rolls a window over the source and splits it into ranges that match destination blocks
+     * and literal ranges that have to be written.
+     */
+    private static List<Segment> match(FileChannel source, Signature signature) throws IOException {
+        int blockLength = signature.blockSize;
+        SegmentList segments = new SegmentList();
+        MessageDigest digest = newDigest();
+
+        byte[] data = new byte[Math.max(READ_BUFFER_SIZE, 2 * blockLength + 1)];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long base = 0;
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+
+        long literalStart = 0;
+        boolean checksumValid = false;
+        int a = 0;
+        int b = 0;
+
+        while (true) {
+            // Keep the window and the byte after it in the buffer
+            if (!eof && end - start < blockLength + 1) {
+                System.arraycopy(data, start, data, 0, end - start);
+                base += start;
+                end -= start;
+                start = 0;
+                buffer.limit(data.length).position(end);
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                end = buffer.position();
+            }
+
+            int length = Math.min(blockLength, end - start);
+            if (length == 0) {
+                break;
+            }
+            if (!checksumValid) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < length; i++) {
+                    int value = data[start + i] & 0xff;
+                    a += value;
+                    b += (length - i) * value;
+                }
+                checksumValid = true;
+            }
+
+            long position = base + start;
+            int block = signature.find((b << 16) | (a & 0xffff), data, start, length, position, digest);
+            if (block >= 0) {
+                if (position > literalStart) {
+                    segments.add(literalStart, position - literalStart, -1);
+                }
+                segments.add(position, length, (long) block * blockLength);
+                start += length;
+                literalStart = base + start;
+                checksumValid = false;
+                continue;
+            }
+
+            // Roll the window forward by one byte, shrinking it at the end of the file
+            int out = data[start] & 0xff;
+            if (start + length < end) {
+                int in = data[start + length] & 0xff;
+                a += in - out;
+                b += a - length * out;
+            } else {
+                a -= out;
+                b -= length * out;
+            }
+            start++;
+        }
+
+        long sourceSize = base + end;
+        if (sourceSize > literalStart) {
+            segments.add(literalStart, sourceSize - literalStart, -1);
+        }
+        return segments.list;
+    }
+
+    /**
+     * Writes the literal ranges into the destination file and cuts it to the source size.
+     */
+    private void updateInPlace(FileChannel source, Path destPath, List<Segment> segments) throws IOException {
+        try (FileChannel dest = FileChannel.open(destPath, StandardOpenOption.WRITE)) {
+            long size = 0;
+            for (Segment segment : segments) {
+                if (segment.isLiteral()) {
+                    dest.position(segment.sourceOffset);
+                    transfer(source, segment.sourceOffset, segment.length, dest);
+                    writtenBytes.addAndGet(segment.length);
+                } else {
+                    reusedBytes.addAndGet(segment.length);
+                }
+                size = segment.sourceOffset + segment.length;
+            }
+            dest.truncate(size);
+            dest.force(false);
+        }
+    }
+
+    /**
+     * Assembles the new file from destination blocks and literal ranges, then replaces the destination.
+     */
+    private void rebuild(FileChannel source, Path destPath, List<Segment> segments) throws IOException {
+        Path tempPath = destPath.resolveSibling(destPath.getFileName() + TEMP_SUFFIX);
+        try {
+            try (FileChannel basis = FileChannel.open(destPath, StandardOpenOption.READ);
+                 FileChannel temp = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Segment segment : segments) {
+                    if (segment.isLiteral()) {
+                        transfer(source, segment.sourceOffset, segment.length, temp);
+                        writtenBytes.addAndGet(segment.length);
+                    } else {
+                        transfer(basis, segment.basisOffset, segment.length, temp);
+                        reusedBytes.addAndGet(segment.length);
+                    }
+                }
+                temp.force(false);
+            }
+
+            try {
+                Files.move(tempPath, destPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, destPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private static void transfer(FileChannel from, long position, long length, FileChannel to) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            long count = from.transferTo(position + transferred, length - transferred, to);
+            if (count <= 0) {
+                throw new IOException("Source file shrank while updating");
+            }
+            transferred += count;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(STRONG_CHECKSUM_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(STRONG_CHECKSUM_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Weak and strong checksums of the blocks of a destination file.
+     * <p>
+     * The weak checksum is probed for every byte of the source, so blocks are looked up in an open
+     * addressed table of primitive ints rather than a map boxing each checksum. Blocks sharing a
+     * weak checksum are chained in ascending order.
+     */
+    private static final class Signature {
+        private final int blockSize;
+        private final int[] lengths;
+        private final byte[][] strong;
+        private final int[] weak;
+
+        /**
+         * First block of each weak checksum plus one, 0 for an empty slot.
+         */
+        private final int[] slots;
+
+        /**
+         * Next block with the same weak checksum, -1 at the end of a chain.
+         */
+        private final int[] nextBlocks;
+
+        private Signature(int blockSize, int blockCount) {
+            this.blockSize = blockSize;
+            this.lengths = new int[blockCount];
+            this.strong = new byte[blockCount][];
+            this.weak = new int[blockCount];
+            this.nextBlocks = new int[blockCount];
+            // At most half full, so probe sequences stay short
+            this.slots = new int[Integer.highestOneBit(Math.max(blockCount, 1) * 2 - 1) << 1];
+        }
+
+        private static Signature of(FileChannel basis, int blockSize) throws IOException {
+            long size = basis.size();
+            Signature signature = new Signature(blockSize, (int) ((size + blockSize - 1) / blockSize));
+            MessageDigest digest = newDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+
+            for (int block = 0; block < signature.lengths.length; block++) {
+                buffer.clear();
+                while (buffer.hasRemaining() && basis.read(buffer) >= 0) {
+                    // Fill the block
+                }
+                int length = buffer.position();
+                byte[] data = buffer.array();
+
+                int a = 0;
+                int b = 0;
+                for (int i = 0; i < length; i++) {
+                    int value = data[i] & 0xff;
+                    a += value;
+                    b += (length - i) * value;
+                }
+
+                digest.update(data, 0, length);
+                signature.lengths[block] = length;
+                signature.strong[block] = digest.digest();
+                signature.weak[block] = (b << 16) | (a & 0xffff);
+            }
+            signature.index();
+            return signature;
+        }
+
+        /**
+         * Fills the table, going backwards so that each chain ends up in ascending block order.
+         */
+        private void index() {
+            for (int block = weak.length - 1; block >= 0; block--) {
+                int slot = slotOf(weak[block]);
+                nextBlocks[block] = slots[slot] - 1;
+                slots[slot] = block + 1;
+            }
+        }
+
+        /**
+         * Returns the slot holding the weak checksum, or the empty slot it would be stored in.
+         */
+        private int slotOf(int checksum) {
+            int mask = slots.length - 1;
+            // The low half is a plain byte sum, so the bits are mixed and the top ones pick the slot
+            int slot = (checksum * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+            while (slots[slot] != 0 && weak[slots[slot] - 1] != checksum) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Finds a block with the same content as the window, preferring the block at the same offset.
+         *
+         * @return The block index, or -1 if there is none
+         */
+        private int find(int checksum, byte[] data, int offset, int length, long position, MessageDigest digest) {
+            byte[] windowChecksum = null;
+            int found = -1;
+            for (int block = slots[slotOf(checksum)] - 1; block >= 0; block = nextBlocks[block]) {
+                if (lengths[block] != length) {
+                    continue;
+                }
+                if (windowChecksum == null) {
+                    digest.update(data, offset, length);
+                    windowChecksum = digest.digest();
+                }
+                if (MessageDigest.isEqual(windowChecksum, strong[block])) {
+                    if ((long) block * blockSize == position) {
+                        return block;
+                    }
+                    if (found < 0) {
+                        found = block;
+                    }
+                }
+            }
+            return found;
+        }
+    }
+
+    /**
+     * A range of the source, either literal or matching a range of the destination.
+     */
+    private static final class Segment {
+        private final long sourceOffset;
+        private long length;
+        private final long basisOffset;
+
+        private Segment(long sourceOffset, long length, long basisOffset) {
+            this.sourceOffset = sourceOffset;
+            this.length = length;
+            this.basisOffset = basisOffset;
+        }
+
+        private boolean isLiteral() {
+            return basisOffset < 0;
+        }
+
+        private boolean isInPlace() {
+            return isLiteral() || basisOffset == sourceOffset;
+        }
+    }
+
+    /**
+     * Segment list that merges a segment into the previous one where they are contiguous.
+     */
+    private static final class SegmentList {
+        private final List<Segment> list = new ArrayList<>();
+
+        private void add(long sourceOffset, long length, long basisOffset) {
+            if (!list.isEmpty()) {
+                Segment last = list.getLast();
+                boolean contiguous = last.sourceOffset + last.length == sourceOffset;
+                if (contiguous && last.isLiteral() && basisOffset < 0) {
+                    last.length += length;
+                    return;
+                }
+                if (contiguous && !last.isLiteral() && basisOffset == last.basisOffset + last.length) {
+                    last.length += length;
+                    return;
+                }
+            }
+            list.add(new Segment(sourceOffset, length, basisOffset));
+        }
+    }
+}
@@ -0,0 +1,641 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persisted index of a destination tree, holding the path, size, modification time
+ * and optionally the content hash of every entry the comparator has seen. It lets a
+ * comparison read the destination side without walking it. Entries are grouped by
+ * directory so a directory listing can be served with a single lookup.
+ * <p>
+ * As the manifest of a large destination holds millions of entries, the entries of each
+ * directory are kept in a compact block of arrays sorted by name rather than as objects.
+ * Entries recorded after a directory was listed or loaded are collected separately and
+ * merged into its block the next time it is listed or saved.
+ */
+public class DestinationManifest {
+
+    private static final Logger LOGGER = Logger.getLogger(DestinationManifest.class.getName());
+
+    private static final int MAGIC = 0x4d444d46;
+    private static final int VERSION = 1;
+
+    private final Path manifestFile;
+
+    @Getter
+    private final Path destinationRoot;
+
+    /**
+     * Relative directory path, using '/' separators, to the entries of that directory.
+     */
+    private final Map<String, RecordedDirectory> directories = new ConcurrentHashMap<>();
+
+    /**
+     * When the manifest was last rebuilt from a full walk of the destination, 0 if never.
+     */
+    @Getter
+    private volatile long verifiedAt;
+
+    /**
+     * Whether entries changed since the manifest was loaded or last saved.
+     */
+    private volatile boolean modified;
+
+    /**
+     * Creates an empty manifest stored in the given file.
+     *
+     * @param manifestFile File the manifest is loaded from and saved to
+     * @param destinationRoot Root of the destination tree described by the manifest
+     */
+    public DestinationManifest(Path manifestFile, Path destinationRoot) {
+        this.manifestFile = manifestFile;
+        this.destinationRoot = destinationRoot;
+    }
+
+    /**
+     * Loads the manifest of a destination directory from the user's manifest store.
+     * A missing or unreadable manifest results in an empty one.
+     *
+     * @param destinationRoot The destination directory
+     * @return The manifest
+     */
+    public static DestinationManifest forDestination(Path destinationRoot) {
+        Path root = destinationRoot.toAbsolutePath().normalize();
+        Path file = manifestFile(root);
+
+        DestinationManifest manifest = new DestinationManifest(file, root);
+        try {
+            manifest.load();
+        } catch (NoSuchFileException e) {
+            // No manifest yet, the first comparison walks the destination
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read manifest: " + file + " (" + e.getMessage() + ")");
+            manifest.clear();
+        }
+        return manifest;
+    }
+
+    /**
+     * Deletes the stored manifest of a destination directory, for destinations that are changed
+     * without their manifest being kept up to date.
+     *
+     * @param destinationRoot The destination directory
+     * @throws IOException If the manifest cannot be deleted
+     */
+    public static void delete(Path destinationRoot) throws IOException {
+        Files.deleteIfExists(manifestFile(destinationRoot.toAbsolutePath().normalize()));
+    }
+
+    private static Path manifestFile(Path root) {
+        return Paths.get(System.getProperty("user.home"), ".mirror-directories", "manifests",
+                digest(root.toString()) + ".manifest");
+    }
+
+    /**
+     * Checks whether the manifest was verified against the destination recently enough to be trusted.
+     *
+     * @param maxAge Maximum time since the last full walk
+     * @return True if the manifest can be used instead of walking the destination
+     */
+    public boolean isVerifiedWithin(Duration maxAge) {
+        return verifiedAt > 0 && System.currentTimeMillis() - verifiedAt <= maxAge.toMillis();
+    }
+
+    /**
+     * Marks the manifest as freshly rebuilt from a full walk.
+     */
+    public void markVerified() {
+        verifiedAt = System.currentTimeMillis();
+        modified = true;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        directories.clear();
+        verifiedAt = 0;
+        modified = true;
+    }
+
+    /**
+     * Lists a directory of the destination as recorded in the manifest, sorted by name.
+     * Unknown directories are treated as empty.
+     *
+     * @param relativeDir Relative path of the directory
+     * @return The recorded entries
+     */
+    public List<DirectoryEntry> list(String relativeDir) {
+        String key = normalize(relativeDir);
+        RecordedDirectory recorded = directories.get(key);
+        if (recorded == null) {
+            return new ArrayList<>();
+        }
+
+        Path dir = destinationRoot.resolve(relativeDir);
+        EntryBlock entries = recorded.block();
+        List<DirectoryEntry> listing = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            String name = entries.name(i);
+            listing.add(new DirectoryEntry(name, dir.resolve(name), entries.isDirectory(i), entries.size(i),
+                    entries.lastModified(i)));
+        }
+        return listing;
+    }
+
+    /**
+     * Replaces the recorded entries of a directory with a fresh listing,
+     * keeping known hashes of files whose size and modification time did not change.
+     *
+     * @param relativeDir Relative path of the directory
+     * @param listing The directory listing
+     */
+    public void putDirectory(String relativeDir, List<DirectoryEntry> listing) {
+        String key = normalize(relativeDir);
+        RecordedDirectory previous = directories.get(key);
+        EntryBlock.Builder entries = new EntryBlock.Builder(listing.size());
+
+        for (DirectoryEntry entry : listing) {
+            byte[] hash = null;
+            ManifestEntry known = previous == null ? null : previous.get(entry.getName());
+            if (known != null && known.getSize() == entry.getSize()
+                    && known.getLastModified() == entry.getLastModified()) {
+                hash = known.getHash();
+            }
+            entries.add(entry.getName(), new ManifestEntry(entry.isDirectory(), entry.getSize(),
+                    entry.getLastModified(), hash));
+        }
+        directories.put(key, new RecordedDirectory(entries.build()));
+        modified = true;
+    }
+
+    /**
+     * Records a directory that now exists in the destination.
+     *
+     * @param relativePath Relative path of the directory
+     */
+    public void recordDirectory(String relativePath) {
+        String key = normalize(relativePath);
+        directories.computeIfAbsent(key, k -> new RecordedDirectory(EntryBlock.EMPTY));
+        if (!key.isEmpty()) {
+            parentEntries(key).putIfAbsent(name(key), new ManifestEntry(true, 0, 0, null));
+        }
+        modified = true;
+    }
+
+    /**
+     * Records a file that now exists in the destination.
+     *
+     * @param relativePath Relative path of the file
+     * @param attributes The attributes of the destination file
+     * @param hash The content hash if known, or null
+     */
+    public void recordFile(String relativePath, BasicFileAttributes attributes, byte[] hash) {
+        String key = normalize(relativePath);
+        parentEntries(key).put(name(key), new ManifestEntry(false, attributes.size(),
+                attributes.lastModifiedTime().toMillis(), hash));
+        modified = true;
+    }
+
+    /**
+     * Forgets a file or directory that has been removed from the destination, including
+     * everything recorded below a directory.
+     *
+     * @param relativePath Relative path of the removed entry
+     */
+    public void removeEntry(String relativePath) {
+        String key = normalize(relativePath);
+        RecordedDirectory entries = directories.get(parent(key));
+        if (entries != null) {
+            entries.remove(name(key));
+        }
+        directories.keySet().removeIf(dir -> dir.equals(key) || dir.startsWith(key + "/"));
+        modified = true;
+    }
+
+    /**
+     * Gets the recorded content hash of a file.
+     *
+     * @param relativePath Relative path of the file
+     * @return The hash, or null if none is recorded
+     */
+    public byte[] getHash(String relativePath) {
+        String key = normalize(relativePath);
+        RecordedDirectory entries = directories.get(parent(key));
+        ManifestEntry entry = entries == null ? null : entries.get(name(key));
+        return entry == null ? null : entry.getHash();
+    }
+
+    /**
+     * Records the content hash of a file already present in the manifest.
+     *
+     * @param relativePath Relative path of the file
+     * @param hash The content hash
+     */
+    public void setHash(String relativePath, byte[] hash) {
+        String key = normalize(relativePath);
+        RecordedDirectory entries = directories.get(parent(key));
+        if (entries != null) {
+            entries.setHash(name(key), hash);
+            modified = true;
+        }
+    }
+
+    /**
+     * Reads the manifest file, replacing all entries.
+     *
+     * @throws IOException If the file cannot be read or is not a manifest
+     */
+    public void load() throws IOException {
+        directories.clear();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifestFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported manifest format");
+            }
+            verifiedAt = in.readLong();
+
+            int directoryCount = in.readInt();
+            for (int i = 0; i < directoryCount; i++) {
+                String dir = in.readUTF();
+                int entryCount = in.readInt();
+                EntryBlock.Builder entries = new EntryBlock.Builder(entryCount);
+
+                for (int j = 0; j < entryCount; j++) {
+                    String name = in.readUTF();
+                    boolean directory = in.readBoolean();
+                    long size = in.readLong();
+                    long lastModified = in.readLong();
+                    int hashLength = in.readUnsignedShort();
+                    byte[] hash = null;
+                    if (hashLength > 0) {
+                        hash = new byte[hashLength];
+                        in.readFully(hash);
+                    }
+                    entries.add(name, new ManifestEntry(directory, size, lastModified, hash));
+                }
+                directories.put(dir, new RecordedDirectory(entries.build()));
+            }
+        }
+        modified = false;
+    }
+
+    /**
+     * Writes the manifest file, replacing the previous one atomically. Does nothing if the
+     * manifest did not change since it was loaded or last saved, so comparisons that only
+     * read it do not rewrite it.
+     *
+     * @throws IOException If the file cannot be written
+     */
+    public void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        // Cleared before taking the snapshot, so changes made while writing are saved next time
+        modified = false;
+        try {
+            write();
+        } catch (IOException e) {
+            modified = true;
+            throw e;
+        }
+    }
+
+    private void write() throws IOException {
+        Files.createDirectories(manifestFile.getParent());
+        Path tempFile = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(verifiedAt);
+
+            Map<String, RecordedDirectory> snapshot = Map.copyOf(directories);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, RecordedDirectory> dir : snapshot.entrySet()) {
+                EntryBlock entries = dir.getValue().block();
+                out.writeUTF(dir.getKey());
+                out.writeInt(entries.size());
+
+                for (int i = 0; i < entries.size(); i++) {
+                    out.writeUTF(entries.name(i));
+                    out.writeBoolean(entries.isDirectory(i));
+                    out.writeLong(entries.size(i));
+                    out.writeLong(entries.lastModified(i));
+                    byte[] hash = entries.hash(i);
+                    out.writeShort(hash == null ? 0 : hash.length);
+                    if (hash != null) {
+                        out.write(hash);
+                    }
+                }
+            }
+        }
+
+        Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private RecordedDirectory parentEntries(String key) {
+        return directories.computeIfAbsent(parent(key), k -> new RecordedDirectory(EntryBlock.EMPTY));
+    }
+
+    private static String normalize(String relativePath) {
+        String path = relativePath.replace(File.separatorChar, '/');
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        return path;
+    }
+
+    private static String parent(String key) {
+        int index = key.lastIndexOf('/');
+        return index < 0 ? "" : key.substring(0, index);
+    }
+
+    private static String name(String key) {
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
+    static String digest(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Recorded state of a single destination entry.
+     */
+    @Getter @AllArgsConstructor
+    private static class ManifestEntry {
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+        private final byte[] hash;
+    }
+
+    /**
+     * Entries of one directory: a compact block plus the entries recorded or removed since
+     * the block was built, guarded by the directory itself.
+     */
+    private static final class RecordedDirectory {
+
+        /**
+         * Marks an entry removed since the block was built.
+         */
+        private static final ManifestEntry REMOVED = new ManifestEntry(false, 0, 0, null);
+
+        private EntryBlock block;
+
+        private Map<String, ManifestEntry> changes;
+
+        private RecordedDirectory(EntryBlock block) {
+            this.block = block;
+        }
+
+        private synchronized ManifestEntry get(String name) {
+            ManifestEntry changed = changes == null ? null : changes.get(name);
+            if (changed != null) {
+                return changed == REMOVED ? null : changed;
+            }
+            return block.get(name);
+        }
+
+        private synchronized void put(String name, ManifestEntry entry) {
+            if (changes == null) {
+                changes = new HashMap<>();
+            }
+            changes.put(name, entry);
+        }
+
+        private synchronized void putIfAbsent(String name, ManifestEntry entry) {
+            if (get(name) == null) {
+                put(name, entry);
+            }
+        }
+
+        private synchronized void remove(String name) {
+            if (get(name) != null) {
+                put(name, REMOVED);
+            }
+        }
+
+        private synchronized void setHash(String name, byte[] hash) {
+            ManifestEntry entry = get(name);
+            if (entry != null) {
+                put(name, new ManifestEntry(entry.isDirectory(), entry.getSize(), entry.getLastModified(), hash));
+            }
+        }
+
+        /**
+         * Gets all entries, merging the changes into a new block first.
+         */
+        private synchronized EntryBlock block() {
+            if (changes != null) {
+                block = block.merge(changes);
+                changes = null;
+            }
+            return block;
+        }
+    }
+
+    /**
+     * Immutable entries of a directory sorted by name, stored column-wise in arrays with all
+     * names encoded back to back, which takes a fraction of the memory of one object per entry.
+     */
+    private static final class EntryBlock {
+
+        private static final EntryBlock EMPTY = new Builder(0).build();
+
+        private final byte[] names;
+
+        /**
+         * End of the name of every entry in the names array, the name starts where the previous one ends.
+         */
+        private final int[] nameEnds;
+
+        private final boolean[] directories;
+        private final long[] sizes;
+        private final long[] lastModified;
+
+        /**
+         * Hashes of the entries, null if no entry has a hash.
+         */
+        private final byte[][] hashes;
+
+        private EntryBlock(byte[] names, int[] nameEnds, boolean[] directories, long[] sizes, long[] lastModified,
+                           byte[][] hashes) {
+            this.names = names;
+            this.nameEnds = nameEnds;
+            this.directories = directories;
+            this.sizes = sizes;
+            this.lastModified = lastModified;
+            this.hashes = hashes;
+        }
+
+        private int size() {
+            return nameEnds.length;
+        }
+
+        private String name(int index) {
+            int start = index == 0 ? 0 : nameEnds[index - 1];
+            return new String(names, start, nameEnds[index] - start, StandardCharsets.UTF_8);
+        }
+
+        private boolean isDirectory(int index) {
+            return directories[index];
+        }
+
+        private long size(int index) {
+            return sizes[index];
+        }
+
+        private long lastModified(int index) {
+            return lastModified[index];
+        }
+
+        private byte[] hash(int index) {
+            return hashes == null ? null : hashes[index];
+        }
+
+        private ManifestEntry entry(int index) {
+            return new ManifestEntry(directories[index], sizes[index], lastModified[index], hash(index));
+        }
+
+        private ManifestEntry get(String name) {
+            int low = 0;
+            int high = size() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int order = name(middle).compareTo(name);
+                if (order < 0) {
+                    low = middle + 1;
+                } else if (order > 0) {
+                    high = middle - 1;
+                } else {
+                    return entry(middle);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Creates a block with changed entries replaced, removed entries dropped and new entries added.
+         */
+        private EntryBlock merge(Map<String, ManifestEntry> changes) {
+            Builder merged = new Builder(size() + changes.size());
+            Iterator<Map.Entry<String, ManifestEntry>> changed = new TreeMap<>(changes).entrySet().iterator();
+            Map.Entry<String, ManifestEntry> change = changed.hasNext() ? changed.next() : null;
+
+            for (int i = 0; i < size(); i++) {
+                String name = name(i);
+                while (change != null && change.getKey().compareTo(name) < 0) {
+                    merged.addChange(change);
+                    change = changed.hasNext() ? changed.next() : null;
+                }
+                if (change != null && change.getKey().equals(name)) {
+                    merged.addChange(change);
+                    change = changed.hasNext() ? changed.next() : null;
+                } else {
+                    merged.add(name, entry(i));
+                }
+            }
+            while (change != null) {
+                merged.addChange(change);
+                change = changed.hasNext() ? changed.next() : null;
+            }
+            return merged.build();
+        }
+
+        /**
+         * Collects entries for a block, sorting them by name unless added in order.
+         */
+        private static final class Builder {
+            private final List<String> names;
+            private final List<ManifestEntry> entries;
+            private boolean sorted = true;
+
+            private Builder(int expectedSize) {
+                names = new ArrayList<>(expectedSize);
+                entries = new ArrayList<>(expectedSize);
+            }
+
+            private void add(String name, ManifestEntry entry) {
+                if (!names.isEmpty() && names.get(names.size() - 1).compareTo(name) >= 0) {
+                    sorted = false;
+                }
+                names.add(name);
+                entries.add(entry);
+            }
+
+            private void addChange(Map.Entry<String, ManifestEntry> change) {
+                if (change.getValue() != RecordedDirectory.REMOVED) {
+                    add(change.getKey(), change.getValue());
+                }
+            }
+
+            private EntryBlock build() {
+                Integer[] order = new Integer[names.size()];
+                Arrays.setAll(order, i -> i);
+                if (!sorted) {
+                    Arrays.sort(order, Comparator.comparing(names::get));
+                }
+
+                ByteArrayOutputStream encodedNames = new ByteArrayOutputStream(names.size() * 16);
+                int[] nameEnds = new int[order.length];
+                boolean[] directories = new boolean[order.length];
+                long[] sizes = new long[order.length];
+                long[] lastModified = new long[order.length];
+                byte[][] hashes = null;
+
+                for (int i = 0; i < order.length; i++) {
+                    encodedNames.writeBytes(names.get(order[i]).getBytes(StandardCharsets.UTF_8));
+                    nameEnds[i] = encodedNames.size();
+                    ManifestEntry entry = entries.get(order[i]);
+                    directories[i] = entry.isDirectory();
+                    sizes[i] = entry.getSize();
+                    lastModified[i] = entry.getLastModified();
+                    if (entry.getHash() != null) {
+                        if (hashes == null) {
+                            hashes = new byte[order.length][];
+                        }
+                        hashes[i] = entry.getHash();
+                    }
+                }
+                return new EntryBlock(encodedNames.toByteArray(), nameEnds, directories, sizes, lastModified, hashes);
+            }
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+import lombok.Setter;
+import me.vbu.mirrordirectories.metrics.MirrorMetrics;
+import me.vbu.mirrordirectories.metrics.Phase;
+import me.vbu.mirrordirectories.metrics.RateLimitedLogger;
+import me.vbu.mirrordirectories.model.DiffEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes entries that only exist in the destination, as found by a comparison in mirror mode.
+ * Entries are either deleted, with directory trees removed by parallel fork-join tasks, or moved
+ * into a trash directory at the destination root. Symbolic links are removed themselves and never
+ * followed, and an entry whose parent does not resolve to a directory inside the destination root
+ * is refused, so a path leading through a link can never remove anything outside the destination.
+ * Failures are collected and reported together once every entry has been attempted.
+ */
+public class DestinationPruner {
+
+    private static final Logger LOGGER = Logger.getLogger(DestinationPruner.class.getName());
+
+    private static final RateLimitedLogger ITEM_LOGGER = new RateLimitedLogger(LOGGER, 50, Duration.ofSeconds(1));
+
+    /**
+     * Name of the directory at the destination root receiving entries in {@link PruneMode#TRASH} mode.
+     */
+    public static final String TRASH_DIRECTORY = ".mirror-trash";
+
+    private static final DateTimeFormatter TRASH_NAME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    /**
+     * Maximum number of failures attached as suppressed exceptions to the reported error.
+     */
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    /**
+     * Whether extraneous entries are deleted or moved to the trash directory.
+     */
+    @Getter @Setter
+    private PruneMode mode = PruneMode.DELETE;
+
+    /**
+     * Number of threads deleting directory trees.
+     */
+    @Getter
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private final AtomicLong removedEntries = new AtomicLong();
+
+    private final AtomicLong removedBytes = new AtomicLong();
+
+    private final Queue<FileOperationFailure> failures = new ConcurrentLinkedQueue<>();
+
+    @Getter
+    private final MirrorMetrics metrics;
+
+    public DestinationPruner() {
+        this(new MirrorMetrics());
+    }
+
+    /**
+     * Creates a pruner recording into the given metrics.
+     *
+     * @param metrics The metrics registry
+     */
+    public DestinationPruner(MirrorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Checks whether a destination entry must be kept even though the source lacks it: the trash
+     * directory itself, partial files that an interrupted copy resumes from and temporary files
+     * of a journaled copy, which a resume rolls back.
+     *
+     * @param relativePath Relative path of the destination entry
+     * @return True if the entry is never reported as extraneous
+     */
+    public static boolean isProtected(String relativePath) {
+        return relativePath.equals(TRASH_DIRECTORY) || relativePath.endsWith(ChannelCopyFileOperation.PARTIAL_SUFFIX)
+                || relativePath.endsWith(CopyJournal.TEMP_SUFFIX);
+    }
+
+    /**
+     * Sets the number of threads deleting directory trees.
+     *
+     * @param parallelism The number of threads, at least 1
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Gets the number of extraneous entries removed by the last run, a directory counting once.
+     *
+     * @return The removed entry count
+     */
+    public long getRemovedEntries() {
+        return removedEntries.get();
+    }
+
+    /**
+     * Gets the number of bytes of the files removed by the last run. Contents of directories
+     * moved to the trash are not counted, since they are not listed.
+     *
+     * @return The removed byte count
+     */
+    public long getRemovedBytes() {
+        return removedBytes.get();
+    }
+
+    /**
+     * Gets the failures collected during the last run.
+     *
+     * @return The failures
+     */
+    public List<FileOperationFailure> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * Removes extraneous entries from the destination.
+     *
+     * @param destRoot Destination root directory
+     * @param extraneous The extraneous entries, with paths relative to the destination root
+     * @param listener Listener notified about every removed entry
+     * @throws IOException If any entry could not be removed
+     */
+    public void prune(Path destRoot, List<DiffEntry> extraneous, ProcessedItemListener listener) throws IOException {
+        reset();
+        remove(destRoot, extraneous, listener);
+    }
+
+    /**
+     * Clears the counts and failures of the last run, starting a run made of several removals.
+     */
+    public void reset() {
+        removedEntries.set(0);
+        removedBytes.set(0);
+        failures.clear();
+    }
+
+    /**
+     * Removes entries from the destination as part of the current run, adding to its counts and failures.
+     *
+     * @param destRoot Destination root directory
+     * @param extraneous The entries, with paths relative to the destination root
+     * @param listener Listener notified about every removed entry
+     * @throws IOException If any entry of the run could not be removed
+     */
+    public void remove(Path destRoot, List<DiffEntry> extraneous, ProcessedItemListener listener) throws IOException {
+        if (extraneous.isEmpty()) {
+            return;
+        }
+
+        Path realRoot = destRoot.toRealPath();
+        List<DiffEntry> contained = new ArrayList<>(extraneous.size());
+        for (DiffEntry entry : extraneous) {
+            if (isInside(realRoot, destRoot.resolve(entry.getRelativePath()), entry.getRelativePath())) {
+                contained.add(entry);
+            }
+        }
+
+        try (MirrorMetrics.PhaseTimer ignored = metrics.startPhase(Phase.PRUNE)) {
+            if (mode == PruneMode.TRASH) {
+                moveToTrash(destRoot, contained, listener);
+            } else {
+                delete(destRoot, contained, listener);
+            }
+        }
+
+        reportFailures();
+    }
+
+    /**
+     * Checks that the parent directory of an entry resolves to a directory inside the destination root,
+     * recording a failure if it does not. An entry that is already gone passes, there is nothing to remove.
+     */
+    private boolean isInside(Path realRoot, Path path, String relativePath) {
+        try {
+            if (path.getParent().toRealPath().startsWith(realRoot)) {
+                return true;
+            }
+        } catch (NoSuchFileException e) {
+            return true;
+        } catch (IOException e) {
+            recordFailure(relativePath, new IOException("Failed to resolve", e));
+            return false;
+        }
+        recordFailure(relativePath, new IOException("Refusing to remove an entry outside the destination"));
+        return false;
+    }
+
+    /**
+     * Deletes the entries, each as its own fork-join task.
+     */
+    private void delete(Path destRoot, List<DiffEntry> extraneous, ProcessedItemListener listener) {
+        List<DeleteTask> tasks = new ArrayList<>(extraneous.size());
+        for (DiffEntry entry : extraneous) {
+            tasks.add(new DeleteTask(destRoot.resolve(entry.getRelativePath()), entry.getRelativePath(), listener));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Moves the entries below a new directory of the trash, keeping their relative paths.
+     */
+    private void moveToTrash(Path destRoot, List<DiffEntry> extraneous, ProcessedItemListener listener) {
+        Path trash = newTrashDirectory(destRoot);
+
+        for (DiffEntry entry : extraneous) {
+            String relativePath = entry.getRelativePath();
+            Path target = trash.resolve(relativePath);
+            try {
+                Files.createDirectories(target.getParent());
+                Files.move(destRoot.resolve(relativePath), target);
+                removedEntries.incrementAndGet();
+                removedBytes.addAndGet(entry.getKind().isDirectory() ? 0 : entry.getSize());
+                ITEM_LOGGER.log(Level.FINE, () -> "Moved to trash: " + relativePath);
+                listener.onItemRemoved(relativePath);
+            } catch (NoSuchFileException e) {
+                listener.onItemRemoved(relativePath);
+            } catch (IOException e) {
+                recordFailure(relativePath, new IOException("Failed to move to trash", e));
+            }
+        }
+    }
+
+    /**
+     * Picks a trash directory for this run that does not exist yet, named after the current time.
+     */
+    private static Path newTrashDirectory(Path destRoot) {
+        Path trashRoot = destRoot.resolve(TRASH_DIRECTORY);
+        String name = LocalDateTime.now().format(TRASH_NAME);
+        Path trash = trashRoot.resolve(name);
+        for (int i = 2; Files.exists(trash, LinkOption.NOFOLLOW_LINKS); i++) {
+            trash = trashRoot.resolve(name + "-" + i);
+        }
+        return trash;
+    }
+
+    /**
+     * Records an entry that could not be removed.
+     */
+    private void recordFailure(String relativePath, IOException cause) {
+        failures.add(new FileOperationFailure(relativePath, cause));
+        metrics.recordFailure();
+        ITEM_LOGGER.log(Level.WARNING, () -> cause.getMessage() + ": " + relativePath);
+    }
+
+    /**
+     * Throws a single exception summarizing all collected failures, if any.
+     */
+    private void reportFailures() throws IOException {
+        if (failures.isEmpty()) {
+            return;
+        }
+
+        IOException error = new IOException("Failed to remove " + failures.size() + " item(s), first: "
+                + failures.peek());
+        failures.stream()
+                .limit(MAX_REPORTED_FAILURES)
+                .forEach(failure -> error.addSuppressed(failure.getCause()));
+        throw error;
+    }
+
+    /**
+     * Fork-join task deleting a file, link or directory tree. Files of a directory are deleted by
+     * the task itself, subdirectories are handed to child tasks and the directory is deleted once
+     * they have completed. Only the task of an extraneous entry notifies the listener.
+     */
+    private final class DeleteTask extends RecursiveAction {
+        private final Path path;
+        private final String relativePath;
+        private final ProcessedItemListener listener;
+
+        private DeleteTask(Path path, String relativePath, ProcessedItemListener listener) {
+            this.path = path;
+            this.relativePath = relativePath;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            long bytes = 0;
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isDirectory()) {
+                    bytes = deleteContents();
+                } else {
+                    bytes = attributes.size();
+                }
+                Files.delete(path);
+            } catch (NoSuchFileException e) {
+                // Already gone
+            } catch (IOException e) {
+                recordFailure(relativePath, new IOException("Failed to delete", e));
+                return;
+            }
+
+            removedBytes.addAndGet(bytes);
+            if (listener != null) {
+                removedEntries.incrementAndGet();
+                ITEM_LOGGER.log(Level.FINE, () -> "Deleted: " + relativePath);
+                listener.onItemRemoved(relativePath);
+            }
+        }
+
+        /**
+         * Deletes everything inside the directory of this task.
+         *
+         * @return The number of bytes of the deleted files
+         */
+        private long deleteContents() throws IOException {
+            List<DeleteTask> subtasks = new ArrayList<>();
+            long bytes = 0;
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path child : stream) {
+                    String childPath = relativePath + File.separator + child.getFileName();
+                    try {
+                        BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS);
+                        if (attributes.isDirectory()) {
+                            subtasks.add(new DeleteTask(child, childPath, null));
+                        } else {
+                            Files.delete(child);
+                            bytes += attributes.size();
+                        }
+                    } catch (NoSuchFileException e) {
+                        // Already gone
+                    } catch (IOException e) {
+                        recordFailure(childPath, new IOException("Failed to delete", e));
+                    }
+                }
+            }
+
+            invokeAll(subtasks);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package me.vbu.mirrordirectories.service;
+
+/**
+ * How the destination side of a comparison is obtained.
+ */
+public enum DestinationScanMode {
+    /**
+     * Walks the destination tree on every comparison without keeping a manifest,
+     * a stored manifest is deleted as it is no longer kept up to date.
+     */
+    WALK,
+
+    /**
+     * Reads the destination from the persisted manifest, walking it only when
+     * no manifest exists or its last full verification is too old.
+     */
+    MANIFEST
+}
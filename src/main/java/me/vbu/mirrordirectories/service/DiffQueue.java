@@ -0,0 +1,138 @@
+package me.vbu.mirrordirectories.service;
+
+import me.vbu.mirrordirectories.model.DiffEntry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded hand-over between the comparison walk producing differences and the consumer
+ * iterating over them. Producers block while the queue is full, so memory stays bounded
+ * by the queue capacity no matter how large the difference is.
+ */
+class DiffQueue implements Iterator<DiffEntry> {
+
+    private static final DiffEntry END = new DiffEntry(DiffEntry.Kind.MISSING_FILE, "", 0, 0);
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final BlockingQueue<DiffEntry> queue;
+    private volatile boolean cancelled;
+    private volatile Throwable failure;
+    private DiffEntry next;
+    private boolean finished;
+
+    DiffQueue(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Adds a difference, waiting while the queue is full.
+     *
+     * @param entry The difference
+     * @throws CancellationException If the consumer has closed the stream
+     */
+    void put(DiffEntry entry) {
+        try {
+            while (!queue.offer(entry, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (cancelled) {
+                    throw new CancellationException("Difference stream closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while emitting differences");
+        }
+    }
+
+    /**
+     * Marks the end of the differences.
+     *
+     * @param error The error that ended the comparison, or null if it completed
+     */
+    void finish(Throwable error) {
+        failure = error;
+        if (!cancelled) {
+            try {
+                put(END);
+            } catch (CancellationException ignored) {
+                // The consumer is gone
+            }
+        }
+    }
+
+    /**
+     * Stops the producers and discards pending differences.
+     */
+    void cancel() {
+        cancelled = true;
+        queue.clear();
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Gets the number of differences waiting for the consumer.
+     *
+     * @return The queue depth
+     */
+    int size() {
+        return queue.size();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+
+        try {
+            next = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for differences");
+        }
+
+        if (next == END) {
+            next = null;
+            finished = true;
+            rethrowFailure();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public DiffEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        DiffEntry entry = next;
+        next = null;
+        return entry;
+    }
+
+    private void rethrowFailure() {
+        Throwable error = failure;
+        if (error == null) {
+            return;
+        }
+        if (error instanceof RuntimeException runtimeException) {
+            throw runtimeException;
+        }
+        if (error instanceof Error e) {
+            throw e;
+        }
+        throw new UncheckedIOException(new IOException("Comparison failed", error));
+    }
+}
@@ -2,14 +2,41 @@ package me.vbu.mirrordirectories.service;
 
 import lombok.Getter;
 import lombok.Setter;
+import me.vbu.mirrordirectories.metrics.MirrorMetrics;
+import me.vbu.mirrordirectories.metrics.Phase;
+import me.vbu.mirrordirectories.metrics.RateLimitedLogger;
+import me.vbu.mirrordirectories.model.DiffEntry;
 import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
+import me.vbu.mirrordirectories.model.filesystem.CompactDiffTree;
 import me.vbu.mirrordirectories.model.filesystem.DirectoryNode;
+import me.vbu.mirrordirectories.model.filesystem.ExtraneousNode;
 import me.vbu.mirrordirectories.model.filesystem.FileNode;
+import me.vbu.mirrordirectories.model.filesystem.ModifiedFileNode;
 import me.vbu.mirrordirectories.model.filesystem.Node;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Service for comparing directories using a hierarchical approach.
@@ -17,51 +44,237 @@ import java.nio.file.Path;
  */
 public class DirectoryComparator {
 
+    private static final Logger LOGGER = Logger.getLogger(DirectoryComparator.class.getName());
+
+    /**
+     * Limits per entry messages, an unreadable subtree fails to list or hash every entry below it.
+     */
+    private static final RateLimitedLogger ITEM_LOGGER = new RateLimitedLogger(LOGGER, 50, Duration.ofSeconds(1));
+
+    /**
+     * Allowed clock difference when comparing modification times, covering
+     * file systems such as FAT that only store times with two second precision.
+     */
+    static final long MODIFIED_TIME_TOLERANCE_MILLIS = 2000;
+
     private DirectoryNode comparisonResult;
 
     @Setter @Getter
     private SourceDestinationDirectoryPair directoryPair;
 
-    @Setter
+    @Setter @Getter
     private FileOperation fileOperation;
 
+    private final AtomicLong totalFileCount = new AtomicLong();
+
+    private final AtomicLong modifiedFileCount = new AtomicLong();
+
+    private final AtomicLong extraneousCount = new AtomicLong();
+
+    /**
+     * Destination entries of another type than the source entries of the same path, found in mirror
+     * mode and keyed by relative path. They are removed before the source entries are copied.
+     */
+    private final Map<String, DiffEntry> replacedEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Whether entries only present in the destination are reported as extraneous and removed
+     * after the differences have been processed, making the destination an exact mirror. Destination
+     * entries of another type than the source entry are removed and replaced by the source entry.
+     */
+    @Getter @Setter
+    private boolean mirrorMode = false;
+
+    /**
+     * How files present on both sides are compared. Defaults to the cheap metadata check.
+     */
+    @Getter @Setter
+    private ComparisonLevel comparisonLevel = ComparisonLevel.METADATA;
+
+    /**
+     * Hasher for content level comparisons, reusing hashes of unchanged files from earlier runs.
+     */
+    private final ContentHasher contentHasher = new ContentHasher(FileHashCache.getDefault());
+
+    /**
+     * Hasher for checksum level comparisons, sharing the cache with the content hasher.
+     */
+    private final ContentHasher checksumHasher = new ContentHasher(FileHashCache.getDefault(),
+            ContentHasher.CHECKSUM_ALGORITHM);
+
+    /**
+     * Number of worker threads used to walk the directory trees during a comparison.
+     * Lower values suit spinning disks, higher values suit SSDs and network shares.
+     */
+    @Getter
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Metrics of the current or last comparison and copy, reset when a comparison starts.
+     */
     @Getter
-    private long processedFileCount = -1;
+    private final MirrorMetrics metrics = new MirrorMetrics();
 
+    /**
+     * Engine that applies the file operation to the differences, configurable for worker count.
+     */
     @Getter
-    private long totalFileCount = 0;
+    private final CopyEngine copyEngine = new CopyEngine(metrics);
+
+    /**
+     * Removes the extraneous entries found in mirror mode, configurable for deletion or trash.
+     */
+    @Getter
+    private final DestinationPruner pruner = new DestinationPruner(metrics);
+
+    /**
+     * Whether the destination is walked or read from the manifest when comparing.
+     */
+    @Getter @Setter
+    private DestinationScanMode destinationScanMode = DestinationScanMode.MANIFEST;
+
+    /**
+     * How long a manifest is trusted before the destination is walked again for a full verification.
+     */
+    @Getter @Setter
+    private Duration manifestMaxAge = Duration.ofHours(24);
+
+    /**
+     * Manifest of the current destination, null when the destination is walked.
+     */
+    private DestinationManifest manifest;
+
+    /**
+     * Maximum number of differences buffered between a streaming comparison and its consumer.
+     */
+    @Getter @Setter
+    private int streamQueueCapacity = 10_000;
+
+    /**
+     * Whether comparison results are kept in a {@link CompactDiffTree} instead of a tree of nodes,
+     * which greatly reduces memory for comparisons with millions of differences.
+     */
+    @Getter @Setter
+    private boolean compactResults = false;
+
+    /**
+     * Whether files are written into delta zip archives in the destination directory instead of
+     * being copied as individual files, see {@link ArchiveDestination}. The destination is then
+     * listed from the archive index and the file operation is not used.
+     */
+    @Getter @Setter
+    private boolean archiveMode = false;
 
+    /**
+     * Whether copies are recorded in a {@link CopyJournal}, so a run that dies halfway can be
+     * finished by {@link #resume()} without comparing the trees again.
+     */
+    @Getter @Setter
+    private boolean journaling = false;
+
+    /**
+     * Rules deciding which entries are mirrored, null to mirror everything. Excluded entries are
+     * left alone on both sides: excluded directories are not listed and never extraneous.
+     */
+    @Getter @Setter
+    private PathFilter filter;
+
+    /**
+     * Archives of the current destination, loaded by the last comparison in archive mode.
+     */
     @Getter
-    private String currentlyCopyingFileName = "";
+    private ArchiveDestination archive;
+
+    private volatile boolean scanFromManifest;
+
+    /**
+     * Destination whose stored manifest was deleted when walking it, so it is only deleted once.
+     */
+    private Path walkedDestination;
+
+    /**
+     * Creates a comparator without a directory pair. Every instance keeps the state of its own
+     * comparison and copy, so independent pairs can be mirrored concurrently by separate instances.
+     */
+    public DirectoryComparator() {
+        // Default to copy operation, choosing the copy strategy by file size
+        this.fileOperation = new SizeClassedCopyOperation();
+    }
+
+    /**
+     * Creates a comparator for a directory pair.
+     *
+     * @param directoryPair The directories to compare
+     */
+    public DirectoryComparator(SourceDestinationDirectoryPair directoryPair) {
+        this();
+        this.directoryPair = directoryPair;
+    }
+
+    /**
+     * Gets the number of files found missing or modified by the last comparison.
+     *
+     * @return The total number of files to process
+     */
+    public long getTotalFileCount() {
+        return totalFileCount.get();
+    }
+
+    /**
+     * Gets the number of files processed by the current or last run.
+     *
+     * @return The processed file count
+     */
+    public long getProcessedFileCount() {
+        return archiveMode ? metrics.getFilesProcessed() : copyEngine.getProcessedFileCount();
+    }
+
+    /**
+     * Gets the file most recently started by one of the copy workers.
+     *
+     * @return Relative path of the file
+     */
+    public String getCurrentlyCopyingFileName() {
+        return copyEngine.getCurrentlyCopyingFileName();
+    }
 
     /**
-     * Singleton instance
+     * Gets the number of extraneous entries found by the last comparison in mirror mode,
+     * a directory counting once for its whole subtree.
+     *
+     * @return The number of extraneous entries
      */
-    private static DirectoryComparator instance;
+    public long getExtraneousCount() {
+        return extraneousCount.get();
+    }
 
     /**
-     * Private constructor to enforce singleton pattern.
+     * Gets the number of files found modified by the last comparison.
+     *
+     * @return The number of modified files
      */
-    private DirectoryComparator() {
-        // Default to copy operation
-        this.fileOperation = new CopyFileOperation();
+    public long getModifiedFileCount() {
+        return modifiedFileCount.get();
     }
 
     /**
-     * Gets the singleton instance.
+     * Sets the number of worker threads used when comparing directories.
      *
-     * @return The singleton instance
+     * @param parallelism The number of worker threads, at least 1
      */
-    public static synchronized DirectoryComparator getInstance() {
-        if (instance == null) {
-            instance = new DirectoryComparator();
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
         }
-        return instance;
+        this.parallelism = parallelism;
     }
 
     /**
      * Recursively compares directories and returns a hierarchy of paths that exist in
-     * source but not in destination.
+     * source but not in destination, or that differ according to the comparison level.
+     * Each subdirectory is compared as a separate fork-join task, so independent subtrees
+     * are walked in parallel. Depending on the destination scan mode the destination side
+     * is read from the manifest or walked; in manifest mode a walk rebuilds the manifest.
      *
      * @return Root node of the missing items hierarchy
      */
@@ -78,71 +291,530 @@ public class DirectoryComparator {
         }
 
         String dirName = sourceDir.getName();
-        comparisonResult = new DirectoryNode(dirName);
-        compareDirectoriesInternal(sourceDir, destDir, comparisonResult);
+
+        if (compactResults) {
+            try (Stream<DiffEntry> differences = streamDifferences()) {
+                comparisonResult = CompactDiffTree.build(dirName, differences.iterator()).getRoot();
+            }
+            return comparisonResult;
+        }
+
+        DirectoryNode result = new DirectoryNode(dirName);
+        scanFromManifest = loadDestination();
+        if (!scanFromManifest && manifest != null) {
+            manifest.clear();
+        }
+
+        runComparison(new DirectoryTask(sourceDir.toPath(), destDir.toPath(), "", true, result, null));
+
+        if (!scanFromManifest && manifest != null) {
+            manifest.markVerified();
+        }
+        saveManifest();
+
+        comparisonResult = result;
         return comparisonResult;
     }
 
     /**
-     * Internal method to recursively compare directories and build the hierarchy.
+     * Compares the directories of the pair like {@link #compareDirectories()}, but emits the
+     * differences as they are discovered instead of building a hierarchy. The walk runs in the
+     * background and pauses while the consumer falls behind by more than the stream queue
+     * capacity. A directory always precedes the entries below it. Closing the stream stops the
+     * walk. The differences are not kept as the last comparison result.
+     *
+     * @return Stream of differences, to be closed after use
+     */
+    public Stream<DiffEntry> streamDifferences() {
+        if (directoryPair == null) {
+            throw new IllegalStateException("No Directory Pair has been set. Call setDirectoryPair() first.");
+        }
+        if (!directoryPair.validateDirectories()) {
+            throw new IllegalArgumentException("Invalid source or destination directory");
+        }
+
+        Path sourceDir = directoryPair.getSourceDirectory().toPath();
+        Path destDir = directoryPair.getDestinationDirectory().toPath();
+
+        boolean fromManifest = loadDestination();
+        scanFromManifest = fromManifest;
+        if (!fromManifest && manifest != null) {
+            manifest.clear();
+        }
+        totalFileCount.set(0);
+        modifiedFileCount.set(0);
+        extraneousCount.set(0);
+        replacedEntries.clear();
+        metrics.reset();
+
+        DiffQueue queue = new DiffQueue(streamQueueCapacity);
+        metrics.registerGauge("stream.buffered", queue::size);
+        Thread producer = new Thread(() -> {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            metrics.registerGauge("scan.queued", pool::getQueuedTaskCount);
+            try (MirrorMetrics.PhaseTimer ignored = metrics.startPhase(Phase.SCAN)) {
+                pool.invoke(new DirectoryTask(sourceDir, destDir, "", true, null, queue));
+                if (!fromManifest && manifest != null) {
+                    manifest.markVerified();
+                }
+                saveManifest();
+                queue.finish(null);
+            } catch (Throwable e) {
+                queue.finish(e);
+            } finally {
+                pool.shutdownNow();
+                metrics.unregisterGauge("scan.queued");
+            }
+        }, "difference-producer");
+        producer.setDaemon(true);
+        producer.start();
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(queue,
+                        Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    queue.cancel();
+                    metrics.unregisterGauge("stream.buffered");
+                });
+    }
+
+    /**
+     * Compares a single directory below the roots of the directory pair, as needed when
+     * only part of the source tree is known to have changed. Subtrees missing from the
+     * destination are always included completely; directories present on both sides are
+     * only descended into when comparing recursively. The last comparison result is kept.
+     *
+     * @param relativePath Relative path of the directory, empty for the roots
+     * @param recursive Whether directories present on both sides are compared as well
+     * @return Node of the directory holding its differences, empty if the source directory is gone or excluded
+     */
+    public DirectoryNode compareSubtree(String relativePath, boolean recursive) {
+        if (directoryPair == null) {
+            throw new IllegalStateException("No Directory Pair has been set. Call setDirectoryPair() first.");
+        }
+
+        Path sourceDir = directoryPair.getSourceDirectory().toPath().resolve(relativePath);
+        Path destDir = directoryPair.getDestinationDirectory().toPath().resolve(relativePath);
+        DirectoryNode result = new DirectoryNode(sourceDir.getFileName().toString());
+
+        if (!Files.isDirectory(sourceDir)
+                || filter != null && !relativePath.isEmpty() && !filter.includes(relativePath, true)) {
+            return result;
+        }
+
+        scanFromManifest = loadDestination();
+        boolean destExists = archiveMode ? archive.isDirectory(relativePath) : Files.isDirectory(destDir);
+
+        if (destExists) {
+            runComparison(new DirectoryTask(sourceDir, destDir, relativePath, recursive, result, null));
+        } else {
+            runComparison(new DirectoryTask(sourceDir, null, relativePath, true, result, null));
+        }
+        return result;
+    }
+
+    /**
+     * Resets the counters and metrics and runs a comparison task on a fork-join pool.
+     */
+    private void runComparison(DirectoryTask task) {
+        totalFileCount.set(0);
+        modifiedFileCount.set(0);
+        extraneousCount.set(0);
+        replacedEntries.clear();
+        metrics.reset();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        metrics.registerGauge("scan.queued", pool::getQueuedTaskCount);
+        try (MirrorMetrics.PhaseTimer ignored = metrics.startPhase(Phase.SCAN)) {
+            pool.invoke(task);
+        } finally {
+            pool.shutdown();
+            metrics.unregisterGauge("scan.queued");
+        }
+    }
+
+    /**
+     * Loads the manifest, and the archive index in archive mode, of the current destination.
+     *
+     * @return True if the destination is listed from the manifest or archive index instead of being walked
+     */
+    private boolean loadDestination() {
+        loadManifest();
+        if (archiveMode) {
+            loadArchive();
+            return true;
+        }
+        return manifest != null && manifest.isVerifiedWithin(manifestMaxAge);
+    }
+
+    /**
+     * Loads the archive index of the current destination unless it is already loaded.
+     */
+    private void loadArchive() {
+        Path destRoot = directoryPair.getDestinationDirectory().toPath();
+        if (archive == null || !archive.getRoot().equals(destRoot.toAbsolutePath().normalize())) {
+            try {
+                archive = ArchiveDestination.open(destRoot);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read archive index of " + destRoot, e);
+            }
+        }
+    }
+
+    /**
+     * Loads the manifest of the current destination unless it is already loaded. When the
+     * destination is walked no manifest is kept, and a stored one is deleted since the
+     * changes of this run would not be recorded in it.
+     */
+    private void loadManifest() {
+        Path destRoot = directoryPair.getDestinationDirectory().toPath();
+        if (destinationScanMode == DestinationScanMode.WALK) {
+            if (manifest != null || !destRoot.equals(walkedDestination)) {
+                manifest = null;
+                walkedDestination = destRoot;
+                try {
+                    DestinationManifest.delete(destRoot);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to delete manifest of " + destRoot + " (" + e.getMessage() + ")");
+                }
+            }
+        } else if (manifest == null || !manifest.getDestinationRoot().equals(destRoot.toAbsolutePath().normalize())) {
+            manifest = DestinationManifest.forDestination(destRoot);
+        }
+    }
+
+    /**
+     * Internal method to compare directories and build the hierarchy. Both directories
+     * are listed once and sort-merged; subdirectories are handed to child tasks, which
+     * only ever touch their own node. The parent node is updated by the owning task
+     * once all child tasks have completed. When the task streams its differences, they
+     * are emitted instead of being attached to nodes.
      *
-     * @param sourceDir Source directory
-     * @param destDir Destination directory
-     * @param parentNode Parent node to add missing items to
-     */
-    private void compareDirectoriesInternal(File sourceDir, File destDir, DirectoryNode parentNode) {
-        File[] sourceContents = sourceDir.listFiles();
-
-        if (sourceContents != null) {
-            for (File sourceItem : sourceContents) {
-                File destItem = new File(destDir, sourceItem.getName());
-
-                if (!destItem.exists()) {
-                    // Item doesn't exist in destination
-                    Node newNode;
-                    if (sourceItem.isDirectory()) {
-                        newNode = new DirectoryNode(sourceItem.getName());
-                        // If it's a directory, recursively add all its contents
-                        addAllContents(sourceItem, (DirectoryNode) newNode);
-                    } else {
-                        newNode = new FileNode(sourceItem.getName());
-                        totalFileCount++;
+     * @param task The task comparing a source directory with its destination directory
+     */
+    private void compareDirectoriesInternal(DirectoryTask task) {
+        List<DirectoryTask> subtasks = new ArrayList<>();
+
+        List<DirectoryEntry> destListing;
+        if (archiveMode) {
+            destListing = archive.list(task.relativePath);
+        } else if (scanFromManifest) {
+            destListing = manifest.list(task.relativePath);
+        } else {
+            // Links in the destination are leaves, descending into them would reach outside the destination
+            destListing = DirectoryListing.list(task.destDir, false);
+            if (manifest != null) {
+                manifest.putDirectory(task.relativePath, destListing);
+            }
+        }
+
+        List<DirectoryEntry> sourceListing;
+        boolean sourceListed = true;
+        if (mirrorMode) {
+            // An unreadable source directory must not turn the whole destination directory extraneous
+            try {
+                sourceListing = DirectoryListing.listOrFail(task.sourceDir);
+            } catch (IOException e) {
+                ITEM_LOGGER.log(Level.WARNING, () -> "Failed to list directory: " + task.sourceDir
+                        + " (" + e.getMessage() + ")");
+                sourceListing = new ArrayList<>();
+                sourceListed = false;
+            }
+        } else {
+            sourceListing = DirectoryListing.list(task.sourceDir);
+        }
+        metrics.recordScannedEntries(sourceListing.size() + destListing.size());
+        sourceListing = PathFilter.apply(filter, task.relativePath, sourceListing);
+        destListing = PathFilter.apply(filter, task.relativePath, destListing);
+        boolean reportExtraneous = mirrorMode && sourceListed;
+
+        DirectoryListing.merge(sourceListing, destListing,
+                new DirectoryListing.MergeHandler() {
+                    @Override
+                    public void onMissing(DirectoryEntry sourceEntry) {
+                        // Item doesn't exist in destination, if it's a directory add all its contents
+                        addMissingEntry(task, sourceEntry, subtasks);
                     }
-                    parentNode.addChild(newNode);
-                } else if (sourceItem.isDirectory() && destItem.isDirectory()) {
-                    // Both are directories, check if there's any difference inside
-                    DirectoryNode dirNode = new DirectoryNode(sourceItem.getName());
-                    compareDirectoriesInternal(sourceItem, destItem, dirNode);
-
-                    // Only add the directory if it has missing children
-                    if (dirNode.hasChildren()) {
-                        parentNode.addChild(dirNode);
+
+                    @Override
+                    public void onExtra(DirectoryEntry destinationEntry) {
+                        // Items only present in the destination are left alone unless mirroring
+                        if (reportExtraneous) {
+                            addExtraneousEntry(task, destinationEntry);
+                        }
                     }
+
+                    @Override
+                    public void onCommon(DirectoryEntry sourceEntry, DirectoryEntry destinationEntry) {
+                        String path = childPath(task.relativePath, sourceEntry.getName());
+
+                        if (sourceEntry.isDirectory() && destinationEntry.isDirectory()) {
+                            // Both are directories, check if there's any difference inside
+                            if (task.recursive) {
+                                subtasks.add(new DirectoryTask(sourceEntry.getPath(), destinationEntry.getPath(),
+                                        path, true, task.childNode(sourceEntry.getName()), task.sink));
+                            }
+                        } else if (sourceEntry.isDirectory() != destinationEntry.isDirectory()
+                                || destinationEntry.isSymbolicLink()) {
+                            // A file where the destination has a directory or a link, or the other way round,
+                            // only replaced when mirroring and never written through
+                            if (reportExtraneous && !DestinationPruner.isProtected(path)) {
+                                addReplacedEntry(task, sourceEntry, destinationEntry, subtasks);
+                            }
+                        } else if (!sourceEntry.isDirectory() && isModified(sourceEntry, destinationEntry, path)) {
+                            totalFileCount.incrementAndGet();
+                            modifiedFileCount.incrementAndGet();
+                            if (task.sink != null) {
+                                task.sink.put(new DiffEntry(DiffEntry.Kind.MODIFIED_FILE, path,
+                                        sourceEntry.getSize(), sourceEntry.getLastModified()));
+                            } else {
+                                task.node.addChild(new ModifiedFileNode(sourceEntry.getName(), sourceEntry.getSize()));
+                            }
+                        }
+                    }
+                });
+
+        RecursiveAction.invokeAll(subtasks);
+
+        if (task.node != null) {
+            for (DirectoryTask subtask : subtasks) {
+                // Only add compared directories if they have missing children
+                if (subtask.destDir != null && subtask.node.hasChildren()) {
+                    task.node.addChild(subtask.node);
                 }
             }
         }
     }
 
     /**
-     * Recursively adds all contents of a directory to the node hierarchy.
+     * Adds all contents of a directory missing from the destination, forking a child task
+     * for every subdirectory.
+     *
+     * @param task The task covering the missing directory
+     */
+    private void addAllContents(DirectoryTask task) {
+        List<DirectoryTask> subtasks = new ArrayList<>();
+
+        List<DirectoryEntry> sourceListing = DirectoryListing.list(task.sourceDir);
+        metrics.recordScannedEntries(sourceListing.size());
+
+        for (DirectoryEntry entry : PathFilter.apply(filter, task.relativePath, sourceListing)) {
+            addMissingEntry(task, entry, subtasks);
+        }
+
+        RecursiveAction.invokeAll(subtasks);
+    }
+
+    /**
+     * Records a source entry missing from the destination. Missing directories are
+     * recorded before a child task for their contents is created, so a directory
+     * always precedes its contents in a stream of differences.
+     *
+     * @param task The task of the directory containing the entry
+     * @param entry The missing source entry
+     * @param subtasks Subtasks of the current task
+     */
+    private void addMissingEntry(DirectoryTask task, DirectoryEntry entry, List<DirectoryTask> subtasks) {
+        String path = childPath(task.relativePath, entry.getName());
+
+        if (entry.isDirectory()) {
+            DirectoryNode node = task.childNode(entry.getName());
+            if (task.sink != null) {
+                task.sink.put(new DiffEntry(DiffEntry.Kind.MISSING_DIRECTORY, path, 0, entry.getLastModified()));
+            } else {
+                task.node.addChild(node);
+            }
+            subtasks.add(new DirectoryTask(entry.getPath(), null, path, true, node, task.sink));
+        } else {
+            totalFileCount.incrementAndGet();
+            if (task.sink != null) {
+                task.sink.put(new DiffEntry(DiffEntry.Kind.MISSING_FILE, path, entry.getSize(),
+                        entry.getLastModified()));
+            } else {
+                task.node.addChild(new FileNode(entry.getName(), entry.getSize()));
+            }
+        }
+    }
+
+    /**
+     * Records a destination entry missing from the source, unless it is protected.
+     * The contents of an extraneous directory are not listed.
+     *
+     * @param task The task of the directory containing the entry
+     * @param entry The extraneous destination entry
+     */
+    private void addExtraneousEntry(DirectoryTask task, DirectoryEntry entry) {
+        String path = childPath(task.relativePath, entry.getName());
+        if (DestinationPruner.isProtected(path)) {
+            return;
+        }
+
+        extraneousCount.incrementAndGet();
+        long size = entry.isDirectory() ? 0 : entry.getSize();
+        if (task.sink != null) {
+            task.sink.put(new DiffEntry(entry.isDirectory() ? DiffEntry.Kind.EXTRANEOUS_DIRECTORY
+                    : DiffEntry.Kind.EXTRANEOUS_FILE, path, size, entry.getLastModified()));
+        } else {
+            task.node.addChild(new ExtraneousNode(entry.getName(), entry.isDirectory(), size));
+        }
+    }
+
+    /**
+     * Records a destination entry of another type than its source entry as replaced, and the source
+     * entry as missing. The destination entry is removed right before the source entry is copied.
      *
-     * @param dir Directory to add
-     * @param parentNode Parent node to add contents to
-     */
-    private void addAllContents(File dir, DirectoryNode parentNode) {
-        File[] contents = dir.listFiles();
-
-        if (contents != null) {
-            for (File item : contents) {
-                Node node;
-                if (item.isDirectory()) {
-                    node = new DirectoryNode(item.getName());
-                    addAllContents(item, (DirectoryNode) node);
-                } else {
-                    node = new FileNode(item.getName());
-                    totalFileCount++;
+     * @param task The task of the directory containing the entries
+     * @param sourceEntry The source entry
+     * @param destinationEntry The destination entry of the other type
+     * @param subtasks Subtasks of the current task
+     */
+    private void addReplacedEntry(DirectoryTask task, DirectoryEntry sourceEntry, DirectoryEntry destinationEntry,
+                                  List<DirectoryTask> subtasks) {
+        String path = childPath(task.relativePath, destinationEntry.getName());
+        extraneousCount.incrementAndGet();
+        replacedEntries.put(path, new DiffEntry(destinationEntry.isDirectory() ? DiffEntry.Kind.EXTRANEOUS_DIRECTORY
+                : DiffEntry.Kind.EXTRANEOUS_FILE, path, destinationEntry.isDirectory() ? 0 : destinationEntry.getSize(),
+                destinationEntry.getLastModified()));
+        addMissingEntry(task, sourceEntry, subtasks);
+    }
+
+    /**
+     * Checks whether a file present on both sides needs to be mirrored again,
+     * according to the current comparison level.
+     *
+     * @param sourceEntry The source file
+     * @param destinationEntry The destination file
+     * @param relativePath Relative path of the file, used to look up its recorded hash
+     * @return True if the destination file is out of date
+     */
+    private boolean isModified(DirectoryEntry sourceEntry, DirectoryEntry destinationEntry, String relativePath) {
+        if (comparisonLevel == ComparisonLevel.EXISTENCE) {
+            return false;
+        }
+
+        if (sourceEntry.getSize() != destinationEntry.getSize()) {
+            return true;
+        }
+
+        if (comparisonLevel == ComparisonLevel.METADATA) {
+            // Either direction counts, a destination file newer than its source was changed there
+            return Math.abs(sourceEntry.getLastModified() - destinationEntry.getLastModified())
+                    > MODIFIED_TIME_TOLERANCE_MILLIS;
+        }
+
+        try {
+            if (archiveMode) {
+                byte[] archivedHash = archive.getHash(relativePath);
+                return archivedHash == null
+                        || !MessageDigest.isEqual(contentHasher.hash(sourceEntry.getPath()), archivedHash);
+            }
+            if (comparisonLevel == ComparisonLevel.CHECKSUM) {
+                return !MessageDigest.isEqual(checksumHasher.hash(sourceEntry.getPath()),
+                        checksumHasher.hash(destinationEntry.getPath()));
+            }
+            byte[] destinationHash = manifest == null ? null : manifest.getHash(relativePath);
+            if (destinationHash == null) {
+                destinationHash = contentHasher.hash(destinationEntry.getPath());
+                if (manifest != null) {
+                    manifest.setHash(relativePath, destinationHash);
                 }
-                parentNode.addChild(node);
+            }
+            return !MessageDigest.isEqual(contentHasher.hash(sourceEntry.getPath()), destinationHash);
+        } catch (IOException e) {
+            ITEM_LOGGER.log(Level.WARNING, () -> "Failed to hash file: " + sourceEntry.getPath()
+                    + " (" + e.getMessage() + ")");
+            return true;
+        }
+    }
+
+    /**
+     * Fork-join task that processes a single directory of the comparison.
+     * When no destination directory is given the whole source subtree is missing.
+     * A task either builds its node of the differences hierarchy or, when it has
+     * a sink, streams its differences into it without keeping any nodes.
+     */
+    private final class DirectoryTask extends RecursiveAction {
+        private final Path sourceDir;
+        private final Path destDir;
+        private final String relativePath;
+        private final boolean recursive;
+        private final DirectoryNode node;
+        private final DiffQueue sink;
+
+        private DirectoryTask(Path sourceDir, Path destDir, String relativePath, boolean recursive,
+                              DirectoryNode node, DiffQueue sink) {
+            this.sourceDir = sourceDir;
+            this.destDir = destDir;
+            this.relativePath = relativePath;
+            this.recursive = recursive;
+            this.node = node;
+            this.sink = sink;
+        }
+
+        private DirectoryNode childNode(String name) {
+            return sink == null ? new DirectoryNode(name) : null;
+        }
+
+        @Override
+        protected void compute() {
+            if (sink != null && sink.isCancelled()) {
+                return;
+            }
+            if (destDir == null) {
+                addAllContents(this);
+            } else {
+                compareDirectoriesInternal(this);
+            }
+        }
+    }
+
+    private static String childPath(String relativePath, String name) {
+        return relativePath.isEmpty() ? name : relativePath + File.separator + name;
+    }
+
+    /**
+     * Writes the manifest, logging instead of failing since it can always be rebuilt by a walk.
+     */
+    private void saveManifest() {
+        contentHasher.flushCache();
+        if (manifest == null) {
+            return;
+        }
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save manifest (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Keeps the manifest in line with the items the copy engine has written to the destination.
+     * Does nothing while no manifest is kept.
+     */
+    private final class ManifestUpdater implements ProcessedItemListener {
+        @Override
+        public void onDirectoryCreated(String relativePath, Path destPath) {
+            if (manifest != null) {
+                manifest.recordDirectory(relativePath);
+            }
+        }
+
+        @Override
+        public void onFileProcessed(String relativePath, Path sourcePath, Path destPath) {
+            if (manifest == null) {
+                return;
+            }
+            try {
+                manifest.recordFile(relativePath, Files.readAttributes(destPath, BasicFileAttributes.class), null);
+            } catch (IOException e) {
+                ITEM_LOGGER.log(Level.WARNING, () -> "Failed to record file in manifest: " + relativePath
+                        + " (" + e.getMessage() + ")");
+            }
+        }
+
+        @Override
+        public void onItemRemoved(String relativePath) {
+            if (manifest != null) {
+                manifest.removeEntry(relativePath);
             }
         }
     }
@@ -169,97 +841,324 @@ public class DirectoryComparator {
     }
 
     /**
-     * Processes all differences from a specific node using the current file operation
+     * Processes all differences from a specific node using the current file operation.
+     * Directories are created first, then files are processed concurrently; failures
+     * are collected and reported together once every file has been attempted. Processed
+     * items are recorded in the destination manifest. Extraneous entries are removed
+     * afterwards, provided all other differences were processed successfully.
      *
      * @param rootNode The root node of the differences hierarchy
-     * @throws IOException If an I/O error occurs during file operations
+     * @throws IOException If any item could not be processed
      */
     public void processMissingItems(Node rootNode) throws IOException {
-        if (rootNode == null) {
+        processMissingItems(rootNode, "");
+    }
+
+    /**
+     * Processes the differences of a node located below the roots of the directory pair,
+     * such as one returned by {@link #compareSubtree(String, boolean)}.
+     *
+     * @param node The node holding the differences
+     * @param relativePath Relative path of the node, empty for the roots
+     * @throws IOException If any item could not be processed
+     */
+    public void processMissingItems(Node node, String relativePath) throws IOException {
+        if (node == null) {
             return;
         }
-        processNodeContents(rootNode, directoryPair.getSourceDirectory(),
-                                   directoryPair.getDestinationDirectory(), "");
+        loadManifest();
+        pruner.reset();
+
+        try {
+            List<DiffEntry> replaced = takeReplacedEntries(relativePath);
+            if (archiveMode) {
+                loadArchive();
+                removeReplacedItems(replaced);
+                List<DiffEntry> differences = new ArrayList<>();
+                collectDifferences(node, relativePath, differences);
+                writeArchive(differences.iterator());
+            } else {
+                removeReplacedItems(replaced);
+                runJournaled(beginJournal(), () -> copyEngine.run(node, directoryPair.getSourceDirectory().toPath(),
+                        directoryPair.getDestinationDirectory().toPath(), relativePath, fileOperation,
+                        new ManifestUpdater()));
+            }
+            List<DiffEntry> extraneous = new ArrayList<>();
+            collectExtraneous(node, relativePath, extraneous);
+            pruneExtraneousItems(extraneous);
+        } finally {
+            saveManifest();
+        }
     }
 
     /**
-     * For backward compatibility - copies all differences
+     * Lists the entries the last comparison found only in the destination, as a dry run of
+     * what processing the differences in mirror mode removes. Empty unless in mirror mode.
      *
-     * @throws IOException If an I/O error occurs during file operations
+     * @return The extraneous entries, with paths relative to the destination root
      */
-    public void copyMissingItems() throws IOException {
-        // Set to copy operation if not already
-        FileOperation previousOperation = this.fileOperation;
-        this.fileOperation = new CopyFileOperation();
-        processMissingItems();
-        this.fileOperation = previousOperation;
+    public List<DiffEntry> getExtraneousEntries() {
+        if (comparisonResult == null) {
+            throw new IllegalStateException("No comparison has been performed yet. Call compareDirectories() first.");
+        }
+
+        List<DiffEntry> extraneous = new ArrayList<>();
+        collectExtraneous(comparisonResult, "", extraneous);
+        replacedEntries.values().stream()
+                .sorted(Comparator.comparing(DiffEntry::getRelativePath))
+                .forEach(extraneous::add);
+        return extraneous;
     }
 
     /**
-     * Recursively processes a node and its children using the selected file operation.
-     *
-     * @param node The node to process
-     * @param sourceRoot Source root directory
-     * @param destRoot Destination root directory
-     * @param relativePath Current relative path
-     * @throws IOException If an I/O error occurs during file operations
+     * Collects the extraneous nodes of a differences hierarchy.
+     */
+    private static void collectExtraneous(Node node, String relativePath, List<DiffEntry> extraneous) {
+        if (node instanceof ExtraneousNode extra) {
+            extraneous.add(new DiffEntry(extra.isDirectory() ? DiffEntry.Kind.EXTRANEOUS_DIRECTORY
+                    : DiffEntry.Kind.EXTRANEOUS_FILE, relativePath, extra.getSize(), 0));
+        } else if (node instanceof DirectoryNode directory) {
+            for (Node child : directory.getChildren().values()) {
+                collectExtraneous(child, childPath(relativePath, child.getName()), extraneous);
+            }
+        }
+    }
+
+    /**
+     * Collects the missing directories and missing or modified files of a differences hierarchy,
+     * each directory before its contents.
+     */
+    private static void collectDifferences(Node node, String relativePath, List<DiffEntry> differences) {
+        if (node instanceof DirectoryNode directory) {
+            if (!relativePath.isEmpty()) {
+                differences.add(new DiffEntry(DiffEntry.Kind.MISSING_DIRECTORY, relativePath, 0, 0));
+            }
+            for (Node child : directory.getChildren().values()) {
+                collectDifferences(child, childPath(relativePath, child.getName()), differences);
+            }
+        } else if (node instanceof FileNode file) {
+            differences.add(new DiffEntry(file instanceof ModifiedFileNode ? DiffEntry.Kind.MODIFIED_FILE
+                    : DiffEntry.Kind.MISSING_FILE, relativePath, file.getSize(), 0));
+        }
+    }
+
+    /**
+     * Writes differences into a new delta archive of the destination.
+     */
+    private void writeArchive(Iterator<DiffEntry> differences) throws IOException {
+        try (MirrorMetrics.PhaseTimer ignored = metrics.startPhase(Phase.COPY)) {
+            archive.write(differences, directoryPair.getSourceDirectory().toPath(), metrics);
+        }
+    }
+
+    /**
+     * Takes the replaced entries below a directory out of the last comparison result.
      */
-    private void processNodeContents(Node node, File sourceRoot, File destRoot, String relativePath) throws IOException {
-        // Get the source and destination files
-        File sourceFile = new File(sourceRoot, relativePath);
-        File destFile = new File(destRoot, relativePath);
+    private List<DiffEntry> takeReplacedEntries(String relativePath) {
+        List<DiffEntry> replaced = new ArrayList<>();
+        for (DiffEntry entry : replacedEntries.values()) {
+            if (relativePath.isEmpty() || entry.getRelativePath().startsWith(relativePath + File.separator)) {
+                replaced.add(entry);
+                replacedEntries.remove(entry.getRelativePath());
+            }
+        }
+        return replaced;
+    }
 
-        // Create parent directories if needed
-        if (!ensureParentDirectoryExists(destFile)) {
+    /**
+     * Removes destination entries about to be replaced by a source entry of the other type. An entry
+     * that cannot be removed is recorded as a failure of the pruner, and copying over it fails as well.
+     */
+    private void removeReplacedItems(List<DiffEntry> replaced) {
+        if (archiveMode) {
+            replaced.forEach(entry -> archive.remove(entry.getRelativePath()));
             return;
         }
+        try {
+            pruner.setParallelism(parallelism);
+            pruner.remove(directoryPair.getDestinationDirectory().toPath(), replaced, new ManifestUpdater());
+        } catch (IOException e) {
+            // Already recorded and logged by the pruner
+        }
+    }
 
-        if (node.isDirectory()) {
-            // Create the directory
-            if (destFile.exists() || destFile.mkdir()) {
-                System.out.println(fileOperation.getOperationName() + " directory created or already exists: " + relativePath);
+    /**
+     * Removes extraneous destination entries with the pruner, forgetting them in the manifest.
+     * In archive mode they are only removed from the archive index.
+     */
+    private void pruneExtraneousItems(List<DiffEntry> extraneous) throws IOException {
+        if (extraneous.isEmpty()) {
+            return;
+        }
+        if (archiveMode) {
+            try (MirrorMetrics.PhaseTimer ignored = metrics.startPhase(Phase.PRUNE)) {
+                extraneous.forEach(entry -> archive.remove(entry.getRelativePath()));
+            }
+            archive.save();
+            return;
+        }
+        pruner.setParallelism(parallelism);
+        pruner.remove(directoryPair.getDestinationDirectory().toPath(), extraneous, new ManifestUpdater());
+    }
+
+    /**
+     * Compares and processes the differences in a single pass: files are handed to the copy
+     * workers while the comparison is still discovering further differences, keeping memory
+     * bounded by the stream queue capacity. Extraneous entries found in mirror mode are
+     * collected on the way and removed once all other differences were processed successfully.
+     *
+     * @throws IOException If any item could not be processed
+     */
+    public void processDifferences() throws IOException {
+        if (fileOperation == null) {
+            throw new IllegalStateException("No file operation has been set. Call setFileOperation() first.");
+        }
 
-                // Process all children
-                DirectoryNode dirNode = (DirectoryNode) node;
-                for (Node child : dirNode.getChildren().values()) {
-                    processNodeContents(child, sourceRoot, destRoot,
-                                                        relativePath + File.separator + child.getName());
+        List<DiffEntry> extraneous = new ArrayList<>();
+        pruner.reset();
+        try (Stream<DiffEntry> differences = streamDifferences()) {
+            Stream<DiffEntry> toProcess = differences.filter(entry -> {
+                if (entry.getKind().isExtraneous()) {
+                    extraneous.add(entry);
+                    return false;
                 }
+                // The comparison records a replaced entry before the source entry replacing it
+                DiffEntry replaced = replacedEntries.remove(entry.getRelativePath());
+                if (replaced != null) {
+                    removeReplacedItems(List.of(replaced));
+                }
+                return true;
+            });
+            if (archiveMode) {
+                writeArchive(toProcess.iterator());
             } else {
-                System.err.println("Failed to create directory: " + relativePath);
+                runJournaled(beginJournal(), () -> copyEngine.run(toProcess.iterator(),
+                        directoryPair.getSourceDirectory().toPath(), directoryPair.getDestinationDirectory().toPath(),
+                        fileOperation, new ManifestUpdater()));
             }
-        } else {
-            // Process the file using the selected operation
-            try {
-                Path sourcePath = sourceFile.toPath();
-                Path destPath = destFile.toPath();
+            pruneExtraneousItems(extraneous);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            saveManifest();
+        }
+    }
 
-                if (fileOperation.executeFileOperation(sourcePath, destPath)) {
-                    System.out.println(fileOperation.getOperationName() + " file: " + relativePath);
-                    currentlyCopyingFileName = relativePath;
-                    processedFileCount++;
+    /**
+     * Checks whether a journaled run to the current destination was interrupted and can be resumed.
+     *
+     * @return True if the destination has a journal left behind
+     */
+    public boolean hasInterruptedRun() {
+        return CopyJournal.forDestination(directoryPair.getDestinationDirectory().toPath()).exists();
+    }
+
+    /**
+     * Finishes an interrupted journaled run without comparing the trees. Temporary files of copies
+     * that were in flight are rolled back, the directories of the run are created if they are gone,
+     * and every file the run planned but did not complete is copied again with the current file
+     * operation, skipping source files deleted since. The journal is continued while resuming, so
+     * a resume can itself be resumed, and removed once all files have been copied.
+     *
+     * @return What the interrupted run had left to do
+     * @throws IOException If the journal cannot be read or belongs to another source, or any file could not be copied
+     */
+    public CopyJournal.Recovery resume() throws IOException {
+        Path sourceRoot = directoryPair.getSourceDirectory().toPath();
+        Path destRoot = directoryPair.getDestinationDirectory().toPath();
+        CopyJournal journal = CopyJournal.forDestination(destRoot);
+        CopyJournal.Recovery recovery = journal.recover();
+        if (!recovery.getSourceRoot().equals(sourceRoot.toAbsolutePath().normalize())) {
+            throw new IOException("Journal of " + destRoot + " belongs to source " + recovery.getSourceRoot());
+        }
+
+        List<DiffEntry> entries = new ArrayList<>();
+        for (DiffEntry entry : recovery.getEntries()) {
+            if (!entry.getKind().isDirectory()) {
+                Files.deleteIfExists(CopyJournal.tempPath(destRoot.resolve(entry.getRelativePath())));
+                if (!Files.exists(sourceRoot.resolve(entry.getRelativePath()))) {
+                    continue;
                 }
-            } catch (IOException e) {
-                System.err.println("Failed to " + fileOperation.getOperationName().toLowerCase() +
-                                   " file: " + relativePath + " (" + e.getMessage() + ")");
-                throw e;
             }
+            entries.add(entry);
+        }
+        totalFileCount.set(entries.stream().filter(entry -> !entry.getKind().isDirectory()).count());
+        modifiedFileCount.set(0);
+        extraneousCount.set(0);
+        replacedEntries.clear();
+        metrics.reset();
+
+        loadManifest();
+        journal.reopen(recovery);
+        try {
+            runJournaled(journal, () -> copyEngine.run(entries.iterator(), sourceRoot, destRoot, fileOperation,
+                    new ManifestUpdater()));
+        } finally {
+            saveManifest();
         }
+        return recovery;
     }
 
     /**
-     * Ensures the parent directory for a file exists
+     * Starts the journal of a new run to the current destination when journaling.
      *
-     * @param file The file whose parent directory should exist
-     * @return True if parent exists or was created, false otherwise
-     */
-    private boolean ensureParentDirectoryExists(File file) {
-        if (file.getParentFile() != null && !file.getParentFile().exists()) {
-            if (!file.getParentFile().mkdirs()) {
-                System.err.println("Failed to create parent directories for: " + file.getPath());
-                return false;
+     * @return The journal, or null if runs are not journaled
+     */
+    private CopyJournal beginJournal() throws IOException {
+        if (!journaling) {
+            return null;
+        }
+        CopyJournal journal = CopyJournal.forDestination(directoryPair.getDestinationDirectory().toPath());
+        journal.begin(directoryPair.getSourceDirectory().toPath());
+        return journal;
+    }
+
+    /**
+     * Runs the copy engine with a started journal, or without one if null. The journal is
+     * removed once the run has completed without failures and kept for a resume otherwise.
+     */
+    private void runJournaled(CopyJournal journal, CopyRun run) throws IOException {
+        if (journal == null) {
+            run.run();
+            return;
+        }
+
+        copyEngine.setJournal(journal);
+        boolean completed = false;
+        try {
+            run.run();
+            completed = true;
+        } finally {
+            copyEngine.setJournal(null);
+            if (completed) {
+                journal.delete();
+            } else {
+                journal.close();
             }
         }
-        return true;
+    }
+
+    /**
+     * A run of the copy engine.
+     */
+    @FunctionalInterface
+    private interface CopyRun {
+        void run() throws IOException;
+    }
+
+    /**
+     * For backward compatibility - copies all differences
+     *
+     * @throws IOException If an I/O error occurs during file operations
+     */
+    public void copyMissingItems() throws IOException {
+        // Set to copy operation if not already
+        FileOperation previousOperation = this.fileOperation;
+        this.fileOperation = new SizeClassedCopyOperation();
+        try {
+            processMissingItems();
+        } finally {
+            this.fileOperation = previousOperation;
+        }
     }
 }
@@ -0,0 +1,51 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A single entry of a directory listing together with the attributes
+ * read while listing it, so no further metadata calls are needed.
+ */
+@Getter @AllArgsConstructor
+public class DirectoryEntry {
+
+    private final String name;
+    private final Path path;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+
+    /**
+     * Whether the entry is a symbolic link that was not followed while listing.
+     */
+    private final boolean symbolicLink;
+
+    /**
+     * Creates an entry that is not a symbolic link.
+     *
+     * @param name The name of the entry
+     * @param path The path of the entry
+     * @param directory Whether the entry is a directory
+     * @param size The size in bytes
+     * @param lastModified The modification time in milliseconds
+     */
+    public DirectoryEntry(String name, Path path, boolean directory, long size, long lastModified) {
+        this(name, path, directory, size, lastModified, false);
+    }
+
+    /**
+     * Creates an entry from a path and its already read attributes.
+     *
+     * @param path The path of the entry
+     * @param attributes The attributes of the entry
+     * @return The directory entry
+     */
+    public static DirectoryEntry of(Path path, BasicFileAttributes attributes) {
+        return new DirectoryEntry(path.getFileName().toString(), path, attributes.isDirectory(),
+                attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.isSymbolicLink());
+    }
+}
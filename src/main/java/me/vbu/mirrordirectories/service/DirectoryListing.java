@@ -0,0 +1,194 @@
+package me.vbu.mirrordirectories.service;
+
+import me.vbu.mirrordirectories.metrics.RateLimitedLogger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lists directories once and joins two sorted listings, so a comparison needs
+ * a single metadata read per entry instead of repeated exists/isDirectory checks.
+ * Symbolic links are followed in source listings; destination listings report them
+ * as links, so nothing outside a destination tree is ever compared or modified.
+ */
+public final class DirectoryListing {
+
+    private static final Logger LOGGER = Logger.getLogger(DirectoryListing.class.getName());
+
+    /**
+     * Limits messages about unreadable directories, which are reported once per directory of a subtree.
+     */
+    private static final RateLimitedLogger ITEM_LOGGER = new RateLimitedLogger(LOGGER, 50, Duration.ofSeconds(1));
+
+    private static final Comparator<DirectoryEntry> BY_NAME = Comparator.comparing(DirectoryEntry::getName);
+
+    private DirectoryListing() {
+    }
+
+    /**
+     * Callback invoked by {@link #merge(List, List, MergeHandler)} for every entry of the join.
+     */
+    public interface MergeHandler {
+        /**
+         * Called for an entry that only exists in the source listing.
+         *
+         * @param sourceEntry The source entry
+         */
+        void onMissing(DirectoryEntry sourceEntry);
+
+        /**
+         * Called for an entry that only exists in the destination listing.
+         *
+         * @param destinationEntry The destination entry
+         */
+        void onExtra(DirectoryEntry destinationEntry);
+
+        /**
+         * Called for an entry that exists in both listings.
+         *
+         * @param sourceEntry The source entry
+         * @param destinationEntry The destination entry with the same name
+         */
+        void onCommon(DirectoryEntry sourceEntry, DirectoryEntry destinationEntry);
+    }
+
+    /**
+     * Lists a directory, reading the attributes of each entry once, sorted by name.
+     * A directory that does not exist or cannot be read yields an empty listing.
+     *
+     * @param dir The directory to list
+     * @return The sorted entries of the directory
+     */
+    public static List<DirectoryEntry> list(Path dir) {
+        return list(dir, true);
+    }
+
+    /**
+     * Lists a directory like {@link #list(Path)}, optionally reporting symbolic links as themselves.
+     *
+     * @param dir The directory to list
+     * @param followLinks Whether entries that are symbolic links are reported with the attributes of
+     *                    their targets, rather than as links that are neither files nor directories
+     * @return The sorted entries of the directory
+     */
+    public static List<DirectoryEntry> list(Path dir, boolean followLinks) {
+        try {
+            return listOrFail(dir, followLinks);
+        } catch (IOException e) {
+            ITEM_LOGGER.log(Level.WARNING, () -> "Failed to list directory: " + dir + " (" + e.getMessage() + ")");
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Lists a directory like {@link #list(Path)}, but fails if it cannot be read, for callers
+     * that must not mistake an unreadable directory for an empty one.
+     *
+     * @param dir The directory to list
+     * @return The sorted entries of the directory
+     * @throws IOException If the directory cannot be read
+     */
+    public static List<DirectoryEntry> listOrFail(Path dir) throws IOException {
+        return listOrFail(dir, true);
+    }
+
+    /**
+     * Lists a directory like {@link #list(Path, boolean)}, but fails if it cannot be read.
+     *
+     * @param dir The directory to list
+     * @param followLinks Whether entries that are symbolic links are reported with the attributes of their targets
+     * @return The sorted entries of the directory
+     * @throws IOException If the directory cannot be read
+     */
+    public static List<DirectoryEntry> listOrFail(Path dir, boolean followLinks) throws IOException {
+        List<DirectoryEntry> entries = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                BasicFileAttributes attributes = followLinks ? readAttributes(path) : readLinkAttributes(path);
+                if (attributes != null) {
+                    entries.add(DirectoryEntry.of(path, attributes));
+                }
+            }
+        }
+
+        entries.sort(BY_NAME);
+        return entries;
+    }
+
+    /**
+     * Sort-merges two listings produced by {@link #list(Path)}.
+     *
+     * @param source The sorted source listing
+     * @param destination The sorted destination listing
+     * @param handler The handler receiving missing, extra and common entries
+     */
+    public static void merge(List<DirectoryEntry> source, List<DirectoryEntry> destination, MergeHandler handler) {
+        int i = 0;
+        int j = 0;
+
+        while (i < source.size() && j < destination.size()) {
+            DirectoryEntry sourceEntry = source.get(i);
+            DirectoryEntry destinationEntry = destination.get(j);
+            int order = BY_NAME.compare(sourceEntry, destinationEntry);
+
+            if (order < 0) {
+                handler.onMissing(sourceEntry);
+                i++;
+            } else if (order > 0) {
+                handler.onExtra(destinationEntry);
+                j++;
+            } else {
+                handler.onCommon(sourceEntry, destinationEntry);
+                i++;
+                j++;
+            }
+        }
+
+        while (i < source.size()) {
+            handler.onMissing(source.get(i++));
+        }
+        while (j < destination.size()) {
+            handler.onExtra(destination.get(j++));
+        }
+    }
+
+    /**
+     * Reads the attributes of a path, following symbolic links like {@code File.isDirectory()}
+     * does, and falling back to the link itself when its target is gone.
+     *
+     * @param path The path to read
+     * @return The attributes, or null if they could not be read
+     */
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return readLinkAttributes(path);
+        }
+    }
+
+    /**
+     * Reads the attributes of a path without following symbolic links.
+     *
+     * @param path The path to read
+     * @return The attributes, or null if they could not be read
+     */
+    private static BasicFileAttributes readLinkAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
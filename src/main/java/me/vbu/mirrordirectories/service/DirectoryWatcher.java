@@ -0,0 +1,252 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+import lombok.Setter;
+import me.vbu.mirrordirectories.model.filesystem.DirectoryNode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Continuously mirrors a source tree by watching it with a {@link WatchService}.
+ * Events are coalesced per directory and debounced into small batches; each batch only
+ * compares and processes the affected directories through the {@link DirectoryComparator}.
+ * New directories and overflowing event queues trigger a recursive rescan of the
+ * directory concerned, anything else only rescans the directory the event occurred in.
+ * A directory that fails to mirror is logged and skipped, the watcher keeps running.
+ */
+public class DirectoryWatcher implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(DirectoryWatcher.class.getName());
+
+    private final DirectoryComparator comparator;
+    private final Path sourceRoot;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+
+    /**
+     * Quiet period after the last event before a batch is mirrored.
+     */
+    @Getter @Setter
+    private Duration debounce = Duration.ofMillis(500);
+
+    /**
+     * Longest time a batch is held back while events keep arriving.
+     */
+    @Getter @Setter
+    private Duration maxBatchDelay = Duration.ofSeconds(5);
+
+    private volatile boolean running;
+
+    /**
+     * Creates a watcher for the source directory of the comparator's directory pair.
+     *
+     * @param comparator The comparator used to mirror changes
+     * @throws IOException If the watch service cannot be created
+     */
+    public DirectoryWatcher(DirectoryComparator comparator) throws IOException {
+        if (comparator.getDirectoryPair() == null || !comparator.getDirectoryPair().validateDirectories()) {
+            throw new IllegalArgumentException("Invalid source or destination directory");
+        }
+        this.comparator = comparator;
+        this.sourceRoot = comparator.getDirectoryPair().getSourceDirectory().toPath();
+        this.watchService = sourceRoot.getFileSystem().newWatchService();
+    }
+
+    /**
+     * Starts watching on a background thread.
+     *
+     * @return The watcher thread
+     */
+    public Thread start() {
+        Thread thread = new Thread(() -> {
+            try {
+                run();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Directory watcher stopped", e);
+            }
+        }, "directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Registers the source tree, mirrors it once and then mirrors changes until closed.
+     *
+     * @throws IOException If the source tree cannot be registered
+     */
+    public void run() throws IOException {
+        running = true;
+        registerAll(sourceRoot);
+        mirror(sourceRoot, true);
+
+        Map<Path, Boolean> pending = new HashMap<>();
+        long firstEventAt = 0;
+        long lastEventAt = 0;
+
+        try {
+            while (running) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    long now = System.nanoTime();
+                    long wait = Math.min(lastEventAt + debounce.toNanos(),
+                            firstEventAt + maxBatchDelay.toNanos()) - now;
+                    key = wait > 0 ? watchService.poll(wait, TimeUnit.NANOSECONDS) : watchService.poll();
+                }
+
+                if (key != null) {
+                    collectEvents(key, pending);
+                    lastEventAt = System.nanoTime();
+                    if (firstEventAt == 0) {
+                        firstEventAt = lastEventAt;
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (!pending.isEmpty() && (now - lastEventAt >= debounce.toNanos()
+                        || now - firstEventAt >= maxBatchDelay.toNanos())) {
+                    flush(pending);
+                    pending.clear();
+                    firstEventAt = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // Closed while waiting for events
+        }
+    }
+
+    /**
+     * Stops watching.
+     *
+     * @throws IOException If the watch service cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        watchService.close();
+    }
+
+    /**
+     * Records the directories affected by the events of a key, registering new directories on the way.
+     */
+    private void collectEvents(WatchKey key, Map<Path, Boolean> pending) {
+        Path dir = watchedDirectories.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost, rescan everything below the directory they belonged to
+                pending.put(dir == null ? sourceRoot : dir, true);
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    registerAll(child);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to watch directory: " + child + " (" + e.getMessage() + ")");
+                }
+                pending.put(child, true);
+            } else {
+                pending.merge(dir, false, Boolean::logicalOr);
+            }
+        }
+
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    /**
+     * Mirrors a batch of directories, skipping those covered by a recursive rescan of an ancestor.
+     */
+    private void flush(Map<Path, Boolean> pending) {
+        for (Map.Entry<Path, Boolean> entry : pending.entrySet()) {
+            if (!coveredByAncestor(entry.getKey(), pending)) {
+                mirror(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private boolean coveredByAncestor(Path dir, Map<Path, Boolean> pending) {
+        for (Path parent = dir.getParent(); parent != null && parent.startsWith(sourceRoot);
+             parent = parent.getParent()) {
+            if (Boolean.TRUE.equals(pending.get(parent))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares a single source directory with the destination and processes its differences.
+     * Failures are logged rather than thrown, so one bad directory neither ends the batch nor the watcher.
+     */
+    private void mirror(Path dir, boolean recursive) {
+        String relativePath = sourceRoot.relativize(dir).toString();
+        try {
+            DirectoryNode differences = comparator.compareSubtree(relativePath, recursive);
+            if (differences.hasChildren()) {
+                comparator.processMissingItems(differences, relativePath);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to mirror directory: " + dir + " (" + e.getMessage() + ")");
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to mirror directory: " + dir, e);
+        }
+    }
+
+    /**
+     * Registers a directory and all directories below it with the watch service,
+     * skipping directories excluded by the filter of the comparator.
+     */
+    private void registerAll(Path start) throws IOException {
+        PathFilter filter = comparator.getFilter();
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (filter != null && !dir.equals(sourceRoot)
+                        && !filter.includes(sourceRoot.relativize(dir).toString(), true)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirectories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to watch: " + file + " (" + e.getMessage() + ")");
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
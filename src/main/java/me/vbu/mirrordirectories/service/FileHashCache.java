@@ -0,0 +1,455 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Persistent cache of file content hashes, keyed by absolute path and hash algorithm and validated
+ * against the file's size, modification time and file key (the inode on Unix), so a file is only
+ * hashed again after it has changed. The cache is an append-only log of hash records replayed into
+ * an in-memory map when the cache is first used, and compacted to the live entries when it has
+ * grown well beyond them.
+ * <p>
+ * Once more than {@link #getMaxEntries()} files are hashed, the cache keeps a fixed sample of them:
+ * the files with the lowest rank, a hash of path and algorithm. Files ranked above the sample are
+ * neither kept nor logged, so a scan of a tree larger than the cache still finds the same sampled
+ * files on every run, where evicting the least recently used entries would have evicted each one
+ * before the next scan reached it again. Entries without a hit for {@value #MAX_IDLE_DAYS} days,
+ * normally those of deleted files, are dropped and make room for others.
+ * All methods may be called concurrently from the scan threads.
+ */
+public class FileHashCache implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(FileHashCache.class.getName());
+
+    private static final int MAGIC = 0x4d444843;
+    private static final int VERSION = 2;
+
+    private static final int HASH_RECORD = 1;
+    private static final int TOUCH_RECORD = 2;
+
+    /**
+     * Log records per live entry beyond which the log is compacted.
+     */
+    private static final int COMPACTION_RATIO = 2;
+
+    /**
+     * Days after which a hit on an entry is recorded in the log again.
+     */
+    private static final int TOUCH_INTERVAL_DAYS = 7;
+
+    /**
+     * Days without a hit after which an entry is dropped.
+     */
+    private static final int MAX_IDLE_DAYS = 60;
+
+    /**
+     * Rank threshold of a cache that still admits every file.
+     */
+    private static final long ADMIT_ALL = Long.MAX_VALUE;
+
+    private static FileHashCache defaultCache;
+
+    private final Path logFile;
+
+    /**
+     * Maximum number of entries kept in memory and in the compacted log.
+     */
+    @Getter
+    private final int maxEntries;
+
+    private final Map<Long, CachedHash> entries = new HashMap<>();
+
+    /**
+     * Highest rank of a file that is admitted to the cache.
+     */
+    private long threshold = ADMIT_ALL;
+
+    private DataOutputStream log;
+    private long logRecords;
+    private boolean loaded;
+
+    /**
+     * Creates a cache backed by a log file. The entries it already holds are loaded on first use,
+     * an unreadable log is discarded.
+     *
+     * @param logFile The log file
+     * @param maxEntries Maximum number of entries
+     */
+    public FileHashCache(Path logFile, int maxEntries) {
+        this.logFile = logFile;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Gets the cache shared by all hashers of this process, stored in the user's
+     * configuration directory and flushed when the process exits.
+     *
+     * @return The shared cache
+     */
+    public static synchronized FileHashCache getDefault() {
+        if (defaultCache == null) {
+            Path file = Paths.get(System.getProperty("user.home"), ".mirror-directories", "hash-cache", "hashes.log");
+            int maxEntries = Integer.getInteger("mirrordirectories.hashCache.maxEntries", 500_000);
+            defaultCache = new FileHashCache(file, maxEntries);
+
+            FileHashCache cache = defaultCache;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    cache.close();
+                } catch (IOException e) {
+                    LOGGER.warning("Failed to write hash cache (" + e.getMessage() + ")");
+                }
+            }, "hash-cache-shutdown"));
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Looks up the hash of a file, provided the file has not changed since it was hashed.
+     *
+     * @param path The file
+     * @param attrs Current attributes of the file
+     * @param algorithm The hash algorithm
+     * @return The hash, or null if none is cached for the file in its current state
+     */
+    public byte[] get(Path path, BasicFileAttributes attrs, String algorithm) {
+        String file = key(path);
+        long rank = rank(file, algorithm);
+
+        synchronized (this) {
+            load();
+            CachedHash cached = entries.get(rank);
+            if (cached == null || !cached.matches(file, algorithm, attrs)) {
+                return null;
+            }
+
+            int today = today();
+            if (cached.lastUsedDay + TOUCH_INTERVAL_DAYS <= today) {
+                cached.lastUsedDay = today;
+                try {
+                    openLog();
+                    log.writeByte(TOUCH_RECORD);
+                    log.writeLong(rank);
+                    log.writeInt(today);
+                    logRecords++;
+                } catch (IOException e) {
+                    LOGGER.warning("Failed to append to hash cache: " + logFile + " (" + e.getMessage() + ")");
+                    closeLog();
+                }
+            }
+            return cached.hash.clone();
+        }
+    }
+
+    /**
+     * Records the hash of a file, unless the file ranks outside the sample a full cache keeps.
+     *
+     * @param path The file
+     * @param attrs Attributes of the file as they were when it was hashed
+     * @param algorithm The hash algorithm
+     * @param hash The hash
+     */
+    public void put(Path path, BasicFileAttributes attrs, String algorithm, byte[] hash) {
+        String file = key(path);
+        long rank = rank(file, algorithm);
+        CachedHash cached = new CachedHash(file, algorithm, attrs.size(), modifiedMicros(attrs), fileKey(attrs),
+                hash.clone(), today());
+
+        synchronized (this) {
+            load();
+            if (rank > threshold) {
+                return;
+            }
+            entries.put(rank, cached);
+            if (entries.size() > maxEntries) {
+                evict();
+                if (rank > threshold) {
+                    return;
+                }
+            }
+
+            try {
+                openLog();
+                log.writeByte(HASH_RECORD);
+                writeHash(log, cached);
+                logRecords++;
+            } catch (IOException e) {
+                LOGGER.warning("Failed to append to hash cache: " + logFile + " (" + e.getMessage() + ")");
+                closeLog();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of cached hashes.
+     *
+     * @return The entry count
+     */
+    public synchronized int size() {
+        load();
+        return entries.size();
+    }
+
+    /**
+     * Writes buffered records to the log.
+     *
+     * @throws IOException If the log cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        if (log != null) {
+            log.flush();
+        }
+    }
+
+    /**
+     * Flushes the log, compacting it if it has grown too large.
+     *
+     * @throws IOException If the log cannot be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        closeLog();
+        if (loaded && logRecords > (long) COMPACTION_RATIO * entries.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Replays the log into memory unless done before, dropping idle entries and compacting it if it
+     * holds many outdated records or a damaged tail.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        boolean damaged = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported hash cache format");
+            }
+            while (true) {
+                int type = in.read();
+                if (type == HASH_RECORD) {
+                    CachedHash cached = readHash(in);
+                    entries.put(rank(cached.file, cached.algorithm), cached);
+                } else if (type == TOUCH_RECORD) {
+                    CachedHash cached = entries.get(in.readLong());
+                    int day = in.readInt();
+                    if (cached != null) {
+                        cached.lastUsedDay = Math.max(cached.lastUsedDay, day);
+                    }
+                } else if (type < 0) {
+                    break;
+                } else {
+                    // Garbage left by a crash, keep what was read
+                    damaged = true;
+                    break;
+                }
+                logRecords++;
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (EOFException e) {
+            // Record cut short by a crash, keep what was read
+            damaged = true;
+        } catch (IOException e) {
+            LOGGER.warning("Failed to read hash cache: " + logFile + " (" + e.getMessage() + ")");
+            entries.clear();
+            damaged = true;
+        }
+
+        int today = today();
+        entries.values().removeIf(cached -> cached.lastUsedDay + MAX_IDLE_DAYS < today);
+        if (entries.size() > maxEntries) {
+            evict();
+        } else if (entries.size() >= retainedEntries()) {
+            // Keep the sample of the previous runs instead of letting newly seen files displace it
+            threshold = entries.keySet().stream().mapToLong(Long::longValue).max().orElse(ADMIT_ALL);
+        }
+
+        if (damaged || logRecords > (long) COMPACTION_RATIO * entries.size()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                LOGGER.warning("Failed to compact hash cache: " + logFile + " (" + e.getMessage() + ")");
+            }
+        }
+    }
+
+    /**
+     * Shrinks the cache to the lowest ranked entries, leaving room to admit files ranked below
+     * the new threshold.
+     */
+    private void evict() {
+        long[] ranks = entries.keySet().stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(ranks);
+        threshold = ranks[Math.min(retainedEntries(), ranks.length) - 1];
+        entries.keySet().removeIf(rank -> rank > threshold);
+    }
+
+    private int retainedEntries() {
+        return Math.max(1, maxEntries - maxEntries / 10);
+    }
+
+    /**
+     * Rewrites the log with the live entries only, replacing it atomically.
+     */
+    private void compact() throws IOException {
+        closeLog();
+        Files.createDirectories(logFile.getParent());
+        Path tempFile = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (CachedHash cached : entries.values()) {
+                out.writeByte(HASH_RECORD);
+                writeHash(out, cached);
+            }
+        }
+
+        Files.move(tempFile, logFile, StandardCopyOption.REPLACE_EXISTING);
+        logRecords = entries.size();
+    }
+
+    private void openLog() throws IOException {
+        if (log != null) {
+            return;
+        }
+        Files.createDirectories(logFile.getParent());
+        boolean created = !Files.exists(logFile);
+        log = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(logFile,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        if (created) {
+            log.writeInt(MAGIC);
+            log.writeInt(VERSION);
+        }
+    }
+
+    private static void writeHash(DataOutputStream out, CachedHash cached) throws IOException {
+        out.writeUTF(cached.file);
+        out.writeUTF(cached.algorithm);
+        out.writeLong(cached.size);
+        out.writeLong(cached.modifiedMicros);
+        out.writeUTF(cached.fileKey == null ? "" : cached.fileKey);
+        out.writeShort(cached.hash.length);
+        out.write(cached.hash);
+        out.writeInt(cached.lastUsedDay);
+    }
+
+    private static CachedHash readHash(DataInputStream in) throws IOException {
+        String file = in.readUTF();
+        String algorithm = in.readUTF();
+        long size = in.readLong();
+        long modified = in.readLong();
+        String fileKey = in.readUTF();
+        byte[] hash = new byte[in.readUnsignedShort()];
+        in.readFully(hash);
+        int lastUsedDay = in.readInt();
+        return new CachedHash(file, algorithm, size, modified, fileKey.isEmpty() ? null : fileKey, hash, lastUsedDay);
+    }
+
+    private void closeLog() {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to close hash cache: " + logFile + " (" + e.getMessage() + ")");
+        }
+        log = null;
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Hashes path and algorithm of an entry (FNV-1a with a final avalanche), both to look the
+     * entry up and to rank it for the sample a full cache keeps.
+     */
+    private static long rank(String file, String algorithm) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < algorithm.length(); i++) {
+            hash = (hash ^ algorithm.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < file.length(); i++) {
+            hash = (hash ^ file.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static int today() {
+        return (int) TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis());
+    }
+
+    private static long modifiedMicros(BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+    }
+
+    private static String fileKey(BasicFileAttributes attrs) {
+        Object fileKey = attrs.fileKey();
+        return fileKey == null ? null : fileKey.toString();
+    }
+
+    /**
+     * A cached hash together with the file state it belongs to and the day it was last used.
+     */
+    private static final class CachedHash {
+
+        private final String file;
+        private final String algorithm;
+        private final long size;
+        private final long modifiedMicros;
+        private final String fileKey;
+        private final byte[] hash;
+        private int lastUsedDay;
+
+        private CachedHash(String file, String algorithm, long size, long modifiedMicros, String fileKey,
+                byte[] hash, int lastUsedDay) {
+            this.file = file;
+            this.algorithm = algorithm;
+            this.size = size;
+            this.modifiedMicros = modifiedMicros;
+            this.fileKey = fileKey;
+            this.hash = hash;
+            this.lastUsedDay = lastUsedDay;
+        }
+
+        private boolean matches(String file, String algorithm, BasicFileAttributes attrs) {
+            String currentKey = FileHashCache.fileKey(attrs);
+            return this.file.equals(file)
+                    && this.algorithm.equals(algorithm)
+                    && size == attrs.size()
+                    && modifiedMicros == FileHashCache.modifiedMicros(attrs)
+                    && (fileKey == null || currentKey == null || fileKey.equals(currentKey));
+        }
+    }
+}
@@ -18,6 +18,49 @@ public interface FileOperation {
      */
     boolean executeFileOperation(Path sourcePath, Path destPath) throws IOException;
 
+    /**
+     * Performs the operation on a file whose size is already known from the comparison,
+     * so implementations can choose a strategy by size without another stat call.
+     *
+     * @param sourcePath Source file path
+     * @param destPath Destination file path
+     * @param sizeHint Size of the source file when it was compared, negative if unknown
+     * @return true if operation successful, false otherwise
+     * @throws IOException If an I/O error occurs
+     */
+    default boolean executeFileOperation(Path sourcePath, Path destPath, long sizeHint) throws IOException {
+        return executeFileOperation(sourcePath, destPath);
+    }
+
+    /**
+     * Whether the operation has to be given the destination file itself, because it reads the existing
+     * file, such as to reuse its unchanged blocks, or remembers where files were written. Other operations
+     * may be given a temporary file that is renamed into place afterwards.
+     *
+     * @return True if the destination path has to be passed as is
+     */
+    default boolean needsDestinationPath() {
+        return false;
+    }
+
+    /**
+     * Sets the listener receiving byte level progress of files copied in chunks. Operations copying
+     * a file in one step ignore it, operations wrapping others pass it on.
+     *
+     * @param listener The listener, null to stop reporting progress
+     */
+    default void setProgressListener(CopyProgressListener listener) {
+    }
+
+    /**
+     * Called once all files of a run have been processed, for operations that keep state
+     * across files such as indexes to persist. Does nothing by default.
+     *
+     * @throws IOException If the state cannot be written
+     */
+    default void finish() throws IOException {
+    }
+
     /**
      * Gets the name of this operation (e.g., "Copy", "Move")
      *
@@ -0,0 +1,21 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * A file or directory that could not be processed during a run.
+ */
+@Getter @AllArgsConstructor
+public class FileOperationFailure {
+
+    private final String relativePath;
+    private final IOException cause;
+
+    @Override
+    public String toString() {
+        return relativePath + " (" + cause.getMessage() + ")";
+    }
+}
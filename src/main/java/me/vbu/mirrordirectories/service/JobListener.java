@@ -0,0 +1,23 @@
+package me.vbu.mirrordirectories.service;
+
+/**
+ * Notified by a {@link JobScheduler} when jobs start and finish.
+ * Methods are called from the threads running the jobs.
+ */
+public interface JobListener {
+    /**
+     * Called when a job has been given its devices and starts running.
+     *
+     * @param job The job
+     */
+    default void onJobStarted(MirrorJob job) {
+    }
+
+    /**
+     * Called after a job has completed, successfully or not.
+     *
+     * @param job The job, its status telling the outcome
+     */
+    default void onJobFinished(MirrorJob job) {
+    }
+}
@@ -0,0 +1,237 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs many mirror jobs concurrently while keeping the load on each storage device bounded.
+ * Every job needs the {@link FileStore}s of its source and destination, and only starts once
+ * all of them have a free slot, so jobs on independent disks run in parallel while jobs sharing
+ * a disk are serialized, or limited to a few at a time on devices that handle concurrent access
+ * well. Slots are taken all at once, so a waiting job never holds one device while waiting for
+ * another. Jobs writing to the same destination never run at the same time.
+ */
+public class JobScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(JobScheduler.class.getName());
+
+    /**
+     * Maximum number of jobs running at the same time, whatever devices they use.
+     */
+    @Getter
+    private int maxConcurrentJobs = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Number of jobs that may use a device at the same time, unless overridden per device.
+     */
+    @Getter
+    private int jobsPerDevice = 1;
+
+    private final Map<FileStore, Integer> deviceLimits = new HashMap<>();
+
+    /**
+     * Devices and destinations to the number of running jobs using them, guarded by this scheduler.
+     */
+    private final Map<Object, Integer> busy = new HashMap<>();
+
+    private final List<JobListener> listeners = new CopyOnWriteArrayList<>();
+
+    private int runningJobs;
+
+    /**
+     * Sets the maximum number of jobs running at the same time.
+     *
+     * @param maxConcurrentJobs The number of jobs, at least 1
+     */
+    public void setMaxConcurrentJobs(int maxConcurrentJobs) {
+        if (maxConcurrentJobs < 1) {
+            throw new IllegalArgumentException("Concurrent jobs must be at least 1");
+        }
+        this.maxConcurrentJobs = maxConcurrentJobs;
+    }
+
+    /**
+     * Sets the number of jobs that may use a device at the same time.
+     *
+     * @param jobsPerDevice The number of jobs, at least 1
+     */
+    public void setJobsPerDevice(int jobsPerDevice) {
+        if (jobsPerDevice < 1) {
+            throw new IllegalArgumentException("Jobs per device must be at least 1");
+        }
+        this.jobsPerDevice = jobsPerDevice;
+    }
+
+    /**
+     * Sets the number of jobs that may use the device holding a path at the same time,
+     * such as a higher limit for an SSD or network share.
+     *
+     * @param path Any path on the device
+     * @param limit The number of jobs, at least 1
+     * @throws IOException If the device of the path cannot be determined
+     */
+    public synchronized void setDeviceLimit(Path path, int limit) throws IOException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Jobs per device must be at least 1");
+        }
+        deviceLimits.put(Files.getFileStore(path), limit);
+    }
+
+    /**
+     * Adds a listener notified when jobs start and finish.
+     *
+     * @param listener The listener
+     */
+    public void addListener(JobListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added before.
+     *
+     * @param listener The listener
+     */
+    public void removeListener(JobListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Runs jobs until all of them have completed. Jobs start in the given order as far as their
+     * devices allow, a later job on idle devices may overtake an earlier one waiting for a busy device.
+     * A failing job does not affect the others, its status and failure tell what went wrong.
+     *
+     * @param jobs The jobs to run
+     * @return Number of jobs that failed
+     * @throws InterruptedException If interrupted while waiting, running jobs are interrupted as well
+     */
+    public int runAll(List<MirrorJob> jobs) throws InterruptedException {
+        List<PendingJob> pending = new ArrayList<>(jobs.size());
+        for (MirrorJob job : jobs) {
+            pending.add(new PendingJob(job, resources(job)));
+        }
+
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(maxConcurrentJobs, runnable -> {
+            Thread thread = new Thread(runnable, "mirror-job-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            synchronized (this) {
+                while (!pending.isEmpty() || runningJobs > 0) {
+                    Iterator<PendingJob> iterator = pending.iterator();
+                    while (iterator.hasNext() && runningJobs < maxConcurrentJobs) {
+                        PendingJob next = iterator.next();
+                        if (isAvailable(next.resources)) {
+                            iterator.remove();
+                            acquire(next.resources);
+                            executor.execute(() -> run(next, failed));
+                        }
+                    }
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw e;
+        }
+
+        executor.shutdown();
+        return failed.get();
+    }
+
+    /**
+     * Runs a job on a worker thread and gives its devices back afterwards.
+     */
+    private void run(PendingJob pending, AtomicInteger failed) {
+        listeners.forEach(listener -> listener.onJobStarted(pending.job));
+        try {
+            pending.job.run();
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Mirror job failed: " + pending.job, e);
+        } finally {
+            listeners.forEach(listener -> listener.onJobFinished(pending.job));
+            synchronized (this) {
+                release(pending.resources);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Collects what a job occupies while running: the devices of both its directories and its destination.
+     * A directory whose device cannot be determined is treated as a device of its own.
+     */
+    private static Set<Object> resources(MirrorJob job) {
+        Set<Object> resources = new LinkedHashSet<>();
+        for (Path path : List.of(job.getDirectoryPair().getSourceDirectory().toPath(),
+                                 job.getDirectoryPair().getDestinationDirectory().toPath())) {
+            try {
+                resources.add(Files.getFileStore(path));
+            } catch (IOException e) {
+                resources.add(path.toAbsolutePath().normalize());
+            }
+        }
+        Path destination = job.getDirectoryPair().getDestinationDirectory().toPath();
+        resources.add(new Destination(destination.toAbsolutePath().normalize()));
+        return resources;
+    }
+
+    private boolean isAvailable(Set<Object> resources) {
+        for (Object resource : resources) {
+            if (busy.getOrDefault(resource, 0) >= limit(resource)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void acquire(Set<Object> resources) {
+        runningJobs++;
+        resources.forEach(resource -> busy.merge(resource, 1, Integer::sum));
+    }
+
+    private void release(Set<Object> resources) {
+        runningJobs--;
+        resources.forEach(resource -> busy.computeIfPresent(resource, (key, count) -> count > 1 ? count - 1 : null));
+    }
+
+    private int limit(Object resource) {
+        if (resource instanceof Destination) {
+            return 1;
+        }
+        return deviceLimits.getOrDefault(resource, jobsPerDevice);
+    }
+
+    /**
+     * A job waiting for its resources.
+     */
+    private record PendingJob(MirrorJob job, Set<Object> resources) {
+    }
+
+    /**
+     * Destination directory of a job, which only one job may write to at a time.
+     */
+    private record Destination(Path path) {
+    }
+}
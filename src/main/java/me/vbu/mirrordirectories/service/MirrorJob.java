@@ -0,0 +1,108 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+import lombok.Setter;
+import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
+import me.vbu.mirrordirectories.model.filesystem.DirectoryNode;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Mirrors a single directory pair with a comparator of its own, so any number of jobs
+ * can run at the same time without sharing state. Configure the comparator before the
+ * job runs; a {@link JobScheduler} runs many jobs while respecting the devices they use.
+ */
+public class MirrorJob {
+
+    /**
+     * Lifecycle of a job.
+     */
+    public enum Status {
+        PENDING,
+        RUNNING,
+        SUCCEEDED,
+        FAILED
+    }
+
+    /**
+     * Comparator holding the settings, metrics and results of this job.
+     */
+    @Getter
+    private final DirectoryComparator comparator;
+
+    /**
+     * Whether the job compares and copies in one streaming pass instead of building the difference tree first.
+     */
+    @Getter @Setter
+    private boolean streaming = false;
+
+    @Getter
+    private volatile Status status = Status.PENDING;
+
+    /**
+     * Why the job failed, null unless it has.
+     */
+    @Getter
+    private volatile Exception failure;
+
+    /**
+     * How long the last run took.
+     */
+    @Getter
+    private volatile Duration duration = Duration.ZERO;
+
+    /**
+     * Creates a job for a directory pair.
+     *
+     * @param directoryPair The directories to mirror
+     */
+    public MirrorJob(SourceDestinationDirectoryPair directoryPair) {
+        this.comparator = new DirectoryComparator(directoryPair);
+    }
+
+    /**
+     * Gets the directory pair mirrored by this job.
+     *
+     * @return The directory pair
+     */
+    public SourceDestinationDirectoryPair getDirectoryPair() {
+        return comparator.getDirectoryPair();
+    }
+
+    /**
+     * Compares the pair and processes the differences, recording the outcome in the job status.
+     *
+     * @throws IOException If the directories are invalid or any item could not be processed
+     */
+    public void run() throws IOException {
+        status = Status.RUNNING;
+        failure = null;
+        long start = System.nanoTime();
+        try {
+            if (!getDirectoryPair().validateDirectories()) {
+                throw new IOException("Invalid source or destination directory");
+            }
+            if (streaming) {
+                comparator.processDifferences();
+            } else {
+                DirectoryNode differences = comparator.compareDirectories();
+                if (differences.hasChildren()) {
+                    comparator.processMissingItems();
+                }
+            }
+            status = Status.SUCCEEDED;
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            status = Status.FAILED;
+            throw e;
+        } finally {
+            duration = Duration.ofNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getDirectoryPair().getSourceDirectory() + " -> " + getDirectoryPair().getDestinationDirectory();
+    }
+}
@@ -0,0 +1,421 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Include and exclude rules deciding which entries of a tree are mirrored, compiled once
+ * so that every entry seen during a walk is matched in about constant time.
+ * <p>
+ * A rule is a glob, or a regular expression on the whole relative path when prefixed with
+ * {@code regex:}. Rules start with {@code - } to exclude (the default) or {@code + } to include.
+ * A glob without a slash matches the entry name at any depth, such as {@code node_modules} or
+ * {@code *.class}; a glob with a slash is anchored at the root, such as {@code build/tmp} or
+ * {@code src/**.java}. A trailing slash only matches directories. In globs {@code *} and
+ * {@code ?} match within a name, {@code **} across names and {@code [...]} one of a set of characters.
+ * <p>
+ * The first matching rule decides, entries no rule matches are included. An excluded directory
+ * is never descended into, so rules including entries below it have no effect.
+ * <p>
+ * Literal names and paths are looked up in hash maps. Anchored globs are stored in a trie
+ * by their literal leading names, so only those whose leading names match the path are
+ * evaluated. Only the remaining globs and regular expressions run as compiled patterns.
+ */
+public class PathFilter {
+
+    private static final String REGEX_PREFIX = "regex:";
+
+    private static final int[] NO_RULES = new int[0];
+
+    /**
+     * Rules in the order given, which is the order of precedence.
+     */
+    @Getter
+    private final List<Rule> rules;
+
+    private final Map<String, int[]> nameLiterals;
+
+    private final Map<String, int[]> pathLiterals;
+
+    /**
+     * Name patterns and regular expressions, checked for every entry.
+     */
+    private final int[] floatingPatterns;
+
+    private final TrieNode anchoredPatterns;
+
+    private PathFilter(List<Rule> rules) {
+        this.rules = List.copyOf(rules);
+
+        Map<String, List<Integer>> names = new HashMap<>();
+        Map<String, List<Integer>> paths = new HashMap<>();
+        List<Integer> floating = new ArrayList<>();
+        TrieBuilder anchored = new TrieBuilder();
+
+        for (int i = 0; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            if (rule.literal != null) {
+                (rule.anchored ? paths : names).computeIfAbsent(rule.literal, key -> new ArrayList<>()).add(i);
+            } else if (rule.anchored) {
+                TrieBuilder node = anchored;
+                for (String name : rule.literalPrefix) {
+                    node = node.children.computeIfAbsent(name, key -> new TrieBuilder());
+                }
+                node.rules.add(i);
+            } else {
+                floating.add(i);
+            }
+        }
+
+        this.nameLiterals = toArrays(names);
+        this.pathLiterals = toArrays(paths);
+        this.floatingPatterns = toArray(floating);
+        this.anchoredPatterns = anchored.build();
+    }
+
+    /**
+     * Compiles rules into a filter.
+     *
+     * @param rules The rules in order of precedence
+     * @return The compiled filter
+     * @throws IllegalArgumentException If a rule is empty or not a valid pattern
+     */
+    public static PathFilter compile(List<String> rules) {
+        List<Rule> compiled = new ArrayList<>(rules.size());
+        for (String rule : rules) {
+            compiled.add(Rule.parse(rule));
+        }
+        return new PathFilter(compiled);
+    }
+
+    /**
+     * Reads rules from a file with one rule per line. Blank lines and lines starting
+     * with {@code #} are skipped.
+     *
+     * @param file The file holding the rules
+     * @return The rules in the order of the file
+     * @throws IOException If the file cannot be read
+     */
+    public static List<String> readRules(Path file) throws IOException {
+        List<String> rules = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String rule = line.strip();
+            if (!rule.isEmpty() && !rule.startsWith("#")) {
+                rules.add(rule);
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Checks whether an entry is mirrored, counting a hit for the rule deciding it.
+     *
+     * @param relativePath Relative path of the entry, with the platform's or forward slashes
+     * @param directory Whether the entry is a directory
+     * @return True if no rule or an include rule matches first
+     */
+    public boolean includes(String relativePath, boolean directory) {
+        String path = File.separatorChar == '/' ? relativePath : relativePath.replace(File.separatorChar, '/');
+        String name = path.substring(path.lastIndexOf('/') + 1);
+
+        int match = rules.size();
+        match = firstLiteral(nameLiterals.get(name), directory, match);
+        match = firstLiteral(pathLiterals.get(path), directory, match);
+        match = firstPattern(floatingPatterns, path, name, directory, match);
+
+        TrieNode node = anchoredPatterns;
+        int start = 0;
+        while (node != null) {
+            match = firstPattern(node.rules, path, name, directory, match);
+            int end = path.indexOf('/', start);
+            if (end < 0 || node.children.isEmpty()) {
+                break;
+            }
+            node = node.children.get(path.substring(start, end));
+            start = end + 1;
+        }
+
+        if (match == rules.size()) {
+            return true;
+        }
+        Rule rule = rules.get(match);
+        rule.hits.increment();
+        return rule.include;
+    }
+
+    /**
+     * Removes the entries a filter excludes from a listing of a directory.
+     *
+     * @param filter The filter, null to keep every entry
+     * @param relativePath Relative path of the listed directory, empty for the root
+     * @param listing The listing
+     * @return The listing itself if nothing is excluded, otherwise a filtered copy
+     */
+    static List<DirectoryEntry> apply(PathFilter filter, String relativePath, List<DirectoryEntry> listing) {
+        if (filter == null) {
+            return listing;
+        }
+        List<DirectoryEntry> included = null;
+        for (int i = 0; i < listing.size(); i++) {
+            DirectoryEntry entry = listing.get(i);
+            String path = relativePath.isEmpty() ? entry.getName() : relativePath + File.separator + entry.getName();
+            if (filter.includes(path, entry.isDirectory())) {
+                if (included != null) {
+                    included.add(entry);
+                }
+            } else if (included == null) {
+                included = new ArrayList<>(listing.subList(0, i));
+            }
+        }
+        return included == null ? listing : included;
+    }
+
+    private int firstLiteral(int[] candidates, boolean directory, int match) {
+        if (candidates != null) {
+            for (int index : candidates) {
+                if (index >= match) {
+                    break;
+                }
+                if (directory || !rules.get(index).directoryOnly) {
+                    return index;
+                }
+            }
+        }
+        return match;
+    }
+
+    private int firstPattern(int[] candidates, String path, String name, boolean directory, int match) {
+        for (int index : candidates) {
+            if (index >= match) {
+                break;
+            }
+            Rule rule = rules.get(index);
+            if ((directory || !rule.directoryOnly)
+                    && rule.pattern.matcher(rule.anchored ? path : name).matches()) {
+                return index;
+            }
+        }
+        return match;
+    }
+
+    private static Map<String, int[]> toArrays(Map<String, List<Integer>> lists) {
+        Map<String, int[]> arrays = new HashMap<>(lists.size() * 2);
+        lists.forEach((key, list) -> arrays.put(key, toArray(list)));
+        return arrays;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        return list.isEmpty() ? NO_RULES : list.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * A single compiled rule together with the number of entries it decided.
+     */
+    public static final class Rule {
+
+        /**
+         * The rule as given.
+         */
+        @Getter
+        private final String text;
+
+        /**
+         * Whether matching entries are included rather than excluded.
+         */
+        @Getter
+        private final boolean include;
+
+        private final boolean directoryOnly;
+
+        /**
+         * Whether the rule matches the whole relative path rather than the entry name.
+         */
+        private final boolean anchored;
+
+        /**
+         * The name or path matched by a rule without wildcards, otherwise null.
+         */
+        private final String literal;
+
+        /**
+         * Leading names of an anchored pattern that contain no wildcards.
+         */
+        private final List<String> literalPrefix;
+
+        private final Pattern pattern;
+
+        private final LongAdder hits = new LongAdder();
+
+        private Rule(String text, boolean include, boolean directoryOnly, boolean anchored, String literal,
+                     List<String> literalPrefix, Pattern pattern) {
+            this.text = text;
+            this.include = include;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+            this.literal = literal;
+            this.literalPrefix = literalPrefix;
+            this.pattern = pattern;
+        }
+
+        /**
+         * Gets the number of entries this rule was the first to match.
+         *
+         * @return The hit count
+         */
+        public long getHits() {
+            return hits.sum();
+        }
+
+        private static Rule parse(String text) {
+            String rule = text.strip();
+            boolean include = false;
+            if (rule.startsWith("+ ") || rule.startsWith("- ")) {
+                include = rule.charAt(0) == '+';
+                rule = rule.substring(2).strip();
+            }
+
+            if (rule.startsWith(REGEX_PREFIX)) {
+                String regex = rule.substring(REGEX_PREFIX.length());
+                if (regex.isEmpty()) {
+                    throw invalidRule(text, "empty pattern");
+                }
+                try {
+                    return new Rule(text, include, false, true, null, List.of(), Pattern.compile(regex));
+                } catch (PatternSyntaxException e) {
+                    throw invalidRule(text, e.getDescription());
+                }
+            }
+
+            boolean directoryOnly = rule.endsWith("/");
+            String glob = directoryOnly ? rule.substring(0, rule.length() - 1) : rule;
+            if (glob.startsWith("**/") && glob.indexOf('/', 3) < 0) {
+                // A name at any depth, the same as giving the name alone
+                glob = glob.substring(3);
+            }
+            boolean anchored = glob.indexOf('/') >= 0;
+            if (glob.startsWith("/")) {
+                glob = glob.substring(1);
+            }
+            if (glob.isEmpty() || glob.contains("//")) {
+                throw invalidRule(text, "empty name");
+            }
+
+            if (!hasWildcards(glob)) {
+                return new Rule(text, include, directoryOnly, anchored, glob, List.of(), null);
+            }
+            List<String> prefix = new ArrayList<>();
+            if (anchored) {
+                String[] names = glob.split("/");
+                for (String name : Arrays.asList(names).subList(0, names.length - 1)) {
+                    if (hasWildcards(name)) {
+                        break;
+                    }
+                    prefix.add(name);
+                }
+            }
+            return new Rule(text, include, directoryOnly, anchored, null, List.copyOf(prefix), globPattern(glob, text));
+        }
+
+        private static boolean hasWildcards(String glob) {
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' || c == '?' || c == '[' || c == '\\') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Translates a glob into an equivalent regular expression.
+         */
+        private static Pattern globPattern(String glob, String text) {
+            StringBuilder regex = new StringBuilder(glob.length() * 2);
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                switch (c) {
+                    case '*' -> {
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                            i++;
+                            if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                                i++;
+                                regex.append("(?:.*/)?");
+                            } else {
+                                regex.append(".*");
+                            }
+                        } else {
+                            regex.append("[^/]*");
+                        }
+                    }
+                    case '?' -> regex.append("[^/]");
+                    case '[' -> {
+                        int end = glob.indexOf(']', i + 2);
+                        if (end < 0) {
+                            throw invalidRule(text, "unclosed [");
+                        }
+                        String set = glob.substring(i + 1, end);
+                        regex.append('[');
+                        if (set.startsWith("!")) {
+                            regex.append('^');
+                            set = set.substring(1);
+                        }
+                        regex.append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                        i = end;
+                    }
+                    case '\\' -> {
+                        if (++i == glob.length()) {
+                            throw invalidRule(text, "trailing \\");
+                        }
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                    }
+                    default -> regex.append(Character.isLetterOrDigit(c) ? String.valueOf(c) : "\\" + c);
+                }
+            }
+            try {
+                return Pattern.compile(regex.toString());
+            } catch (PatternSyntaxException e) {
+                throw invalidRule(text, e.getDescription());
+            }
+        }
+
+        private static IllegalArgumentException invalidRule(String text, String reason) {
+            return new IllegalArgumentException("Invalid filter rule: " + text + " (" + reason + ")");
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * Node of the trie of anchored patterns, holding the rules whose literal leading names
+     * end at this node.
+     */
+    private record TrieNode(Map<String, TrieNode> children, int[] rules) {
+    }
+
+    private static final class TrieBuilder {
+        private final Map<String, TrieBuilder> children = new HashMap<>();
+        private final List<Integer> rules = new ArrayList<>();
+
+        private TrieNode build() {
+            Map<String, TrieNode> built = new HashMap<>(children.size() * 2);
+            children.forEach((name, child) -> built.put(name, child.build()));
+            return new TrieNode(built, toArray(rules));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package me.vbu.mirrordirectories.service;
+
+import java.nio.file.Path;
+
+/**
+ * Notified by the {@link CopyEngine} about every item it has processed successfully,
+ * and by the {@link DestinationPruner} about every item it has removed.
+ * Methods may be called concurrently from several workers.
+ */
+public interface ProcessedItemListener {
+    /**
+     * Called after a directory has been created or found to exist.
+     *
+     * @param relativePath Relative path of the directory
+     * @param destPath The destination directory
+     */
+    default void onDirectoryCreated(String relativePath, Path destPath) {
+    }
+
+    /**
+     * Called after the file operation succeeded for a file.
+     *
+     * @param relativePath Relative path of the file
+     * @param sourcePath The source file
+     * @param destPath The destination file
+     */
+    default void onFileProcessed(String relativePath, Path sourcePath, Path destPath) {
+    }
+
+    /**
+     * Called after an extraneous destination entry has been removed by a {@link DestinationPruner}.
+     *
+     * @param relativePath Relative path of the removed file or directory
+     */
+    default void onItemRemoved(String relativePath) {
+    }
+}
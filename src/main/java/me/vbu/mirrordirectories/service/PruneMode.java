@@ -0,0 +1,18 @@
+package me.vbu.mirrordirectories.service;
+
+/**
+ * How entries only present in the destination are removed in mirror mode.
+ */
+public enum PruneMode {
+    /**
+     * Delete the entries, removing directory trees in parallel.
+     */
+    DELETE,
+
+    /**
+     * Move the entries into a trash directory at the destination root, one directory per run,
+     * so they can be restored or deleted later. A move within a file system is a single rename,
+     * however large the moved tree.
+     */
+    TRASH
+}
@@ -0,0 +1,85 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * FileOperation that picks a copy strategy by file size: tiny files go through
+ * {@link SmallFileCopyOperation}, huge files are streamed by {@link ChannelCopyFileOperation}
+ * and everything in between uses {@link CopyFileOperation}. The size known from the
+ * comparison is used, so choosing a strategy costs no extra system call.
+ */
+public class SizeClassedCopyOperation implements FileOperation {
+
+    /**
+     * Files up to this size are copied with a single read and write.
+     */
+    @Getter
+    private final int smallFileThreshold;
+
+    /**
+     * Files of at least this size are streamed in chunks.
+     */
+    @Getter
+    private final long largeFileThreshold;
+
+    private final SmallFileCopyOperation smallFiles;
+
+    private final CopyFileOperation mediumFiles = new CopyFileOperation();
+
+    /**
+     * Operation used for large files, exposed to configure chunk sizes and progress reporting.
+     */
+    @Getter
+    private final ChannelCopyFileOperation largeFiles = new ChannelCopyFileOperation();
+
+    public SizeClassedCopyOperation() {
+        this(64 * 1024, 64L * 1024 * 1024);
+    }
+
+    /**
+     * Creates the operation.
+     *
+     * @param smallFileThreshold Largest size copied by the small file path
+     * @param largeFileThreshold Smallest size streamed in chunks
+     */
+    public SizeClassedCopyOperation(int smallFileThreshold, long largeFileThreshold) {
+        if (largeFileThreshold <= smallFileThreshold) {
+            throw new IllegalArgumentException("Large file threshold must exceed the small file threshold");
+        }
+        this.smallFileThreshold = smallFileThreshold;
+        this.largeFileThreshold = largeFileThreshold;
+        this.smallFiles = new SmallFileCopyOperation(smallFileThreshold);
+    }
+
+    @Override
+    public boolean executeFileOperation(Path sourcePath, Path destPath) throws IOException {
+        return executeFileOperation(sourcePath, destPath, -1);
+    }
+
+    @Override
+    public boolean executeFileOperation(Path sourcePath, Path destPath, long sizeHint) throws IOException {
+        long size = sizeHint >= 0 ? sizeHint : Files.size(sourcePath);
+
+        if (size <= smallFileThreshold) {
+            return smallFiles.executeFileOperation(sourcePath, destPath);
+        }
+        if (size >= largeFileThreshold) {
+            return largeFiles.executeFileOperation(sourcePath, destPath);
+        }
+        return mediumFiles.executeFileOperation(sourcePath, destPath);
+    }
+
+    @Override
+    public void setProgressListener(CopyProgressListener listener) {
+        largeFiles.setProgressListener(listener);
+    }
+
+    @Override
+    public String getOperationName() {
+        return "Copy";
+    }
+}
@@ -0,0 +1,262 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persisted listing of a directory pair as it was after the last two-way sync, when both
+ * sides agreed. Comparing each side with it tells which side created, modified or deleted
+ * an entry since then. Entries are grouped by directory like the {@link DestinationManifest}.
+ */
+public class SyncState {
+
+    private static final Logger LOGGER = Logger.getLogger(SyncState.class.getName());
+
+    private static final int MAGIC = 0x4d445353;
+    private static final int VERSION = 1;
+
+    private final Path stateFile;
+
+    /**
+     * Relative directory path, using '/' separators, to the entries of that directory.
+     */
+    private final Map<String, Map<String, SyncedEntry>> directories = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty state stored in the given file.
+     *
+     * @param stateFile File the state is loaded from and saved to
+     */
+    public SyncState(Path stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Loads the state of a directory pair from the user's sync state store.
+     * A missing or unreadable state results in an empty one, as before the first sync.
+     *
+     * @param sourceRoot The source directory
+     * @param destinationRoot The destination directory
+     * @return The state
+     */
+    public static SyncState forPair(Path sourceRoot, Path destinationRoot) {
+        String pair = sourceRoot.toAbsolutePath().normalize() + File.pathSeparator
+                + destinationRoot.toAbsolutePath().normalize();
+        Path file = Paths.get(System.getProperty("user.home"), ".mirror-directories", "sync",
+                DestinationManifest.digest(pair) + ".state");
+
+        SyncState state = new SyncState(file);
+        try {
+            state.load();
+        } catch (NoSuchFileException e) {
+            // Never synced, every difference is treated as new
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read sync state: " + file + " (" + e.getMessage() + ")");
+            state.directories.clear();
+        }
+        return state;
+    }
+
+    /**
+     * Checks whether an entry existed on both sides after the last sync.
+     *
+     * @param relativePath Relative path of the entry
+     * @return True if the entry is recorded
+     */
+    public boolean contains(String relativePath) {
+        return find(relativePath) != null;
+    }
+
+    /**
+     * Checks whether an entry of one side is unchanged since the last sync. Modification times
+     * are compared with the given tolerance, covering file systems with coarse timestamps.
+     *
+     * @param relativePath Relative path of the entry
+     * @param entry The entry as currently listed
+     * @param toleranceMillis Allowed difference of the modification times
+     * @return True if the entry is recorded with the same type, size and modification time
+     */
+    public boolean matches(String relativePath, DirectoryEntry entry, long toleranceMillis) {
+        SyncedEntry synced = find(relativePath);
+        if (synced == null || synced.isDirectory() != entry.isDirectory()) {
+            return false;
+        }
+        return entry.isDirectory() || synced.getSize() == entry.getSize()
+                && Math.abs(synced.getLastModified() - entry.getLastModified()) <= toleranceMillis;
+    }
+
+    /**
+     * Records a directory present on both sides.
+     *
+     * @param relativePath Relative path of the directory
+     */
+    public void recordDirectory(String relativePath) {
+        String key = normalize(relativePath);
+        directories.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+        if (!key.isEmpty()) {
+            parentEntries(key).put(name(key), new SyncedEntry(true, 0, 0));
+        }
+    }
+
+    /**
+     * Records a file that is the same on both sides.
+     *
+     * @param relativePath Relative path of the file
+     * @param size Size of the file
+     * @param lastModified Modification time of the file
+     */
+    public void recordFile(String relativePath, long size, long lastModified) {
+        String key = normalize(relativePath);
+        parentEntries(key).put(name(key), new SyncedEntry(false, size, lastModified));
+    }
+
+    /**
+     * Forgets an entry, including everything recorded below a directory.
+     *
+     * @param relativePath Relative path of the entry
+     */
+    public void removeEntry(String relativePath) {
+        String key = normalize(relativePath);
+        Map<String, SyncedEntry> entries = directories.get(parent(key));
+        if (entries != null) {
+            entries.remove(name(key));
+        }
+        directories.keySet().removeIf(dir -> dir.equals(key) || dir.startsWith(key + "/"));
+    }
+
+    /**
+     * Forgets the entries of a directory that exist on neither side any more.
+     *
+     * @param relativeDir Relative path of the directory
+     * @param names Names of the entries present on at least one side
+     */
+    public void retainEntries(String relativeDir, Set<String> names) {
+        Map<String, SyncedEntry> entries = directories.get(normalize(relativeDir));
+        if (entries == null) {
+            return;
+        }
+        for (String name : Set.copyOf(entries.keySet())) {
+            if (!names.contains(name)) {
+                removeEntry(relativeDir.isEmpty() ? name : relativeDir + File.separator + name);
+            }
+        }
+    }
+
+    /**
+     * Reads the state file, replacing all entries.
+     *
+     * @throws IOException If the file cannot be read or is not a sync state
+     */
+    public void load() throws IOException {
+        directories.clear();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported sync state format");
+            }
+
+            int directoryCount = in.readInt();
+            for (int i = 0; i < directoryCount; i++) {
+                String dir = in.readUTF();
+                int entryCount = in.readInt();
+                Map<String, SyncedEntry> entries = new ConcurrentHashMap<>(Math.max(16, entryCount * 2));
+
+                for (int j = 0; j < entryCount; j++) {
+                    String name = in.readUTF();
+                    boolean directory = in.readBoolean();
+                    long size = in.readLong();
+                    long lastModified = in.readLong();
+                    entries.put(name, new SyncedEntry(directory, size, lastModified));
+                }
+                directories.put(dir, entries);
+            }
+        }
+    }
+
+    /**
+     * Writes the state file, replacing the previous one atomically.
+     *
+     * @throws IOException If the file cannot be written
+     */
+    public void save() throws IOException {
+        Files.createDirectories(stateFile.getParent());
+        Path tempFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            Map<String, Map<String, SyncedEntry>> snapshot = Map.copyOf(directories);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Map<String, SyncedEntry>> dir : snapshot.entrySet()) {
+                Map<String, SyncedEntry> entries = Map.copyOf(dir.getValue());
+                out.writeUTF(dir.getKey());
+                out.writeInt(entries.size());
+
+                for (Map.Entry<String, SyncedEntry> item : entries.entrySet()) {
+                    SyncedEntry entry = item.getValue();
+                    out.writeUTF(item.getKey());
+                    out.writeBoolean(entry.isDirectory());
+                    out.writeLong(entry.getSize());
+                    out.writeLong(entry.getLastModified());
+                }
+            }
+        }
+
+        Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private SyncedEntry find(String relativePath) {
+        String key = normalize(relativePath);
+        Map<String, SyncedEntry> entries = directories.get(parent(key));
+        return entries == null ? null : entries.get(name(key));
+    }
+
+    private Map<String, SyncedEntry> parentEntries(String key) {
+        return directories.computeIfAbsent(parent(key), k -> new ConcurrentHashMap<>());
+    }
+
+    private static String normalize(String relativePath) {
+        String path = relativePath.replace(File.separatorChar, '/');
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        return path;
+    }
+
+    private static String parent(String key) {
+        int index = key.lastIndexOf('/');
+        return index < 0 ? "" : key.substring(0, index);
+    }
+
+    private static String name(String key) {
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Recorded state of a single entry after the last sync.
+     */
+    @Getter @AllArgsConstructor
+    private static class SyncedEntry {
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+    }
+}
@@ -0,0 +1,19 @@
+package me.vbu.mirrordirectories.service;
+
+/**
+ * How a {@link VerifyingCopyFileOperation} checks a destination file after writing it.
+ */
+public enum VerificationMode {
+    /**
+     * Force the destination file to the device, read it back and compare its checksum with the one
+     * computed while copying. Catches corruption on the write path up to the file system's cache and
+     * errors the device reports, at the cost of a sync and of reading every file once more.
+     */
+    READ_BACK,
+
+    /**
+     * Trust the write path and only check that the destination file has the size that was copied.
+     * Costs a single system call per file.
+     */
+    SIZE
+}
@@ -0,0 +1,188 @@
+package me.vbu.mirrordirectories.service;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * FileOperation that copies through a buffer and computes the CRC32C checksum of the bytes as they
+ * pass, so the copy can be verified without reading the source a second time. Depending on the
+ * {@link VerificationMode} the destination is read back and its checksum compared, or only its size
+ * is checked. The read-back of one worker overlaps with the copies of the other workers. A destination
+ * failing verification is deleted, so it is copied again instead of looking up to date. The checksums
+ * of source and destination are recorded in the {@link FileHashCache} next to the content hashes,
+ * where checksum level comparisons find them instead of reading the unchanged files again.
+ * <p>
+ * Before reading back, the destination is forced to the storage device, so the file is durable and
+ * write errors the device reports are caught. The read-back itself is normally served from the page
+ * cache: it verifies the data the file system holds for the file, not the bytes on the media.
+ */
+public class VerifyingCopyFileOperation implements FileOperation {
+
+    /**
+     * Maximum number of idle buffers kept in the pool.
+     */
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    @Getter
+    private final VerificationMode mode;
+
+    private final ContentHasher checksums = new ContentHasher(FileHashCache.getDefault(),
+            ContentHasher.CHECKSUM_ALGORITHM);
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong verifiedFiles = new AtomicLong();
+    private final AtomicLong verifiedBytes = new AtomicLong();
+    private final AtomicLong mismatchedFiles = new AtomicLong();
+
+    public VerifyingCopyFileOperation() {
+        this(VerificationMode.READ_BACK);
+    }
+
+    /**
+     * Creates the operation.
+     *
+     * @param mode How destination files are verified
+     */
+    public VerifyingCopyFileOperation(VerificationMode mode) {
+        this.mode = mode;
+    }
+
+    @Override
+    public boolean executeFileOperation(Path sourcePath, Path destPath) throws IOException {
+        BasicFileAttributes before = Files.readAttributes(sourcePath, BasicFileAttributes.class);
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            CRC32C checksum = new CRC32C();
+            long copied = 0;
+            try (FileChannel in = FileChannel.open(sourcePath, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(destPath, StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                int read;
+                while ((read = in.read(buffer.clear())) >= 0) {
+                    buffer.flip();
+                    checksum.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    copied += read;
+                }
+                if (mode == VerificationMode.READ_BACK) {
+                    // Write the data to the device, so an I/O error surfaces here instead of after the check
+                    out.force(false);
+                }
+            }
+            Files.setLastModifiedTime(destPath, before.lastModifiedTime());
+            byte[] sourceChecksum = ContentHasher.checksumBytes(checksum);
+
+            BasicFileAttributes written = Files.readAttributes(destPath, BasicFileAttributes.class);
+            if (written.size() != copied) {
+                reject(destPath, "size " + written.size() + " instead of " + copied);
+            }
+            if (mode == VerificationMode.READ_BACK
+                    && !MessageDigest.isEqual(sourceChecksum, readChecksum(destPath, buffer))) {
+                reject(destPath, "checksum mismatch");
+            }
+            verifiedFiles.incrementAndGet();
+            verifiedBytes.addAndGet(copied);
+
+            // Only record the source checksum if the source did not change while it was copied
+            BasicFileAttributes after = Files.readAttributes(sourcePath, BasicFileAttributes.class);
+            if (after.size() == copied && after.lastModifiedTime().equals(before.lastModifiedTime())) {
+                checksums.record(sourcePath, after, sourceChecksum);
+            }
+            // A temporary file of a journaled copy is renamed afterwards, its path is not worth recording
+            if (!destPath.getFileName().toString().endsWith(CopyJournal.TEMP_SUFFIX)) {
+                checksums.record(destPath, written, sourceChecksum);
+            }
+            return true;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Computes the checksum of a written file by reading it back.
+     */
+    private static byte[] readChecksum(Path path, ByteBuffer buffer) throws IOException {
+        CRC32C checksum = new CRC32C();
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (in.read(buffer.clear()) >= 0) {
+                checksum.update(buffer.flip());
+            }
+        }
+        return ContentHasher.checksumBytes(checksum);
+    }
+
+    /**
+     * Deletes a destination file that failed verification and reports the failure.
+     */
+    private void reject(Path destPath, String reason) throws IOException {
+        mismatchedFiles.incrementAndGet();
+        Files.deleteIfExists(destPath);
+        throw new IOException("Verification failed (" + reason + "): " + destPath);
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        // The size check is racy, so the pool may briefly hold a few more buffers than the limit
+        if (buffers.size() < MAX_POOLED_BUFFERS) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Gets the number of files copied and verified successfully.
+     *
+     * @return The verified file count
+     */
+    public long getVerifiedFiles() {
+        return verifiedFiles.get();
+    }
+
+    /**
+     * Gets the number of bytes copied and verified successfully.
+     *
+     * @return The verified byte count
+     */
+    public long getVerifiedBytes() {
+        return verifiedBytes.get();
+    }
+
+    /**
+     * Gets the number of destination files that failed verification and were deleted.
+     *
+     * @return The mismatch count
+     */
+    public long getMismatchedFiles() {
+        return mismatchedFiles.get();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        checksums.flushCache();
+    }
+
+    @Override
+    public String getOperationName() {
+        return "Copy";
+    }
+}
@@ -10,6 +10,15 @@ import me.vbu.mirrordirectories.ui.views.MainView;
  */
 public class DirectoryMirrorApp extends Application {
 
+    /**
+     * Launches the user interface.
+     *
+     * @param args Command line arguments passed to the application
+     */
+    public static void main(String[] args) {
+        launch(args);
+    }
+
     @Override
     public void start(Stage primaryStage) {
         // Create main view
@@ -5,6 +5,9 @@ import javafx.geometry.Insets;
 import javafx.scene.control.Alert;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.Pane;
+import me.vbu.mirrordirectories.metrics.MetricsListener;
+import me.vbu.mirrordirectories.metrics.MetricsSnapshot;
+import me.vbu.mirrordirectories.metrics.MirrorMetrics;
 import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
 import me.vbu.mirrordirectories.model.filesystem.DirectoryNode;
 import me.vbu.mirrordirectories.service.DirectoryComparator;
@@ -13,7 +16,7 @@ import me.vbu.mirrordirectories.ui.views.components.DirectorySelectionPanel;
 import me.vbu.mirrordirectories.ui.views.components.DirectoryTreeView;
 
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.time.Duration;
 
 /**
  * Main view for the Directory Mirror application.
@@ -33,9 +36,11 @@ public class MainView {
     // Current state
     private DirectoryNode comparisonResult;
 
+    private static final Duration STATUS_UPDATE_INTERVAL = Duration.ofMillis(500);
+
     public MainView() {
         // Initialize services
-        comparator = DirectoryComparator.getInstance();
+        comparator = new DirectoryComparator();
 
         // Create root container
         root = new BorderPane();
@@ -76,7 +81,7 @@ public class MainView {
     private void compareDirectories() {
         // Connect UI input to the comparator
 
-        comparator.setDirectoryPair(new SourceDestinationDirectoryPair(directorySelectionPanel));
+        comparator.setDirectoryPair(new SourceDestinationDirectoryPair(directorySelectionPanel.getDirectoryPair()));
 
         // Validate directories through the input provider
         if (!comparator.getDirectoryPair().validateDirectories()) {
@@ -102,7 +107,8 @@ public class MainView {
                 if (!hasDifferences) {
                     controlPanel.setStatusMessage("No differences found. Directories are in sync.");
                 } else {
-                    controlPanel.setStatusMessage(comparator.getTotalFileCount() + " files missing from destination directory.");
+                    controlPanel.setStatusMessage(comparator.getTotalFileCount() + " files to mirror ("
+                            + comparator.getModifiedFileCount() + " modified in source).");
                 }
             });
         }).start();
@@ -120,27 +126,23 @@ public class MainView {
         // Update status
         controlPanel.setStatusMessage("Copying files...");
         controlPanel.setCopyButtonEnabled(false);
-        AtomicBoolean isFileOperationCompleted = new AtomicBoolean(false);
 
         // Run copy operation in background thread
         new Thread(() -> {
+            MirrorMetrics metrics = comparator.getMetrics();
+            MetricsListener statusListener = createStatusListener();
             try {
-                Thread updateStatusThread = getStatusUpdationThread(isFileOperationCompleted);
-
+                metrics.addListener(statusListener);
+                metrics.startReporting(STATUS_UPDATE_INTERVAL);
                 try {
                     comparator.copyMissingItems();
                 } finally {
-                    isFileOperationCompleted.set(true);
-                    try {
-                        updateStatusThread.join(); // Wait for status thread to finish
-                    } catch (InterruptedException e) {
-                        System.err.println("InterruptedException occurred :: " + e.getMessage());
-                    }
+                    metrics.removeListener(statusListener);
+                    metrics.stopReporting();
                 }
 
                 // Update UI on JavaFX thread
                 Platform.runLater(() -> {
-                    isFileOperationCompleted.set(true);
                     controlPanel.setStatusMessage("Successfully copied " + comparator.getProcessedFileCount() + " items.");
                     showAlert("Copy Complete", "Successfully copied " + comparator.getProcessedFileCount() + " items.");
 
@@ -158,29 +160,21 @@ public class MainView {
         }).start();
     }
 
-    private Thread getStatusUpdationThread(AtomicBoolean isFileOperationCompleted) {
-        Thread updateStatusThread = new Thread(() -> {
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                System.err.println("Interruption Exception occurred " + e.getMessage());
-            }
-            while(!isFileOperationCompleted.get()) {
-                Platform.runLater(() -> controlPanel.setStatusMessage(
-                        "(" + comparator.getProcessedFileCount() + "/" + comparator.getTotalFileCount() + ") " +
-                                "Coping file " + comparator.getCurrentlyCopyingFileName()
-                ));
-
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    System.err.println("Interruption Exception occurred " + e.getMessage());
-                }
+    /**
+     * Creates a listener showing the copy progress from the metrics snapshots.
+     *
+     * @return The listener
+     */
+    private MetricsListener createStatusListener() {
+        return new MetricsListener() {
+            @Override
+            public void onSnapshot(MetricsSnapshot snapshot) {
+                String status = String.format("(%d/%d, %.1f MB/s) Copying file %s",
+                        snapshot.getFilesProcessed(), comparator.getTotalFileCount(),
+                        snapshot.getBytesPerSecond() / (1024 * 1024), comparator.getCurrentlyCopyingFileName());
+                Platform.runLater(() -> controlPanel.setStatusMessage(status));
             }
-        });
-
-        updateStatusThread.start();
-        return updateStatusThread;
+        };
     }
 
     /**
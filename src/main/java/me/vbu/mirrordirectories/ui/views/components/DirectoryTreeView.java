@@ -1,20 +1,64 @@
 package me.vbu.mirrordirectories.ui.views.components;
 
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.control.TreeItem;
 import javafx.scene.control.TreeView;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import me.vbu.mirrordirectories.model.filesystem.DirectoryNode;
+import me.vbu.mirrordirectories.model.filesystem.ExtraneousNode;
+import me.vbu.mirrordirectories.model.filesystem.FileNode;
+import me.vbu.mirrordirectories.model.filesystem.ModifiedFileNode;
 import me.vbu.mirrordirectories.model.filesystem.Node;
+import me.vbu.mirrordirectories.model.filesystem.TreeStatistics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Component for displaying the directory comparison tree.
+ * Tree items are created lazily when their parent is expanded, and the file counts and byte
+ * totals of all directories are computed in a single bottom-up pass on a background thread,
+ * so huge comparison results display without blocking the JavaFX thread.
  */
 public class DirectoryTreeView extends VBox {
 
+    private static final Comparator<Node> DIRECTORIES_FIRST = Comparator
+            .comparing((Node node) -> !node.isDirectory())
+            .thenComparing(Node::getName);
+
     private TreeView<String> treeView;
 
+    private final ExecutorService statisticsExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tree-statistics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Incremented whenever a new result is shown, so statistics of a previous result are skipped.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * Statistics of the directories of the shown result keyed by path, null until computed.
+     * Only accessed on the JavaFX thread.
+     */
+    private Map<String, TreeStatistics> statistics;
+
+    /**
+     * Completes once the statistics of the shown result are displayed.
+     */
+    private volatile CompletableFuture<Void> statisticsShown = CompletableFuture.completedFuture(null);
+
     public DirectoryTreeView() {
         initializeUI();
     }
@@ -36,46 +80,118 @@ public class DirectoryTreeView extends VBox {
     }
 
     /**
-     * Updates the tree view with comparison results.
+     * Updates the tree view with comparison results. Only the root and its direct
+     * children are created up front, deeper items are created when expanded.
      *
      * @param rootNode The root node of the comparison result
      */
     public void updateTreeView(DirectoryNode rootNode) {
-        // Clear existing tree
-        TreeItem<String> root = new TreeItem<>(rootNode.getName() + " (Root)");
+        int currentGeneration = generation.incrementAndGet();
+        statistics = null;
+        NodeTreeItem root = new NodeTreeItem(rootNode, rootNode.getName() + " (Root)", "");
         root.setExpanded(true);
-
-        // Build tree items from comparison results
-        if (rootNode.hasChildren()) {
-            for (Node child : rootNode.getChildren().values()) {
-                addNodeToTree(child, root);
-            }
-        }
-
         treeView.setRoot(root);
+
+        statisticsShown = CompletableFuture
+                .supplyAsync(() -> generation.get() == currentGeneration
+                        ? TreeStatistics.ofDirectories(rootNode) : null, statisticsExecutor)
+                .thenAcceptAsync(computed -> {
+                    if (computed != null && generation.get() == currentGeneration) {
+                        statistics = computed;
+                        root.showStatistics();
+                    }
+                }, Platform::runLater);
     }
 
     /**
-     * Recursively adds nodes to the tree view.
+     * Gets a future that completes once the statistics of the shown result are displayed,
+     * or skipped because another result replaced it.
      *
-     * @param node The node to add
-     * @param parent The parent tree item
+     * @return The future
      */
-    private void addNodeToTree(Node node, TreeItem<String> parent) {
-        // Create tree item for this node
-        String displayName = node.getName() + (node.isDirectory() ? "/" : "");
-        TreeItem<String> item = new TreeItem<>(displayName);
+    public CompletableFuture<Void> getStatisticsShown() {
+        return statisticsShown;
+    }
 
-        // Add children if this is a directory
+    /**
+     * Builds the label of a tree item.
+     *
+     * @param node The node to display
+     * @return The label
+     */
+    private static String displayName(Node node) {
+        if (node instanceof ExtraneousNode extraneous) {
+            String suffix = extraneous.isDirectory() ? "/"
+                    : "  (" + TreeStatistics.formatBytes(extraneous.getSize()) + ")";
+            return node.getName() + " (extraneous)" + suffix;
+        }
         if (node.isDirectory()) {
-            item.setExpanded(true);
-            DirectoryNode dirNode = (DirectoryNode) node;
-            for (Node child : dirNode.getChildren().values()) {
-                addNodeToTree(child, item);
+            return node.getName() + "/";
+        }
+
+        String size = node instanceof FileNode file ? "  (" + TreeStatistics.formatBytes(file.getSize()) + ")" : "";
+        return node.getName() + (node instanceof ModifiedFileNode ? " (modified)" : "") + size;
+    }
+
+    /**
+     * Tree item for a node of the comparison result that creates its children on first access.
+     */
+    private final class NodeTreeItem extends TreeItem<String> {
+        private final Node node;
+        private final String label;
+        private final String path;
+        private boolean childrenLoaded;
+
+        private NodeTreeItem(Node node, String label, String path) {
+            super(label);
+            this.node = node;
+            this.label = label;
+            this.path = path;
+            showStatistics();
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return !(node instanceof DirectoryNode directory) || !directory.hasChildren();
+        }
+
+        @Override
+        public ObservableList<TreeItem<String>> getChildren() {
+            if (!childrenLoaded) {
+                childrenLoaded = true;
+                if (node instanceof DirectoryNode directory) {
+                    List<Node> children = new ArrayList<>(directory.getChildren().values());
+                    children.sort(DIRECTORIES_FIRST);
+
+                    List<TreeItem<String>> items = new ArrayList<>(children.size());
+                    for (Node child : children) {
+                        items.add(new NodeTreeItem(child, displayName(child),
+                                TreeStatistics.childPath(path, child.getName())));
+                    }
+                    super.getChildren().setAll(items);
+                }
             }
+            return super.getChildren();
         }
 
-        // Add to parent
-        parent.getChildren().add(item);
+        /**
+         * Adds the file count and size of this directory to its label once they are computed, and
+         * does the same for the items created below it so far.
+         */
+        private void showStatistics() {
+            if (statistics == null || !(node instanceof DirectoryNode)) {
+                return;
+            }
+            TreeStatistics directory = statistics.get(path);
+            if (directory != null) {
+                setValue(label + "  (" + directory.getFileCount() + " files, "
+                        + TreeStatistics.formatBytes(directory.getTotalBytes()) + ")");
+            }
+            if (childrenLoaded) {
+                for (TreeItem<String> child : super.getChildren()) {
+                    ((NodeTreeItem) child).showStatistics();
+                }
+            }
+        }
     }
 }
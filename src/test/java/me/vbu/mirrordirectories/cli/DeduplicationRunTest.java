@@ -0,0 +1,73 @@
+package me.vbu.mirrordirectories.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Repeated runs with hard link deduplication, whose links share the modification time of the first copy.
+ */
+class DeduplicationRunTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void secondRunOverDeduplicatedTreeFindsNoDifferences() throws IOException {
+        Path source = Files.createDirectories(directory.resolve("source"));
+        Path destination = Files.createDirectories(directory.resolve("destination"));
+        byte[] content = new byte[64 * 1024];
+        new Random(7).nextBytes(content);
+        Files.setLastModifiedTime(Files.write(source.resolve("first"), content),
+                FileTime.from(Instant.parse("2020-01-01T00:00:00Z")));
+        Files.setLastModifiedTime(Files.write(source.resolve("second"), content),
+                FileTime.from(Instant.parse("2021-01-01T00:00:00Z")));
+        // A single worker, so the second file is only copied once the first one is in the index
+        String[] args = {"--source", source.toString(), "--destination", destination.toString(),
+                "--dedup", "hardlink", "--workers", "1"};
+
+        String first = run(args);
+        assertTrue(first.contains("\"linkedFiles\":1"), first);
+        assertEquals(Files.readAttributes(destination.resolve("first"), "unix:ino"),
+                Files.readAttributes(destination.resolve("second"), "unix:ino"));
+
+        String second = run(args);
+        assertTrue(second.contains("\"differences\":0"), second);
+    }
+
+    @Test
+    void hardLinksAreRejectedAtMetadataLevel() throws IOException {
+        Path source = Files.createDirectories(directory.resolve("source"));
+        Path destination = Files.createDirectories(directory.resolve("destination"));
+
+        assertEquals(MirrorCli.EXIT_USAGE, MirrorCli.run(new String[]{"--source", source.toString(),
+                "--destination", destination.toString(), "--dedup", "hardlink", "--level", "metadata"}));
+    }
+
+    /**
+     * Runs the command line interface, expecting success, and returns the JSON events it printed.
+     */
+    private static String run(String[] args) {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream events = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(events, true, StandardCharsets.UTF_8));
+        try {
+            assertEquals(MirrorCli.EXIT_OK, MirrorCli.run(args));
+        } finally {
+            System.setOut(stdout);
+        }
+        return events.toString(StandardCharsets.UTF_8);
+    }
+}
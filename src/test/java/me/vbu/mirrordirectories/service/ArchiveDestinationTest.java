@@ -0,0 +1,124 @@
+package me.vbu.mirrordirectories.service;
+
+import me.vbu.mirrordirectories.metrics.MirrorMetrics;
+import me.vbu.mirrordirectories.model.DiffEntry;
+import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Archiving files into delta shards, reopening the index, and archiving only what changed since.
+ */
+class ArchiveDestinationTest {
+
+    private static final Instant MODIFIED = Instant.parse("2020-01-01T00:00:00Z");
+
+    @TempDir
+    Path directory;
+
+    private Path source;
+    private Path destination;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        source = Files.createDirectories(directory.resolve("source"));
+        destination = Files.createDirectories(directory.resolve("destination"));
+    }
+
+    @Test
+    void reopenedIndexListsAndReadsTheArchivedFiles() throws IOException {
+        write("dir/file", "content", MODIFIED);
+        ArchiveDestination archive = ArchiveDestination.open(destination);
+        archive.write(List.of(new DiffEntry(DiffEntry.Kind.MISSING_DIRECTORY, "dir", 0, 0),
+                new DiffEntry(DiffEntry.Kind.MISSING_FILE, "dir/file", 7, MODIFIED.toEpochMilli())).iterator(),
+                source, new MirrorMetrics());
+
+        ArchiveDestination reopened = ArchiveDestination.open(destination);
+        assertEquals(List.of("dir"), names(reopened.list("")));
+        DirectoryEntry file = reopened.list("dir").getFirst();
+        assertEquals("file", file.getName());
+        assertEquals(7, file.getSize());
+        assertEquals(MODIFIED.toEpochMilli(), file.getLastModified());
+        assertArrayEquals(ContentHasher.newDigest().digest("content".getBytes()), reopened.getHash("dir/file"));
+        try (InputStream in = reopened.openFile("dir/file")) {
+            assertEquals("content", new String(in.readAllBytes()));
+        }
+    }
+
+    @Test
+    void unchangedFilesAreNotArchivedAgain() throws IOException {
+        SourceDestinationDirectoryPair pair = new SourceDestinationDirectoryPair(source.toFile(), destination.toFile());
+        write("unchanged", "unchanged", MODIFIED);
+        write("dir/changed", "old", MODIFIED);
+        mirror(pair);
+        assertEquals(List.of("dir/changed", "unchanged"), shardEntries("mirror-archive-000001.zip"));
+
+        // A new comparator, so the destination is listed from the index read back from disk
+        assertEquals(List.of(), differences(pair));
+
+        write("dir/changed", "new content", MODIFIED.plusSeconds(60));
+        assertEquals(List.of("dir/changed"), differences(pair));
+        mirror(pair);
+
+        assertEquals(List.of("dir/changed"), shardEntries("mirror-archive-000002.zip"));
+        assertEquals(List.of(), differences(pair));
+        ArchiveDestination archive = ArchiveDestination.open(destination);
+        try (InputStream in = archive.openFile("dir/changed")) {
+            assertEquals("new content", new String(in.readAllBytes()));
+        }
+        try (InputStream in = archive.openFile("unchanged")) {
+            assertEquals("unchanged", new String(in.readAllBytes()));
+        }
+    }
+
+    private void write(String relativePath, String content, Instant lastModified) throws IOException {
+        Path file = source.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+        Files.setLastModifiedTime(file, FileTime.from(lastModified));
+    }
+
+    private static void mirror(SourceDestinationDirectoryPair pair) throws IOException {
+        DirectoryComparator comparator = archiving(pair);
+        comparator.compareDirectories();
+        comparator.processMissingItems();
+    }
+
+    private static List<String> differences(SourceDestinationDirectoryPair pair) {
+        try (Stream<DiffEntry> differences = archiving(pair).streamDifferences()) {
+            return differences.map(entry -> entry.getRelativePath().replace('\\', '/')).toList();
+        }
+    }
+
+    private static DirectoryComparator archiving(SourceDestinationDirectoryPair pair) {
+        DirectoryComparator comparator = new DirectoryComparator(pair);
+        comparator.setArchiveMode(true);
+        return comparator;
+    }
+
+    private List<String> shardEntries(String shard) throws IOException {
+        try (ZipFile zip = new ZipFile(destination.resolve(shard).toFile())) {
+            return Collections.list(zip.entries()).stream().map(ZipEntry::getName).sorted().toList();
+        }
+    }
+
+    private static List<String> names(List<DirectoryEntry> listing) {
+        return listing.stream().map(DirectoryEntry::getName).toList();
+    }
+}
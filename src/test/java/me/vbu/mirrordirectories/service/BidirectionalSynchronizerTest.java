@@ -0,0 +1,130 @@
+package me.vbu.mirrordirectories.service;
+
+import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
+import me.vbu.mirrordirectories.model.SyncEntry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two-way syncs classifying each difference against the state of the previous sync.
+ */
+class BidirectionalSynchronizerTest {
+
+    private static final Instant SYNCED = Instant.parse("2020-01-01T00:00:00Z");
+    private static final Instant CHANGED = Instant.parse("2021-01-01T00:00:00Z");
+
+    @TempDir
+    Path directory;
+
+    private Path source;
+    private Path destination;
+    private SourceDestinationDirectoryPair pair;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        source = Files.createDirectories(directory.resolve("source"));
+        destination = Files.createDirectories(directory.resolve("destination"));
+        pair = new SourceDestinationDirectoryPair(source.toFile(), destination.toFile());
+    }
+
+    @Test
+    void firstSyncCopiesBothWaysAndASecondRunHasNothingToDo() throws IOException {
+        write(source, "from-source", "source", SYNCED);
+        write(destination, "dir/from-destination", "destination", SYNCED);
+
+        assertEquals(List.of(), new BidirectionalSynchronizer(pair).synchronize());
+
+        assertEquals("source", Files.readString(destination.resolve("from-source")));
+        assertEquals("destination", Files.readString(source.resolve("dir/from-destination")));
+        // A new synchronizer, so the state is read back from disk
+        assertEquals(List.of(), new BidirectionalSynchronizer(pair).plan());
+    }
+
+    @Test
+    void changeOnOneSideIsCopiedToTheOther() throws IOException {
+        write(source, "file", "old", SYNCED);
+        write(destination, "file", "old", SYNCED);
+        new BidirectionalSynchronizer(pair).synchronize();
+
+        write(destination, "file", "newer", CHANGED);
+        BidirectionalSynchronizer synchronizer = new BidirectionalSynchronizer(pair);
+        assertEquals(List.of("COPY_TO_SOURCE file"), describe(synchronizer.plan()));
+        synchronizer.synchronize();
+
+        assertEquals("newer", Files.readString(source.resolve("file")));
+        assertEquals(List.of(), new BidirectionalSynchronizer(pair).plan());
+    }
+
+    @Test
+    void changeOnBothSidesIsAConflict() throws IOException {
+        write(source, "file", "old", SYNCED);
+        write(destination, "file", "old", SYNCED);
+        new BidirectionalSynchronizer(pair).synchronize();
+
+        write(source, "file", "source edit", CHANGED);
+        write(destination, "file", "destination", CHANGED.plusSeconds(60));
+        List<SyncEntry> conflicts = new BidirectionalSynchronizer(pair).synchronize();
+
+        assertEquals(List.of("CONFLICT file (modified on both sides)"), describe(conflicts));
+        assertEquals("source edit", Files.readString(source.resolve("file")));
+        assertEquals("destination", Files.readString(destination.resolve("file")));
+        // Still a conflict until resolved by hand
+        assertEquals(describe(conflicts), describe(new BidirectionalSynchronizer(pair).plan()));
+    }
+
+    @Test
+    void deletionOnOneSideIsPropagated() throws IOException {
+        write(source, "file", "file", SYNCED);
+        write(source, "dir/nested", "nested", SYNCED);
+        new BidirectionalSynchronizer(pair).synchronize();
+        assertTrue(Files.exists(destination.resolve("dir/nested")));
+
+        Files.delete(source.resolve("file"));
+        Files.delete(destination.resolve("dir/nested"));
+        Files.delete(destination.resolve("dir"));
+        BidirectionalSynchronizer synchronizer = new BidirectionalSynchronizer(pair);
+        assertEquals(List.of("DELETE_FROM_DESTINATION file", "DELETE_FROM_SOURCE dir"),
+                describe(synchronizer.plan()).stream().sorted().toList());
+        synchronizer.synchronize();
+
+        assertTrue(Files.notExists(source.resolve("dir")));
+        assertTrue(Files.notExists(destination.resolve("file")));
+        assertEquals(List.of(), new BidirectionalSynchronizer(pair).plan());
+    }
+
+    @Test
+    void deletionOfAnEntryChangedOnTheOtherSideIsAConflict() throws IOException {
+        write(source, "file", "old", SYNCED);
+        new BidirectionalSynchronizer(pair).synchronize();
+
+        Files.delete(source.resolve("file"));
+        write(destination, "file", "destination edit", CHANGED);
+        List<SyncEntry> conflicts = new BidirectionalSynchronizer(pair).synchronize();
+
+        assertEquals(List.of("CONFLICT file (deleted in source, modified in destination)"), describe(conflicts));
+        assertEquals("destination edit", Files.readString(destination.resolve("file")));
+    }
+
+    private static void write(Path root, String relativePath, String content, Instant lastModified)
+            throws IOException {
+        Path file = root.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+        Files.setLastModifiedTime(file, FileTime.from(lastModified));
+    }
+
+    private static List<String> describe(List<SyncEntry> actions) {
+        return actions.stream().map(SyncEntry::toString).toList();
+    }
+}
@@ -0,0 +1,107 @@
+package me.vbu.mirrordirectories.service;
+
+import me.vbu.mirrordirectories.model.DiffEntry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recovery of a journal whose tail was torn or garbled when its run died, and resuming from it.
+ */
+class CopyJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void tornTailIsCutOffAndTheResumedRunCompletes() throws IOException {
+        Path source = Files.createDirectories(directory.resolve("source"));
+        Path destination = Files.createDirectories(directory.resolve("destination"));
+        Path journalFile = directory.resolve("copy.journal");
+
+        CopyJournal journal = new CopyJournal(journalFile, destination);
+        journal.begin(source);
+        journal.recordDirectory("dir");
+        long first = journal.recordPlanned(missingFile("dir/first", 5));
+        journal.recordPlanned(missingFile("dir/second", 6));
+        Path firstFile = Files.createDirectories(destination.resolve("dir")).resolve("first");
+        Files.writeString(firstFile, "first");
+        journal.commit(first, "dir/first", firstFile, firstFile);
+        journal.close();
+
+        // A planned record cut off in the middle of its path
+        long completeLength = Files.size(journalFile);
+        Files.write(journalFile, new byte[]{2, 0, 20, 'd', 'i'}, StandardOpenOption.APPEND);
+
+        CopyJournal.Recovery recovery = journal.recover();
+        assertEquals(source.toAbsolutePath().normalize(), recovery.getSourceRoot());
+        assertEquals(completeLength, recovery.getValidLength());
+        assertEquals(1, recovery.getCompletedFileCount());
+        assertEquals(1, recovery.getPendingFileCount());
+        assertEquals(List.of("dir", "dir/second"), relativePaths(recovery.getEntries()));
+        assertEquals(DiffEntry.Kind.MISSING_FILE, recovery.getEntries().get(1).getKind());
+        assertEquals(6, recovery.getEntries().get(1).getSize());
+
+        // Resume, writing the remaining file through a temporary file
+        journal.reopen(recovery);
+        assertEquals(completeLength, Files.size(journalFile));
+        DiffEntry second = recovery.getEntries().get(1);
+        long sequence = journal.recordPlanned(second);
+        Path secondFile = destination.resolve("dir/second");
+        Path written = Files.writeString(CopyJournal.tempPath(secondFile), "second");
+        journal.commit(sequence, second.getRelativePath(), written, secondFile);
+        journal.close();
+
+        assertEquals("second", Files.readString(secondFile));
+        assertTrue(Files.notExists(written));
+
+        CopyJournal.Recovery resumed = journal.recover();
+        assertEquals(Files.size(journalFile), resumed.getValidLength());
+        assertEquals(2, resumed.getCompletedFileCount());
+        assertEquals(0, resumed.getPendingFileCount());
+        assertEquals(List.of("dir"), relativePaths(resumed.getEntries()));
+
+        journal.delete();
+        assertTrue(Files.notExists(journalFile));
+    }
+
+    @Test
+    void garbageTailEndsTheValidPrefix() throws IOException {
+        Path source = Files.createDirectories(directory.resolve("source"));
+        Path destination = Files.createDirectories(directory.resolve("destination"));
+        Path journalFile = directory.resolve("copy.journal");
+
+        CopyJournal journal = new CopyJournal(journalFile, destination);
+        journal.begin(source);
+        journal.recordPlanned(missingFile("first", 5));
+        journal.close();
+        long validLength = Files.size(journalFile);
+        byte[] journalBytes = Files.readAllBytes(journalFile);
+
+        // An unknown record type, and a planned record whose path is not modified UTF-8
+        for (byte[] garbage : List.of(new byte[]{0x7f, 0, 1, 'x'}, new byte[]{2, 0, 2, (byte) 0xc0, 'A', 0})) {
+            Files.write(journalFile, journalBytes);
+            Files.write(journalFile, garbage, StandardOpenOption.APPEND);
+
+            CopyJournal.Recovery recovery = journal.recover();
+            assertEquals(validLength, recovery.getValidLength());
+            assertEquals(List.of("first"), relativePaths(recovery.getEntries()));
+        }
+    }
+
+    private static DiffEntry missingFile(String relativePath, long size) {
+        return new DiffEntry(DiffEntry.Kind.MISSING_FILE, relativePath, size, 0);
+    }
+
+    private static List<String> relativePaths(List<DiffEntry> entries) {
+        return entries.stream().map(DiffEntry::getRelativePath).toList();
+    }
+}
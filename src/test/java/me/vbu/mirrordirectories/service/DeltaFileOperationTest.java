@@ -0,0 +1,145 @@
+package me.vbu.mirrordirectories.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Delta updates of a destination file, checking both the result and which bytes were reused.
+ */
+class DeltaFileOperationTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCKS = 16;
+
+    @TempDir
+    Path directory;
+
+    private DeltaFileOperation operation;
+    private byte[] destination;
+
+    @BeforeEach
+    void setUp() {
+        operation = new DeltaFileOperation();
+        operation.setMinimumFileSize(0);
+        operation.setBlockSize(BLOCK_SIZE);
+        destination = randomBytes(BLOCK_SIZE * BLOCKS, 1);
+    }
+
+    @Test
+    void appendWritesOnlyTheNewBytes() throws IOException {
+        byte[] appended = randomBytes(10_000, 2);
+
+        update(concat(destination, appended));
+
+        assertEquals(destination.length, operation.getReusedBytes());
+        assertEquals(appended.length, operation.getWrittenBytes());
+    }
+
+    @Test
+    void insertAtStartReusesEveryBlock() throws IOException {
+        byte[] inserted = randomBytes(100, 2);
+
+        update(concat(inserted, destination));
+
+        assertEquals(destination.length, operation.getReusedBytes());
+        assertEquals(inserted.length, operation.getWrittenBytes());
+    }
+
+    @Test
+    void insertInTheMiddleReusesTheShiftedBlocks() throws IOException {
+        int at = 20_000;
+        byte[] inserted = randomBytes(333, 2);
+
+        update(concat(Arrays.copyOf(destination, at), inserted,
+                Arrays.copyOfRange(destination, at, destination.length)));
+
+        // Only the block the bytes were inserted into is lost
+        assertEquals(destination.length - BLOCK_SIZE, operation.getReusedBytes());
+        assertEquals(BLOCK_SIZE + inserted.length, operation.getWrittenBytes());
+    }
+
+    @Test
+    void truncateKeepsTheLeadingBlocks() throws IOException {
+        int length = 40_000;
+
+        update(Arrays.copyOf(destination, length));
+
+        assertEquals(length / BLOCK_SIZE * BLOCK_SIZE, operation.getReusedBytes());
+        assertEquals(length % BLOCK_SIZE, operation.getWrittenBytes());
+    }
+
+    @Test
+    void shortTailBlockIsReused() throws IOException {
+        destination = concat(destination, randomBytes(1000, 3));
+        byte[] source = destination.clone();
+        source[0]++;
+
+        update(source);
+
+        assertEquals(destination.length - BLOCK_SIZE, operation.getReusedBytes());
+        assertEquals(BLOCK_SIZE, operation.getWrittenBytes());
+    }
+
+    @Test
+    void movedBlocksAreReusedFromTheirOldOffset() throws IOException {
+        int half = destination.length / 2;
+
+        update(concat(Arrays.copyOfRange(destination, half, destination.length), Arrays.copyOf(destination, half)));
+
+        assertEquals(destination.length, operation.getReusedBytes());
+        assertEquals(0, operation.getWrittenBytes());
+    }
+
+    @Test
+    void blocksSharingAChecksumAreAllFound() throws IOException {
+        destination = new byte[BLOCK_SIZE * BLOCKS];
+        byte[] source = destination.clone();
+        source[3 * BLOCK_SIZE + 7] = 1;
+
+        update(source);
+
+        assertEquals(destination.length - BLOCK_SIZE, operation.getReusedBytes());
+        assertEquals(BLOCK_SIZE, operation.getWrittenBytes());
+    }
+
+    /**
+     * Updates the destination file to the source content and checks that it ends up identical.
+     */
+    private void update(byte[] source) throws IOException {
+        Path sourceFile = Files.write(directory.resolve("source.dat"), source);
+        Path destFile = Files.write(directory.resolve("destination.dat"), destination);
+
+        operation.executeFileOperation(sourceFile, destFile);
+
+        assertArrayEquals(source, Files.readAllBytes(destFile));
+        assertEquals(Files.getLastModifiedTime(sourceFile), Files.getLastModifiedTime(destFile));
+        assertFalse(Files.exists(destFile.resolveSibling(destFile.getFileName() + DeltaFileOperation.TEMP_SUFFIX)));
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        byte[] result = new byte[Arrays.stream(parts).mapToInt(part -> part.length).sum()];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,156 @@
+package me.vbu.mirrordirectories.service;
+
+import me.vbu.mirrordirectories.model.DiffEntry;
+import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recording, saving and reloading a destination manifest, and when a comparison trusts it.
+ */
+class DestinationManifestTest {
+
+    private static final FileTime MODIFIED = FileTime.from(Instant.parse("2020-01-01T00:00:00Z"));
+
+    @TempDir
+    Path directory;
+
+    private Path destination;
+    private Path manifestFile;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        destination = Files.createDirectories(directory.resolve("destination"));
+        manifestFile = directory.resolve("store/destination.manifest");
+    }
+
+    @Test
+    void savedManifestIsReadBackUnchanged() throws IOException {
+        write("b-file", "b");
+        write("sub/nested", "nested");
+        DestinationManifest manifest = new DestinationManifest(manifestFile, destination);
+        manifest.putDirectory("", DirectoryListing.list(destination));
+        manifest.putDirectory("sub", DirectoryListing.list(destination.resolve("sub")));
+
+        // Recorded after the listing, so kept apart until the directory is listed or saved
+        manifest.recordFile("a-file", attributes(write("a-file", "a")), new byte[]{1, 2, 3});
+        manifest.recordFile("c-file", attributes(write("c-file", "c")), null);
+        manifest.setHash("sub/nested", new byte[]{4, 5});
+        manifest.removeEntry("c-file");
+        manifest.markVerified();
+        manifest.save();
+
+        assertEquals(List.of(manifestFile.getFileName()), listNames(manifestFile.getParent()));
+        DestinationManifest loaded = new DestinationManifest(manifestFile, destination);
+        loaded.load();
+
+        assertEquals(describe(manifest.list("")), describe(loaded.list("")));
+        assertEquals(List.of("a-file 1", "b-file 1", "sub dir"), describe(loaded.list("")));
+        assertEquals(List.of("nested 6"), describe(loaded.list("sub")));
+        assertArrayEquals(new byte[]{1, 2, 3}, loaded.getHash("a-file"));
+        assertArrayEquals(new byte[]{4, 5}, loaded.getHash("sub/nested"));
+        assertNull(loaded.getHash("b-file"));
+        assertTrue(loaded.isVerifiedWithin(Duration.ofHours(1)));
+    }
+
+    @Test
+    void unchangedManifestIsNotRewritten() throws IOException {
+        write("file", "file");
+        DestinationManifest manifest = new DestinationManifest(manifestFile, destination);
+        manifest.putDirectory("", DirectoryListing.list(destination));
+        manifest.save();
+        Files.setLastModifiedTime(manifestFile, MODIFIED);
+
+        DestinationManifest loaded = new DestinationManifest(manifestFile, destination);
+        loaded.load();
+        loaded.list("");
+        loaded.save();
+        assertEquals(MODIFIED, Files.getLastModifiedTime(manifestFile));
+
+        loaded.removeEntry("file");
+        loaded.save();
+        assertFalse(MODIFIED.equals(Files.getLastModifiedTime(manifestFile)));
+    }
+
+    @Test
+    void removedDirectoryTakesItsSubtreeAlong() throws IOException {
+        write("dir/sub/file", "file");
+        DestinationManifest manifest = new DestinationManifest(manifestFile, destination);
+        manifest.recordDirectory("dir");
+        manifest.recordDirectory("dir/sub");
+        manifest.recordFile("dir/sub/file", attributes(destination.resolve("dir/sub/file")), null);
+
+        manifest.removeEntry("dir");
+
+        assertEquals(List.of(), manifest.list(""));
+        assertEquals(List.of(), manifest.list("dir/sub"));
+    }
+
+    @Test
+    void staleManifestIsVerifiedByWalkingTheDestination() throws IOException, InterruptedException {
+        Path source = Files.createDirectories(directory.resolve("source"));
+        Files.setLastModifiedTime(Files.writeString(source.resolve("file"), "file"), MODIFIED);
+        write("file", "file");
+        SourceDestinationDirectoryPair pair = new SourceDestinationDirectoryPair(source.toFile(), destination.toFile());
+
+        // The first comparison walks the destination and stores its manifest
+        assertEquals(List.of(), differences(new DirectoryComparator(pair)));
+        Files.delete(destination.resolve("file"));
+
+        // Within the maximum age the manifest is trusted, so the deletion goes unnoticed
+        assertEquals(List.of(), differences(new DirectoryComparator(pair)));
+
+        Thread.sleep(5);
+        DirectoryComparator comparator = new DirectoryComparator(pair);
+        comparator.setManifestMaxAge(Duration.ZERO);
+        assertEquals(List.of("file"), differences(comparator));
+        // The walk rebuilt the manifest, so the next trusting comparison sees the deletion as well
+        assertEquals(List.of("file"), differences(new DirectoryComparator(pair)));
+    }
+
+    private Path write(String relativePath, String content) throws IOException {
+        Path file = destination.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+        return Files.setLastModifiedTime(file, MODIFIED);
+    }
+
+    private static BasicFileAttributes attributes(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    private static List<String> describe(List<DirectoryEntry> listing) {
+        return listing.stream()
+                .map(entry -> entry.getName() + (entry.isDirectory() ? " dir" : " " + entry.getSize()))
+                .toList();
+    }
+
+    private static List<Path> listNames(Path dir) throws IOException {
+        try (Stream<Path> entries = Files.list(dir)) {
+            return entries.map(Path::getFileName).toList();
+        }
+    }
+
+    private static List<String> differences(DirectoryComparator comparator) {
+        try (Stream<DiffEntry> differences = comparator.streamDifferences()) {
+            return differences.map(DiffEntry::getRelativePath).toList();
+        }
+    }
+}
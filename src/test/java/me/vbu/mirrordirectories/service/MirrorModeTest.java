@@ -0,0 +1,154 @@
+package me.vbu.mirrordirectories.service;
+
+import me.vbu.mirrordirectories.model.DiffEntry;
+import me.vbu.mirrordirectories.model.SourceDestinationDirectoryPair;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Mirror mode, which removes destination entries the source lacks and replaces entries of another type.
+ */
+class MirrorModeTest {
+
+    @TempDir
+    Path directory;
+
+    private Path source;
+    private Path destination;
+    private Path outside;
+    private DirectoryComparator comparator;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        source = Files.createDirectories(directory.resolve("source"));
+        destination = Files.createDirectories(directory.resolve("destination"));
+        outside = Files.createDirectories(directory.resolve("outside"));
+        Files.writeString(outside.resolve("keep"), "keep");
+
+        comparator = new DirectoryComparator(new SourceDestinationDirectoryPair(source.toFile(), destination.toFile()));
+        comparator.setMirrorMode(true);
+        comparator.setDestinationScanMode(DestinationScanMode.WALK);
+    }
+
+    @Test
+    void deleteModeRemovesExtraneousEntries() throws IOException {
+        write(source, "kept", "kept");
+        write(destination, "kept", "kept");
+        write(destination, "extra", "extra");
+        write(destination, "extra-dir/nested/file", "file");
+
+        mirror();
+
+        assertEquals(List.of("kept"), list(destination));
+        assertEquals(2, comparator.getPruner().getRemovedEntries());
+    }
+
+    @Test
+    void trashModeMovesExtraneousEntries() throws IOException {
+        comparator.getPruner().setMode(PruneMode.TRASH);
+        write(source, "dir/kept", "kept");
+        write(destination, "dir/kept", "kept");
+        write(destination, "dir/extra", "extra");
+
+        mirror();
+
+        assertEquals(List.of(DestinationPruner.TRASH_DIRECTORY, "dir"), list(destination));
+        assertEquals(List.of("kept"), list(destination.resolve("dir")));
+        List<String> runs = list(destination.resolve(DestinationPruner.TRASH_DIRECTORY));
+        assertEquals(1, runs.size());
+        Path trashed = destination.resolve(DestinationPruner.TRASH_DIRECTORY).resolve(runs.getFirst());
+        assertEquals("extra", Files.readString(trashed.resolve("dir/extra")));
+
+        // The trash is never extraneous itself
+        comparator.compareDirectories();
+        assertEquals(List.of(), comparator.getExtraneousEntries());
+    }
+
+    @Test
+    void typeChangesReplaceTheDestinationEntry() throws IOException {
+        write(source, "was-file/inner", "inner");
+        write(destination, "was-file", "file");
+        write(source, "was-dir", "now a file");
+        write(destination, "was-dir/inner", "inner");
+
+        mirror();
+
+        assertEquals("inner", Files.readString(destination.resolve("was-file/inner")));
+        assertEquals("now a file", Files.readString(destination.resolve("was-dir")));
+    }
+
+    @Test
+    void symlinkedDirectoryIsReplacedWithoutTouchingItsTarget() throws IOException {
+        Files.createSymbolicLink(destination.resolve("linked"), outside);
+        write(source, "linked/keep", "source");
+
+        mirror();
+
+        assertFalse(Files.isSymbolicLink(destination.resolve("linked")));
+        assertEquals("source", Files.readString(destination.resolve("linked/keep")));
+        assertEquals("keep", Files.readString(outside.resolve("keep")));
+    }
+
+    @Test
+    void extraneousSymlinkIsRemovedItself() throws IOException {
+        Files.createSymbolicLink(destination.resolve("linked"), outside);
+
+        mirror();
+
+        assertFalse(Files.exists(destination.resolve("linked"), LinkOption.NOFOLLOW_LINKS));
+        assertEquals("keep", Files.readString(outside.resolve("keep")));
+    }
+
+    @Test
+    void symlinkedFileIsReplacedNotWrittenThrough() throws IOException {
+        Files.createSymbolicLink(destination.resolve("file"), outside.resolve("keep"));
+        write(source, "file", "source");
+
+        mirror();
+
+        assertFalse(Files.isSymbolicLink(destination.resolve("file")));
+        assertEquals("source", Files.readString(destination.resolve("file")));
+        assertEquals("keep", Files.readString(outside.resolve("keep")));
+    }
+
+    @Test
+    void prunerRefusesPathsLeadingOutOfTheDestination() throws IOException {
+        Files.createSymbolicLink(destination.resolve("linked"), outside);
+        DestinationPruner pruner = new DestinationPruner();
+
+        List<DiffEntry> entries = List.of(new DiffEntry(DiffEntry.Kind.EXTRANEOUS_FILE, "linked/keep", 4, 0));
+        assertThrows(IOException.class, () -> pruner.prune(destination, entries, new ProcessedItemListener() { }));
+
+        assertEquals(1, pruner.getFailures().size());
+        assertEquals("keep", Files.readString(outside.resolve("keep")));
+    }
+
+    private void mirror() throws IOException {
+        comparator.compareDirectories();
+        comparator.processMissingItems();
+    }
+
+    private static void write(Path root, String relativePath, String content) throws IOException {
+        Path file = root.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+    private static List<String> list(Path dir) throws IOException {
+        try (Stream<Path> entries = Files.list(dir)) {
+            return entries.map(path -> path.getFileName().toString()).sorted().toList();
+        }
+    }
+}
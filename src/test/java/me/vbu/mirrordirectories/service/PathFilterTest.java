@@ -0,0 +1,126 @@
+package me.vbu.mirrordirectories.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Matching of glob and regular expression rules, and the precedence between them.
+ */
+class PathFilterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void ruleWithoutSlashMatchesTheNameAtAnyDepth() {
+        PathFilter filter = PathFilter.compile(List.of("*.class", "node_modules", "**/target"));
+
+        assertFalse(filter.includes("A.class", false));
+        assertFalse(filter.includes("build/classes/A.class", false));
+        assertTrue(filter.includes("src/A.java", false));
+        assertFalse(filter.includes("node_modules", true));
+        assertFalse(filter.includes("web/app/node_modules", true));
+        assertTrue(filter.includes("web/app/node_modules_old", true));
+        assertFalse(filter.includes("module/target", true));
+    }
+
+    @Test
+    void ruleWithSlashIsAnchoredAtTheRoot() {
+        PathFilter filter = PathFilter.compile(List.of("build/tmp", "/logs"));
+
+        assertFalse(filter.includes("build/tmp", true));
+        assertTrue(filter.includes("module/build/tmp", true));
+        assertFalse(filter.includes("logs", true));
+        assertTrue(filter.includes("app/logs", true));
+    }
+
+    @Test
+    void doubleStarMatchesAcrossNames() {
+        PathFilter filter = PathFilter.compile(List.of("src/**/*.java", "cache/**"));
+
+        assertFalse(filter.includes("src/A.java", false));
+        assertFalse(filter.includes("src/main/java/A.java", false));
+        assertTrue(filter.includes("test/A.java", false));
+        assertTrue(filter.includes("src/main/A.kt", false));
+        assertFalse(filter.includes("cache/a/b/c", false));
+        assertTrue(filter.includes("cache", true));
+    }
+
+    @Test
+    void singleStarAndQuestionMarkStayWithinAName() {
+        PathFilter filter = PathFilter.compile(List.of("docs/*.txt", "file?.bak"));
+
+        assertFalse(filter.includes("docs/readme.txt", false));
+        assertTrue(filter.includes("docs/old/readme.txt", false));
+        assertFalse(filter.includes("file1.bak", false));
+        assertFalse(filter.includes("deep/fileA.bak", false));
+        assertTrue(filter.includes("file10.bak", false));
+        assertTrue(filter.includes("file.bak", false));
+    }
+
+    @Test
+    void characterClassesMatchOneCharacter() {
+        PathFilter filter = PathFilter.compile(List.of("log[0-9].txt", "[!a-z]*.tmp"));
+
+        assertFalse(filter.includes("log3.txt", false));
+        assertTrue(filter.includes("logx.txt", false));
+        assertTrue(filter.includes("log10.txt", false));
+        assertFalse(filter.includes("Upper.tmp", false));
+        assertTrue(filter.includes("lower.tmp", false));
+    }
+
+    @Test
+    void regexRuleMatchesTheWholeRelativePath() {
+        PathFilter filter = PathFilter.compile(List.of("regex:docs/.*\\.md", "regex:[^/]*\\.log"));
+
+        assertFalse(filter.includes("docs/guide/intro.md", false));
+        assertTrue(filter.includes("site/docs/intro.md", false));
+        assertFalse(filter.includes("server.log", false));
+        assertTrue(filter.includes("logs/server.log", false));
+    }
+
+    @Test
+    void trailingSlashOnlyMatchesDirectories() {
+        PathFilter filter = PathFilter.compile(List.of("tmp/"));
+
+        assertFalse(filter.includes("a/tmp", true));
+        assertTrue(filter.includes("a/tmp", false));
+    }
+
+    @Test
+    void firstMatchingRuleWins() {
+        PathFilter filter = PathFilter.compile(List.of("+ keep.log", "- *.log", "+ other.log"));
+
+        assertTrue(filter.includes("logs/keep.log", false));
+        assertFalse(filter.includes("logs/other.log", false));
+        assertTrue(filter.includes("readme", false));
+        assertEquals(List.of(1L, 1L, 0L), filter.getRules().stream().map(PathFilter.Rule::getHits).toList());
+
+        PathFilter reversed = PathFilter.compile(List.of("*.log", "+ keep.log"));
+        assertFalse(reversed.includes("keep.log", false));
+    }
+
+    @Test
+    void invalidRulesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> PathFilter.compile(List.of("a//b")));
+        assertThrows(IllegalArgumentException.class, () -> PathFilter.compile(List.of("log[0-9")));
+        assertThrows(IllegalArgumentException.class, () -> PathFilter.compile(List.of("regex:(")));
+    }
+
+    @Test
+    void rulesFileSkipsBlankLinesAndComments() throws IOException {
+        Path file = Files.writeString(directory.resolve("rules"), "# build output\n\n  *.class  \n+ keep.class\n");
+
+        assertEquals(List.of("*.class", "+ keep.class"), PathFilter.readRules(file));
+    }
+}